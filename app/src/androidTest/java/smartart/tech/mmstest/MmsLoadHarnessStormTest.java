@@ -0,0 +1,40 @@
+package smartart.tech.mmstest;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a broadcast storm through the real receivers and holds it to the
+ * harness's thresholds. Replays the newest messages on the device, so run it
+ * on a test device with a few MMS in its mailbox.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MmsLoadHarnessStormTest {
+
+    @Test
+    public void stormStaysWithinThresholds() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        // Runs on the instrumentation thread; intents are delivered on the main thread
+        MmsLoadHarness.Report report = new MmsLoadHarness(context)
+                .setCount(200)
+                .setRatePerSecond(50)
+                .setThresholds(new MmsLoadHarness.Thresholds())
+                .run();
+
+        assertEquals(200, report.getInjected());
+        assertTrue(report.getCompleted() > 0);
+        assertEquals(new ArrayList<String>(), report.getFailures());
+    }
+}
@@ -0,0 +1,564 @@
+package smartart.tech.mmstest;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcast-storm load test for the receiver pipeline.
+ *
+ * Replays what a carrier flushing its queue looks like: synthetic
+ * WAP_PUSH_RECEIVED, MMS_RECEIVED and SMS_RECEIVED intents are delivered to
+ * fresh {@link CustomMmsReceiver} instances on the main thread at a fixed
+ * rate. MMS intents point at the newest messages in the mailbox (WAP pushes
+ * carry their real transaction id and content location), so part sizes and
+ * decode costs are those of real traffic, and messages are delivered more
+ * than once when the run is longer than the sample, like a real re-delivery.
+ *
+ * The harness's receivers write to their own processed-id ledger, file
+ * store, text journal and preferences under getCacheDir, deleted after the
+ * run, and get a silent notifier and no gallery sink. The app's singletons
+ * are left alone, so real broadcasts arriving during a run are handled as
+ * usual and replayed messages never reach the gallery or the status bar.
+ *
+ * The report covers throughput, end-to-end latency percentiles (injection to
+ * the last callback for that message), peak thread count, peak Java heap and
+ * files written, and every {@link Thresholds} limit the run broke.
+ *
+ * Debug builds only: it replays the device's own messages, so it belongs on
+ * a test device. MmsLoadHarnessStormTest runs it there
+ * ({@code ./gradlew connectedDebugAndroidTest}) and fails on any broken limit.
+ *
+ * Usage (blocks; never on the main thread):
+ * <pre>
+ *     MmsLoadHarness.Report report = new MmsLoadHarness(context)
+ *             .setCount(500).setRatePerSecond(100).run();
+ *     if (!report.passed()) { ... report.getFailures() ... }
+ * </pre>
+ */
+public class MmsLoadHarness {
+
+    private static final String TAG = "MmsLoadHarness";
+
+    static final String ACTION_SMS_RECEIVED = "android.provider.Telephony.SMS_RECEIVED";
+    static final String ACTION_WAP_PUSH_RECEIVED = "android.provider.Telephony.WAP_PUSH_RECEIVED";
+    static final String ACTION_MMS_RECEIVED = "android.provider.Telephony.MMS_RECEIVED";
+    static final String MMS_MESSAGE_TYPE = "application/vnd.wap.mms-message";
+
+    private static final long SAMPLE_INTERVAL_MS = 20;
+    private static final String PREFS_NAME = "mms_prefs_load_test";
+
+    /**
+     * Regression limits a run must stay within
+     */
+    public static class Thresholds {
+        double minThroughputPerSecond = 1;
+        long maxP95Millis = 5000;
+        long maxP99Millis = 15000;
+        // Above the thread count before the run
+        int maxExtraThreads = 16;
+        // Above the heap in use before the run
+        long maxHeapGrowthBytes = 96L * 1024 * 1024;
+        // Per distinct MMS delivered
+        int maxFilesPerMessage = 8;
+
+        public Thresholds setMinThroughputPerSecond(double rate) { minThroughputPerSecond = rate; return this; }
+        public Thresholds setMaxP95Millis(long ms) { maxP95Millis = ms; return this; }
+        public Thresholds setMaxP99Millis(long ms) { maxP99Millis = ms; return this; }
+        public Thresholds setMaxExtraThreads(int threads) { maxExtraThreads = threads; return this; }
+        public Thresholds setMaxHeapGrowthBytes(long bytes) { maxHeapGrowthBytes = bytes; return this; }
+        public Thresholds setMaxFilesPerMessage(int files) { maxFilesPerMessage = files; return this; }
+    }
+
+    /**
+     * Results of one run. Messages without text, image or video parts never
+     * complete, so completed can stay below the number of targets.
+     */
+    public static class Report {
+        int injected;
+        int distinctMessages;
+        int distinctTargets;
+        int completed;
+        long duplicatesDropped;
+        long durationMs;
+        double throughputPerSecond;
+        LatencyHistogram.Snapshot latency;
+        int baselineThreads;
+        int peakThreads;
+        long baselineHeapBytes;
+        long peakHeapBytes;
+        int filesWritten;
+        long bytesWritten;
+        List<String> failures = new ArrayList<>();
+
+        public int getInjected() { return injected; }
+        public int getCompleted() { return completed; }
+        public double getThroughputPerSecond() { return throughputPerSecond; }
+        public long getPercentileMillis(double percentile) {
+            return TimeUnit.MICROSECONDS.toMillis(latency.getPercentileMicros(percentile));
+        }
+        public int getPeakThreads() { return peakThreads; }
+        public long getPeakHeapBytes() { return peakHeapBytes; }
+        public int getFilesWritten() { return filesWritten; }
+
+        public int getDistinctMessages() { return distinctMessages; }
+        public int getBaselineThreads() { return baselineThreads; }
+        public long getBaselineHeapBytes() { return baselineHeapBytes; }
+        /** The limits the run broke, as checked at the end of the run */
+        public List<String> getFailures() { return failures; }
+        public boolean passed() { return failures.isEmpty(); }
+
+        /**
+         * @return a description of every threshold this run broke, empty if it passed
+         */
+        public List<String> check(Thresholds thresholds) {
+            List<String> broken = new ArrayList<>();
+            if (throughputPerSecond < thresholds.minThroughputPerSecond) {
+                broken.add(String.format(Locale.US, "throughput %.1f/s < %.1f/s",
+                        throughputPerSecond, thresholds.minThroughputPerSecond));
+            }
+            if (getPercentileMillis(95) > thresholds.maxP95Millis) {
+                broken.add("p95 " + getPercentileMillis(95) + "ms > " + thresholds.maxP95Millis + "ms");
+            }
+            if (getPercentileMillis(99) > thresholds.maxP99Millis) {
+                broken.add("p99 " + getPercentileMillis(99) + "ms > " + thresholds.maxP99Millis + "ms");
+            }
+            if (peakThreads - baselineThreads > thresholds.maxExtraThreads) {
+                broken.add("threads " + peakThreads + " > " + baselineThreads + " + " + thresholds.maxExtraThreads);
+            }
+            if (peakHeapBytes - baselineHeapBytes > thresholds.maxHeapGrowthBytes) {
+                broken.add("heap grew " + (peakHeapBytes - baselineHeapBytes) / 1024
+                        + "KB > " + thresholds.maxHeapGrowthBytes / 1024 + "KB");
+            }
+            if (filesWritten > (long) distinctMessages * thresholds.maxFilesPerMessage) {
+                broken.add("files " + filesWritten + " > " + distinctMessages
+                        + " messages x " + thresholds.maxFilesPerMessage);
+            }
+            return broken;
+        }
+
+        /**
+         * Fill in the latency, completion and throughput figures from the
+         * first injection and last callback of each target, in uptime millis
+         */
+        void summarize(long start, Map<String, Long> injectedAt, Map<String, Long> completedAt) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            long lastCompletion = start;
+            int done = 0;
+            for (Map.Entry<String, Long> completion : completedAt.entrySet()) {
+                Long injected = injectedAt.get(completion.getKey());
+                if (injected != null) {
+                    histogram.recordMicros(TimeUnit.MILLISECONDS.toMicros(completion.getValue() - injected));
+                    lastCompletion = Math.max(lastCompletion, completion.getValue());
+                    done++;
+                }
+            }
+            completed = done;
+            latency = histogram.snapshot();
+            durationMs = Math.max(1, lastCompletion - start);
+            throughputPerSecond = completed * 1000.0 / durationMs;
+        }
+
+        public void dump(String prefix, PrintWriter writer) {
+            writer.println(prefix + String.format(Locale.US,
+                    "Load test: injected=%d targets=%d completed=%d duplicates=%d in %dms, %.1f/s",
+                    injected, distinctTargets, completed, duplicatesDropped, durationMs, throughputPerSecond));
+            writer.println(prefix + String.format(Locale.US,
+                    "  latency p50=%dms p95=%dms p99=%dms max=%dms",
+                    getPercentileMillis(50), getPercentileMillis(95), getPercentileMillis(99),
+                    TimeUnit.MICROSECONDS.toMillis(latency.getMaxMicros())));
+            writer.println(prefix + String.format(Locale.US,
+                    "  threads %d -> %d, heap %dKB -> %dKB, files=%d (%dKB)",
+                    baselineThreads, peakThreads, baselineHeapBytes / 1024, peakHeapBytes / 1024,
+                    filesWritten, bytesWritten / 1024));
+            writer.println(prefix + (failures.isEmpty() ? "  passed" : "  FAILED: " + failures));
+        }
+    }
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private int count = 200;
+    private double ratePerSecond = 50;
+    private float wapShare = 0.4f;
+    private float mmsShare = 0.4f;
+    private int sampleSize = 50;
+    private long settleMs = 3000;
+    private long maxDurationMs = 120000;
+    private long seed = 1;
+    private Thresholds thresholds = new Thresholds();
+
+    // Target key ("mms:<id>" or "sms:<sender>") to first injection and last callback, in uptime millis
+    private final Map<String, Long> injectedAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> completedAt = new ConcurrentHashMap<>();
+    private volatile long lastActivity;
+
+    // Scratch state for the run's receivers
+    private MmsProcessedLedger ledger;
+    private MmsFileStore store;
+    private MmsTextJournal journal;
+    private final MmsNotifier notifier = new MmsNotifier(true);
+
+    public MmsLoadHarness(Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    public MmsLoadHarness setCount(int intents) { count = Math.max(1, intents); return this; }
+    public MmsLoadHarness setRatePerSecond(double rate) { ratePerSecond = Math.max(0.1, rate); return this; }
+    /** Share of WAP push and MMS_RECEIVED intents; the rest are SMS */
+    public MmsLoadHarness setMix(float wap, float mms) { wapShare = wap; mmsShare = mms; return this; }
+    /** Number of newest mailbox messages the MMS intents point at */
+    public MmsLoadHarness setSampleSize(int messages) { sampleSize = Math.max(1, messages); return this; }
+    /** The run ends once nothing has completed for this long after the last injection */
+    public MmsLoadHarness setSettleMs(long ms) { settleMs = ms; return this; }
+    public MmsLoadHarness setMaxDurationMs(long ms) { maxDurationMs = ms; return this; }
+    public MmsLoadHarness setSeed(long value) { seed = value; return this; }
+    /** Limits the report is checked against at the end of the run */
+    public MmsLoadHarness setThresholds(Thresholds limits) { thresholds = limits; return this; }
+
+    /**
+     * Run the storm and wait for the pipeline to settle
+     */
+    public Report run() throws IOException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("Intents are delivered on the main thread; run from another thread");
+        }
+
+        File scratch = new File(context.getCacheDir(), "load-test");
+        deleteRecursively(scratch);
+        if (!new File(scratch, "files").mkdirs()) {
+            throw new IOException("Cannot create " + scratch);
+        }
+        // Floor at 0, so every sampled message is handled once before repeats are dropped
+        ledger = new MmsProcessedLedger(new File(scratch, MmsProcessedLedger.DIRECTORY_NAME), null);
+        store = new MmsFileStore(new File(scratch, "files"), new File(scratch, MmsFileStore.INDEX_NAME));
+        journal = MmsTextJournal.open(new File(scratch, MmsTextJournal.DIRECTORY_NAME));
+        try {
+            return runStorm();
+        } finally {
+            journal.close();
+            context.deleteSharedPreferences(PREFS_NAME);
+            deleteRecursively(scratch);
+        }
+    }
+
+    private Report runStorm() {
+        List<Target> targets = sampleMailbox();
+        List<Intent> intents = new ArrayList<>(count);
+        List<String> keys = new ArrayList<>(count);
+        buildIntents(targets, intents, keys);
+
+        Report report = new Report();
+        report.injected = intents.size();
+        report.distinctMessages = targets.size();
+        report.baselineThreads = threadCount();
+        report.baselineHeapBytes = heapInUse();
+        report.peakThreads = report.baselineThreads;
+        report.peakHeapBytes = report.baselineHeapBytes;
+        long duplicatesBefore = MmsMetrics.get().snapshot().getCounter(MmsMetrics.Counter.DUPLICATES_DROPPED);
+
+        // Deliver on the main thread like the system does, one receiver instance per broadcast
+        long start = SystemClock.uptimeMillis();
+        long intervalMs = Math.max(1, (long) (1000 / ratePerSecond));
+        for (int i = 0; i < intents.size(); i++) {
+            Intent intent = intents.get(i);
+            String key = keys.get(i);
+            long at = start + i * intervalMs;
+            mainHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    long now = SystemClock.uptimeMillis();
+                    if (!injectedAt.containsKey(key)) {
+                        injectedAt.put(key, now);
+                    }
+                    lastActivity = now;
+                    new InstrumentedReceiver().onReceive(context, intent);
+                }
+            }, at);
+        }
+        long lastInjection = start + (intents.size() - 1) * intervalMs;
+
+        // Sample threads and heap until nothing has happened for settleMs
+        long deadline = start + maxDurationMs;
+        while (true) {
+            report.peakThreads = Math.max(report.peakThreads, threadCount());
+            report.peakHeapBytes = Math.max(report.peakHeapBytes, heapInUse());
+
+            long now = SystemClock.uptimeMillis();
+            if (now >= deadline || (now > lastInjection && now - lastActivity > settleMs)) {
+                break;
+            }
+            SystemClock.sleep(SAMPLE_INTERVAL_MS);
+        }
+        mainHandler.removeCallbacksAndMessages(null);
+
+        report.summarize(start, injectedAt, completedAt);
+        report.distinctTargets = new HashSet<>(keys).size();
+        report.duplicatesDropped = MmsMetrics.get().snapshot().getCounter(MmsMetrics.Counter.DUPLICATES_DROPPED)
+                - duplicatesBefore;
+        report.filesWritten = store.getFileCount();
+        report.bytesWritten = store.getUsedBytes();
+        report.failures = report.check(thresholds);
+
+        StringWriter out = new StringWriter();
+        report.dump("", new PrintWriter(out, true));
+        if (report.passed()) {
+            Log.i(TAG, out.toString());
+        } else {
+            Log.w(TAG, out.toString());
+        }
+        return report;
+    }
+
+    private void buildIntents(List<Target> targets, List<Intent> intents, List<String> keys) {
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            float pick = random.nextFloat();
+            Target target = targets.isEmpty() ? null : targets.get(random.nextInt(targets.size()));
+
+            if (target != null && pick < wapShare && target.contentLocation != null) {
+                Intent intent = new Intent(ACTION_WAP_PUSH_RECEIVED);
+                intent.setType(MMS_MESSAGE_TYPE);
+                intent.putExtra("data", notificationPdu(target.transactionId, target.contentLocation, target.size));
+                intents.add(intent);
+                keys.add("mms:" + target.id);
+            } else if (target != null && pick < wapShare + mmsShare) {
+                Intent intent = new Intent(ACTION_MMS_RECEIVED);
+                intent.setData(Uri.parse("content://mms/" + target.id));
+                intents.add(intent);
+                keys.add("mms:" + target.id);
+            } else {
+                String sender = String.format(Locale.US, "+1555%07d", i);
+                Intent intent = new Intent(ACTION_SMS_RECEIVED);
+                intent.putExtra("pdus", new Object[]{smsDeliverPdu(sender, "Load test message " + i)});
+                intent.putExtra("format", "3gpp");
+                intents.add(intent);
+                keys.add("sms:" + sender);
+            }
+        }
+    }
+
+    private List<Target> sampleMailbox() {
+        List<Target> targets = new ArrayList<>();
+        try (Cursor cursor = context.getContentResolver().query(
+                MmsRows.MMS_URI,
+                new String[]{"_id", "tr_id", "ct_l", "m_size"},
+                "m_type = " + MmsImageExtractor.MESSAGE_TYPE_RETRIEVE_CONF,
+                null,
+                "date DESC, _id DESC LIMIT " + sampleSize
+        )) {
+            if (cursor == null) {
+                return targets;
+            }
+            int idIndex = cursor.getColumnIndex("_id");
+            int transactionIndex = cursor.getColumnIndex("tr_id");
+            int locationIndex = cursor.getColumnIndex("ct_l");
+            int sizeIndex = cursor.getColumnIndex("m_size");
+            while (cursor.moveToNext()) {
+                Target target = new Target();
+                target.id = cursor.getLong(idIndex);
+                target.transactionId = transactionIndex >= 0 ? cursor.getString(transactionIndex) : null;
+                target.contentLocation = locationIndex >= 0 ? cursor.getString(locationIndex) : null;
+                target.size = sizeIndex >= 0 ? cursor.getLong(sizeIndex) : 0;
+                targets.add(target);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error sampling mailbox", e);
+        }
+        return targets;
+    }
+
+    private void complete(String key) {
+        long now = SystemClock.uptimeMillis();
+        completedAt.put(key, now);
+        lastActivity = now;
+    }
+
+    /**
+     * Receiver that writes to the harness's scratch state and reports each callback back to it
+     */
+    private class InstrumentedReceiver extends CustomMmsReceiver {
+        @Override
+        protected MmsProcessedLedger getLedger(Context context) {
+            return ledger;
+        }
+
+        @Override
+        protected MmsNotifier getNotifier() {
+            return notifier;
+        }
+
+        @Override
+        protected MmsGallerySink getGallerySink(Context context) {
+            return null;
+        }
+
+        @Override
+        protected MmsFileStore getFileStore(Context context) {
+            return store;
+        }
+
+        @Override
+        protected MmsTextJournal getJournal(Context context) {
+            return journal;
+        }
+
+        @Override
+        protected SharedPreferences getPrefs(Context context) {
+            return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        }
+
+        @Override
+        protected void onSmsReceived(Context context, String sender, String body) {
+            super.onSmsReceived(context, sender, body);
+            complete("sms:" + sender);
+        }
+
+        @Override
+        protected void onMmsImageReceived(Context context, Bitmap image, String contentType, String mmsId,
+                                          String sender, Uri partUri) {
+            super.onMmsImageReceived(context, image, contentType, mmsId, sender, partUri);
+            complete("mms:" + mmsId);
+        }
+
+        @Override
+        protected void onMmsTextReceived(Context context, String text, String mmsId, String sender) {
+            super.onMmsTextReceived(context, text, mmsId, sender);
+            complete("mms:" + mmsId);
+        }
+
+        @Override
+        protected void onMmsVideoReceived(Context context, Uri videoUri, String mmsId, String sender) {
+            super.onMmsVideoReceived(context, videoUri, mmsId, sender);
+            complete("mms:" + mmsId);
+        }
+    }
+
+    private static class Target {
+        long id;
+        String transactionId;
+        String contentLocation;
+        long size;
+    }
+
+    // M-Notification.ind for a stored message (OMA-TS-MMS_ENC)
+    static byte[] notificationPdu(String transactionId, String contentLocation, long size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(0x8C);
+        out.write(MmsNotificationParser.MESSAGE_TYPE_NOTIFICATION_IND);
+        if (transactionId != null) {
+            out.write(0x98);
+            writeTextString(out, transactionId);
+        }
+        out.write(0x8D);
+        out.write(0x92);
+        out.write(0x8E);
+        writeLongInteger(out, size);
+        out.write(0x83);
+        writeTextString(out, contentLocation);
+        return out.toByteArray();
+    }
+
+    private static void writeTextString(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        if (bytes.length > 0 && (bytes[0] & 0xFF) >= 0x80) {
+            out.write(0x7F);
+        }
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    private static void writeLongInteger(ByteArrayOutputStream out, long value) {
+        int length = 1;
+        while (length < 8 && (value >>> (length * 8)) != 0) {
+            length++;
+        }
+        out.write(length);
+        for (int i = length - 1; i >= 0; i--) {
+            out.write((int) (value >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    // 3GPP SMS-DELIVER with GSM 7-bit text; body must stick to the ASCII letters, digits and spaces
+    static byte[] smsDeliverPdu(String sender, String body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(0x00); // no SMSC address
+        out.write(0x04); // SMS-DELIVER, no more messages to send
+
+        String digits = sender.replaceAll("[^0-9]", "");
+        out.write(digits.length());
+        out.write(0x91); // international, ISDN numbering
+        for (int i = 0; i < digits.length(); i += 2) {
+            int low = digits.charAt(i) - '0';
+            int high = i + 1 < digits.length() ? digits.charAt(i + 1) - '0' : 0xF;
+            out.write((high << 4) | low);
+        }
+
+        out.write(0x00); // protocol identifier
+        out.write(0x00); // GSM 7-bit default alphabet
+        // Service centre time stamp 26-01-01 00:00:00 +0, in swapped semi-octets
+        out.write(new byte[]{0x62, 0x10, 0x10, 0x00, 0x00, 0x00, 0x00}, 0, 7);
+
+        out.write(body.length());
+        int bits = 0;
+        int accumulator = 0;
+        for (int i = 0; i < body.length(); i++) {
+            accumulator |= (body.charAt(i) & 0x7F) << bits;
+            bits += 7;
+            while (bits >= 8) {
+                out.write(accumulator & 0xFF);
+                accumulator >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0) {
+            out.write(accumulator & 0xFF);
+        }
+        return out.toByteArray();
+    }
+
+    private static int threadCount() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null) {
+            group = group.getParent();
+        }
+        return group.activeCount();
+    }
+
+    private static long heapInUse() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
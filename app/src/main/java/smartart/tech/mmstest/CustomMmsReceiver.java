@@ -1,17 +1,12 @@
 package smartart.tech.mmstest;
 
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.Build;
 import android.util.Log;
 
-import androidx.core.app.NotificationCompat;
-
-import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -23,14 +18,16 @@ import java.util.Locale;
 public class CustomMmsReceiver extends MmsReceiver {
 
     private static final String TAG = "CustomMmsReceiver";
-    private static final String CHANNEL_ID = "mms_channel";
     private static final String PREFS_NAME = "mms_prefs";
 
     @Override
     protected void onSmsReceived(Context context, String sender, String body) {
         super.onSmsReceived(context, sender, body);
 
-        Log.d(TAG, "Processing SMS from " + sender + ": " + body);
+        // Off unless enabled with: adb shell setprop log.tag.CustomMmsReceiver DEBUG
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Processing SMS from " + sender + ": " + body);
+        }
 
         // Save SMS to preferences for later reference
         saveSmsToPrefs(context, sender, body);
@@ -51,18 +48,16 @@ public class CustomMmsReceiver extends MmsReceiver {
     protected void onMmsImageReceived(Context context, Bitmap image, String contentType, String mmsId, String sender) {
         super.onMmsImageReceived(context, image, contentType, mmsId, sender);
 
-        Log.d(TAG, "Custom processing MMS image from " + sender);
-
-        // Create notification channel if needed
-        createNotificationChannel(context);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Custom processing MMS image from " + sender);
+        }
 
         // Save with custom naming
         String customFilename = generateCustomFilename(sender, mmsId);
-        MmsImageExtractor extractor = new MmsImageExtractor(context);
-        boolean saved = extractor.saveBitmapToFile(image, customFilename);
+        boolean saved = saveImageToFile(context, image, customFilename, mmsId);
 
         if (saved) {
-            Log.d(TAG, "Image saved with custom filename: " + customFilename);
+            MmsEventLog.record(MmsEventLog.Event.IMAGE_SAVED, mmsId, customFilename, null);
 
             // Show custom notification
             showImageReceivedNotification(context, sender, customFilename);
@@ -82,10 +77,12 @@ public class CustomMmsReceiver extends MmsReceiver {
     protected void onMmsTextReceived(Context context, String text, String mmsId, String sender) {
         super.onMmsTextReceived(context, text, mmsId, sender);
 
-        Log.d(TAG, "Custom processing MMS text from " + sender + ": " + text);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Custom processing MMS text from " + sender + ": " + text);
+        }
 
-        // Save text to file
-        saveMmsTextToFile(context, text, sender, mmsId);
+        // Save text to the journal
+        saveMmsTextToJournal(context, text, sender, mmsId);
 
         // Process text for keywords
         if (text.toLowerCase().contains("urgent") || text.toLowerCase().contains("emergency")) {
@@ -97,7 +94,9 @@ public class CustomMmsReceiver extends MmsReceiver {
     protected void onMmsVideoReceived(Context context, Uri videoUri, String mmsId, String sender) {
         super.onMmsVideoReceived(context, videoUri, mmsId, sender);
 
-        Log.d(TAG, "Custom processing MMS video from " + sender);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Custom processing MMS video from " + sender);
+        }
 
         // Save video metadata
         saveMmsVideoMetadata(context, videoUri, sender, mmsId);
@@ -106,8 +105,23 @@ public class CustomMmsReceiver extends MmsReceiver {
         showVideoReceivedNotification(context, sender);
     }
 
+    /**
+     * Preferences SMS and MMS metadata are saved to
+     */
+    protected SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Journal MMS text is appended to
+     */
+    protected MmsTextJournal getJournal(Context context) throws IOException {
+        return MmsTextJournal.get(context);
+    }
+
     /**
      * Generate custom filename based on sender and timestamp
+     * Look files up by MMS id with MmsFileStore.getFiles rather than by name
      */
     private String generateCustomFilename(String sender, String mmsId) {
         String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
@@ -115,78 +129,34 @@ public class CustomMmsReceiver extends MmsReceiver {
         return "mms_" + safeSender + "_" + timestamp + "_" + mmsId + ".jpg";
     }
 
-    /**
-     * Create notification channel for Android 8.0+
-     */
-    private void createNotificationChannel(Context context) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            CharSequence name = "MMS Notifications";
-            String description = "Notifications for received MMS messages";
-            int importance = NotificationManager.IMPORTANCE_HIGH;
-            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, name, importance);
-            channel.setDescription(description);
-
-            NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
-            notificationManager.createNotificationChannel(channel);
-        }
-    }
-
     /**
      * Show notification when image is received
      */
     private void showImageReceivedNotification(Context context, String sender, String filename) {
-        NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
-                .setSmallIcon(android.R.drawable.ic_dialog_info)
-                .setContentTitle("MMS Image Received")
-                .setContentText("Image from " + sender + " saved as " + filename)
-                .setPriority(NotificationCompat.PRIORITY_HIGH)
-                .setAutoCancel(true);
-
-        notificationManager.notify(1, builder.build());
+        getNotifier().notify(context, MmsNotifier.Kind.IMAGE,
+                "Image from " + sender + " saved as " + filename);
     }
 
     /**
-     * Show high priority notification for urgent messages
+     * Show high priority notification for urgent messages; the notifier posts it to the main thread
      */
     private void showHighPriorityNotification(Context context, String sender, String message, boolean isMms) {
-        NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-
-        String title = isMms ? "Urgent MMS" : "Urgent SMS";
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
-                .setSmallIcon(android.R.drawable.ic_dialog_alert)
-                .setContentTitle(title)
-                .setContentText("From " + sender + ": " + message)
-                .setPriority(NotificationCompat.PRIORITY_MAX)
-                .setAutoCancel(true)
-                .setVibrate(new long[]{0, 500, 1000, 500, 1000});
-
-        notificationManager.notify(2, builder.build());
+        String type = isMms ? "MMS" : "SMS";
+        getNotifier().notify(context, MmsNotifier.Kind.URGENT, type + " from " + sender + ": " + message);
     }
 
     /**
      * Show notification when video is received
      */
     private void showVideoReceivedNotification(Context context, String sender) {
-        NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
-                .setSmallIcon(android.R.drawable.ic_dialog_info)
-                .setContentTitle("MMS Video Received")
-                .setContentText("Video from " + sender)
-                .setPriority(NotificationCompat.PRIORITY_HIGH)
-                .setAutoCancel(true);
-
-        notificationManager.notify(3, builder.build());
+        getNotifier().notify(context, MmsNotifier.Kind.VIDEO, "Video from " + sender);
     }
 
     /**
      * Save SMS to SharedPreferences
      */
     private void saveSmsToPrefs(Context context, String sender, String body) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences prefs = getPrefs(context);
         SharedPreferences.Editor editor = prefs.edit();
 
         String timestamp = String.valueOf(System.currentTimeMillis());
@@ -198,7 +168,7 @@ public class CustomMmsReceiver extends MmsReceiver {
      * Save MMS metadata
      */
     private void saveMmsMetadata(Context context, String mmsId, String sender, String filename, String contentType) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences prefs = getPrefs(context);
         SharedPreferences.Editor editor = prefs.edit();
 
         String timestamp = String.valueOf(System.currentTimeMillis());
@@ -210,23 +180,22 @@ public class CustomMmsReceiver extends MmsReceiver {
     }
 
     /**
-     * Save MMS text to file
+     * Append MMS text to the text journal; see MmsTextJournalReader to read it back
      */
-    private void saveMmsTextToFile(Context context, String text, String sender, String mmsId) {
+    private void saveMmsTextToJournal(Context context, String text, String sender, String mmsId) {
+        long id;
+        try {
+            id = Long.parseLong(mmsId);
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+
         try {
-            String filename = "mms_text_" + mmsId + "_" + System.currentTimeMillis() + ".txt";
-            File file = new File(context.getExternalFilesDir(null), filename);
-
-            java.io.FileWriter writer = new java.io.FileWriter(file);
-            writer.write("From: " + sender + "\n");
-            writer.write("MMS ID: " + mmsId + "\n");
-            writer.write("Timestamp: " + new Date().toString() + "\n");
-            writer.write("Content:\n" + text);
-            writer.close();
-
-            Log.d(TAG, "MMS text saved to: " + filename);
-        } catch (Exception e) {
+            long seq = getJournal(context).append(id, sender, text);
+            MmsEventLog.record(MmsEventLog.Event.TEXT_JOURNALED, mmsId, seq);
+        } catch (IOException e) {
             Log.e(TAG, "Error saving MMS text", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
         }
     }
 
@@ -234,7 +203,7 @@ public class CustomMmsReceiver extends MmsReceiver {
      * Save MMS video metadata
      */
     private void saveMmsVideoMetadata(Context context, Uri videoUri, String sender, String mmsId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences prefs = getPrefs(context);
         SharedPreferences.Editor editor = prefs.edit();
 
         String timestamp = String.valueOf(System.currentTimeMillis());
@@ -253,7 +222,7 @@ public class CustomMmsReceiver extends MmsReceiver {
         int width = image.getWidth();
         int height = image.getHeight();
 
-        Log.d(TAG, "Image analysis - Size: " + width + "x" + height);
+        MmsEventLog.record(MmsEventLog.Event.IMAGE_INFO, mmsId, null, null, width, height);
 
         // Check if image is very small (might be emoji or icon)
         if (width < 100 && height < 100) {
@@ -296,7 +265,7 @@ public class CustomMmsReceiver extends MmsReceiver {
      * Get all saved MMS metadata
      */
     public void getAllSavedMmsMetadata(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences prefs = getPrefs(context);
 
         for (String key : prefs.getAll().keySet()) {
             if (key.startsWith("mms_")) {
@@ -0,0 +1,340 @@
+package smartart.tech.mmstest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk format shared by {@link MmsArchiveWriter} and {@link MmsArchiveReader}.
+ *
+ * An archive is a directory of append-only segment files plus a checkpoint:
+ * <pre>
+ *   segment-00000.mmsa   header | record* | index | tail
+ *   segment-00001.mmsa   ...
+ *   checkpoint           last durable position, used to resume an export
+ * </pre>
+ *
+ * Record (big-endian):
+ * <pre>
+ *   byte type | long mmsId | long partId | long date |
+ *   short ctLength | ct | short nameLength | name |
+ *   long payloadLength | payload | int crc32
+ * </pre>
+ * The CRC covers the header up to the payload length, then the payload, then
+ * the payload length itself (the length is patched in after streaming).
+ *
+ * The index is a list of {@link Entry} rows followed by a fixed tail:
+ * {@code long indexOffset | int entryCount | int indexCrc | int TAIL_MAGIC}.
+ * A segment without a tail (interrupted export) can still be read by scanning.
+ */
+public final class MmsArchive {
+
+    public static final byte TYPE_MESSAGE = 1;
+    public static final byte TYPE_PART = 2;
+
+    // Content type of TYPE_MESSAGE records, whose payload is "key=value" lines
+    public static final String MESSAGE_CONTENT_TYPE = "application/x-mms-meta";
+
+    static final int SEGMENT_MAGIC = 0x4D4D5341; // "MMSA"
+    static final int TAIL_MAGIC = 0x4D4D5349;    // "MMSI"
+    static final int CHECKPOINT_MAGIC = 0x4D4D5343; // "MMSC"
+    static final int VERSION = 1;
+
+    static final int SEGMENT_HEADER_SIZE = 8;
+    static final int TAIL_SIZE = 20;
+    static final String CHECKPOINT_NAME = "checkpoint";
+
+    // Content type and name are truncated to this many bytes, on a character boundary
+    static final int MAX_FIELD_BYTES = 1024;
+
+    private MmsArchive() {
+    }
+
+    /**
+     * One record in an archive, as listed by the index
+     */
+    public static class Entry {
+        final int segment;
+        final byte type;
+        final long mmsId;
+        final long partId;
+        final long date;
+        final String contentType;
+        final String name;
+        final long recordOffset;
+        final long payloadOffset;
+        final long payloadLength;
+
+        Entry(int segment, byte type, long mmsId, long partId, long date, String contentType,
+              String name, long recordOffset, long payloadOffset, long payloadLength) {
+            this.segment = segment;
+            this.type = type;
+            this.mmsId = mmsId;
+            this.partId = partId;
+            this.date = date;
+            this.contentType = contentType;
+            this.name = name;
+            this.recordOffset = recordOffset;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+
+        public int getSegment() { return segment; }
+        public byte getType() { return type; }
+        public long getMmsId() { return mmsId; }
+        public long getPartId() { return partId; }
+        public long getDate() { return date; }
+        public String getContentType() { return contentType; }
+        public String getName() { return name; }
+        public long getPayloadLength() { return payloadLength; }
+
+        @Override
+        public String toString() {
+            return "Entry{segment=" + segment + ", type=" + type + ", mmsId=" + mmsId
+                    + ", partId=" + partId + ", ct=" + contentType + ", length=" + payloadLength + "}";
+        }
+    }
+
+    static File segmentFile(File dir, int segment) {
+        return new File(dir, String.format(Locale.US, "segment-%05d.mmsa", segment));
+    }
+
+    /**
+     * List segment numbers present in an archive directory, in order
+     */
+    static int[] listSegments(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new int[0];
+        }
+
+        int count = 0;
+        int[] segments = new int[files.length];
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("segment-") && name.endsWith(".mmsa")) {
+                try {
+                    int segment = Integer.parseInt(name.substring(8, name.length() - 5));
+                    segments[count++] = segment;
+                } catch (NumberFormatException ignored) {
+                    // Not one of ours
+                }
+            }
+        }
+
+        int[] result = Arrays.copyOf(segments, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    // Size of the record header before the payload-length field
+    static int headerSize(byte[] contentType, byte[] name) {
+        return 1 + 8 + 8 + 8 + 2 + contentType.length + 2 + name.length;
+    }
+
+    static void putHeader(ByteBuffer buffer, byte type, long mmsId, long partId, long date,
+                          byte[] contentType, byte[] name) {
+        buffer.put(type);
+        buffer.putLong(mmsId);
+        buffer.putLong(partId);
+        buffer.putLong(date);
+        buffer.putShort((short) contentType.length);
+        buffer.put(contentType);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+    }
+
+    static byte[] utf8(String value) {
+        return utf8(value, MAX_FIELD_BYTES);
+    }
+
+    /**
+     * UTF-8 of value cut to at most max bytes without splitting a character;
+     * empty for null
+     */
+    static byte[] utf8(String value, int max) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= max) {
+            return bytes;
+        }
+        int end = max;
+        // Back up over continuation bytes (10xxxxxx) so no character is split
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    /**
+     * A string field as it reads back from utf8(): null when empty, truncated when long
+     */
+    static String stored(byte[] utf8) {
+        if (utf8.length == 0) {
+            return null;
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    static String string(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment at " + position);
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    static void writeEntry(ByteBuffer buffer, Entry entry) {
+        byte[] contentType = utf8(entry.contentType);
+        byte[] name = utf8(entry.name);
+        buffer.put(entry.type);
+        buffer.putLong(entry.mmsId);
+        buffer.putLong(entry.partId);
+        buffer.putLong(entry.date);
+        buffer.putLong(entry.recordOffset);
+        buffer.putLong(entry.payloadOffset);
+        buffer.putLong(entry.payloadLength);
+        buffer.putShort((short) contentType.length);
+        buffer.put(contentType);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+    }
+
+    static int entrySize(Entry entry) {
+        return 1 + 8 * 6 + 2 + utf8(entry.contentType).length + 2 + utf8(entry.name).length;
+    }
+
+    static Entry readEntry(ByteBuffer buffer, int segment) {
+        byte type = buffer.get();
+        long mmsId = buffer.getLong();
+        long partId = buffer.getLong();
+        long date = buffer.getLong();
+        long recordOffset = buffer.getLong();
+        long payloadOffset = buffer.getLong();
+        long payloadLength = buffer.getLong();
+        String contentType = string(buffer);
+        String name = string(buffer);
+        return new Entry(segment, type, mmsId, partId, date, contentType, name,
+                recordOffset, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Read the index from a segment's tail, or null if the segment has no valid tail
+     */
+    static List<Entry> readIndex(FileChannel channel, int segment) throws IOException {
+        long size = channel.size();
+        if (size < SEGMENT_HEADER_SIZE + TAIL_SIZE) {
+            return null;
+        }
+
+        ByteBuffer tail = ByteBuffer.allocate(TAIL_SIZE);
+        readFully(channel, tail, size - TAIL_SIZE);
+        long indexOffset = tail.getLong();
+        int entryCount = tail.getInt();
+        int indexCrc = tail.getInt();
+        if (tail.getInt() != TAIL_MAGIC || indexOffset < SEGMENT_HEADER_SIZE || indexOffset > size - TAIL_SIZE) {
+            return null;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) (size - TAIL_SIZE - indexOffset));
+        readFully(channel, index, indexOffset);
+
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.limit());
+        if ((int) crc.getValue() != indexCrc) {
+            return null;
+        }
+
+        List<Entry> entries = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            entries.add(readEntry(index, segment));
+        }
+        return entries;
+    }
+
+    /**
+     * Rebuild a segment's index by walking its records from the start.
+     * Stops at the first incomplete record or at limit, whichever comes first.
+     */
+    static List<Entry> scanRecords(FileChannel channel, int segment, long limit) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long end = Math.min(limit, channel.size());
+        long position = SEGMENT_HEADER_SIZE;
+        ByteBuffer fixed = ByteBuffer.allocate(1 + 8 + 8 + 8 + 2);
+
+        while (position + fixed.capacity() <= end) {
+            fixed.clear();
+            readFully(channel, fixed, position);
+            byte type = fixed.get();
+            long mmsId = fixed.getLong();
+            long partId = fixed.getLong();
+            long date = fixed.getLong();
+            int ctLength = fixed.getShort() & 0xFFFF;
+            if (type != TYPE_MESSAGE && type != TYPE_PART) {
+                break;
+            }
+
+            long cursor = position + fixed.capacity();
+            if (cursor + ctLength + 2 > end) {
+                break;
+            }
+            ByteBuffer rest = ByteBuffer.allocate(ctLength + 2);
+            readFully(channel, rest, cursor);
+            byte[] ct = new byte[ctLength];
+            rest.get(ct);
+            int nameLength = rest.getShort() & 0xFFFF;
+            cursor += ctLength + 2;
+
+            if (cursor + nameLength + 8 > end) {
+                break;
+            }
+            ByteBuffer nameAndLength = ByteBuffer.allocate(nameLength + 8);
+            readFully(channel, nameAndLength, cursor);
+            byte[] name = new byte[nameLength];
+            nameAndLength.get(name);
+            long payloadLength = nameAndLength.getLong();
+            cursor += nameLength + 8;
+
+            long recordEnd = cursor + payloadLength + 4;
+            if (payloadLength < 0 || recordEnd > end) {
+                break;
+            }
+
+            entries.add(new Entry(segment, type, mmsId, partId, date,
+                    ctLength == 0 ? null : new String(ct, StandardCharsets.UTF_8),
+                    nameLength == 0 ? null : new String(name, StandardCharsets.UTF_8),
+                    position, cursor, payloadLength));
+            position = recordEnd;
+        }
+
+        return entries;
+    }
+}
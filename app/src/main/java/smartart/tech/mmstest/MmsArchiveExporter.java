@@ -0,0 +1,156 @@
+package smartart.tech.mmstest;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams every MMS visible to {@link MmsImageExtractor#getAllMmsImages} into
+ * an {@link MmsArchive} without decoding anything.
+ *
+ * Messages are exported in ascending _id order and a checkpoint is taken
+ * after each one, so calling {@link #export} again on the same directory
+ * continues where the last run stopped. Blocks; call from a background thread.
+ */
+public class MmsArchiveExporter {
+
+    private static final String TAG = "MmsArchiveExporter";
+
+    private final Context context;
+    private final ContentResolver contentResolver;
+
+    // Interface for callback on export progress
+    public interface OnExportProgressListener {
+        void onMessageExported(long mmsId, int partCount, long bytesWritten);
+    }
+
+    public MmsArchiveExporter(Context context) {
+        this.context = context;
+        this.contentResolver = context.getContentResolver();
+    }
+
+    /**
+     * Export all MMS newer than the archive's checkpoint
+     *
+     * @return number of messages exported in this run
+     */
+    public int export(File archiveDir, OnExportProgressListener listener) throws IOException {
+        MmsArchiveWriter writer = MmsArchiveWriter.open(archiveDir);
+        MmsImageExtractor extractor = new MmsImageExtractor(context);
+        int exported = 0;
+        boolean completed = false;
+
+        try {
+            long lastId = writer.getCheckpointMmsId();
+            try (Cursor cursor = contentResolver.query(
+                    MmsRows.MMS_URI,
+                    MmsRows.Mms.PROJECTION,
+                    "_id > ?",
+                    new String[]{String.valueOf(lastId)},
+                    "_id ASC"
+            )) {
+                if (cursor == null) {
+                    completed = true;
+                    return 0;
+                }
+
+                MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+                while (cursor.moveToNext()) {
+                    row.read(cursor);
+                    long mmsId = row.id;
+                    long date = row.date;
+                    String sender = extractor.getMmsSender(String.valueOf(mmsId));
+
+                    String meta = "thread_id=" + row.threadId + "\n"
+                            + "msg_box=" + row.msgBox + "\n"
+                            + "read=" + (row.read ? 1 : 0) + "\n"
+                            + "sender=" + (sender != null ? sender : "") + "\n";
+                    writer.write(MmsArchive.TYPE_MESSAGE, mmsId, -1, date,
+                            MmsArchive.MESSAGE_CONTENT_TYPE, null, meta.getBytes(StandardCharsets.UTF_8));
+
+                    long[] stats = exportParts(writer, mmsId, date);
+                    writer.checkpoint(mmsId);
+                    exported++;
+
+                    if (listener != null) {
+                        listener.onMessageExported(mmsId, (int) stats[0], stats[1]);
+                    }
+                }
+                completed = true;
+            }
+        } finally {
+            if (completed) {
+                writer.close();
+            } else {
+                writer.abort();
+            }
+        }
+
+        Log.i(TAG, "Exported " + exported + " MMS to " + archiveDir);
+        return exported;
+    }
+
+    /**
+     * Write every part of one MMS, returning {partCount, bytesWritten}
+     */
+    private long[] exportParts(MmsArchiveWriter writer, long mmsId, long date) throws IOException {
+        long[] stats = new long[2];
+        try (Cursor partCursor = contentResolver.query(
+                MmsRows.PART_URI,
+                MmsRows.Part.PROJECTION,
+                "mid = ?",
+                new String[]{String.valueOf(mmsId)},
+                null
+        )) {
+            if (partCursor == null) {
+                return stats;
+            }
+
+            MmsRows.Part part = MmsRows.Part.bind(partCursor);
+            while (partCursor.moveToNext()) {
+                part.read(partCursor);
+                long partId = part.id;
+                String contentType = part.contentType;
+                String name = part.displayName();
+
+                MmsArchive.Entry entry;
+                String text = part.text;
+                if (text != null) {
+                    // Inline text parts (SMIL, text/plain) have no backing file
+                    entry = writer.write(MmsArchive.TYPE_PART, mmsId, partId, date, contentType, name,
+                            text.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    InputStream inputStream;
+                    try {
+                        inputStream = contentResolver.openInputStream(part.uri());
+                    } catch (IOException | SecurityException e) {
+                        // Nothing was written for this part yet, skip it and keep going
+                        Log.e(TAG, "Error opening MMS part " + partId, e);
+                        continue;
+                    }
+
+                    // A failure mid-record aborts the export; the next run resumes from the checkpoint
+                    try {
+                        entry = writer.write(MmsArchive.TYPE_PART, mmsId, partId, date, contentType, name,
+                                inputStream);
+                    } finally {
+                        if (inputStream != null) {
+                            inputStream.close();
+                        }
+                    }
+                }
+
+                stats[0]++;
+                stats[1] += entry.getPayloadLength();
+            }
+        }
+
+        return stats;
+    }
+}
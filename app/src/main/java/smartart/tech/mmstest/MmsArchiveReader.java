@@ -0,0 +1,146 @@
+package smartart.tech.mmstest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Random-access reader for an {@link MmsArchive} directory.
+ *
+ * Listing only reads each segment's trailing index; extracting an entry reads
+ * just that record and verifies its checksum.
+ */
+public class MmsArchiveReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final Map<Integer, FileChannel> channels = new HashMap<>();
+    private final List<RandomAccessFile> files = new ArrayList<>();
+
+    public MmsArchiveReader(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * List every record in the archive, in write order
+     */
+    public List<MmsArchive.Entry> listEntries() throws IOException {
+        List<MmsArchive.Entry> entries = new ArrayList<>();
+        for (int segment : MmsArchive.listSegments(dir)) {
+            FileChannel channel = channel(segment);
+            List<MmsArchive.Entry> index = MmsArchive.readIndex(channel, segment);
+            if (index == null) {
+                // Segment from an interrupted export, walk the records instead
+                index = MmsArchive.scanRecords(channel, segment, Long.MAX_VALUE);
+            }
+            entries.addAll(index);
+        }
+        return entries;
+    }
+
+    /**
+     * List the records belonging to one MMS
+     */
+    public List<MmsArchive.Entry> findEntries(long mmsId) throws IOException {
+        List<MmsArchive.Entry> result = new ArrayList<>();
+        for (MmsArchive.Entry entry : listEntries()) {
+            if (entry.mmsId == mmsId) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy an entry's payload to out, verifying its checksum
+     */
+    public void extract(MmsArchive.Entry entry, OutputStream out) throws IOException {
+        FileChannel channel = channel(entry.segment);
+        CRC32 crc = new CRC32();
+
+        // Header, without the payload length field
+        int headerLength = (int) (entry.payloadOffset - 8 - entry.recordOffset);
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        MmsArchive.readFully(channel, header, entry.recordOffset);
+        crc.update(header.array(), 0, headerLength);
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = entry.payloadOffset;
+        long remaining = entry.payloadLength;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, remaining));
+            MmsArchive.readFully(channel, buffer, position);
+            crc.update(buffer.array(), 0, buffer.limit());
+            out.write(buffer.array(), 0, buffer.limit());
+            position += buffer.limit();
+            remaining -= buffer.limit();
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(12);
+        trailer.putLong(entry.payloadLength);
+        crc.update(trailer.array(), 0, 8);
+        trailer.clear();
+        trailer.position(8);
+        MmsArchive.readFully(channel, trailer, position);
+        trailer.position(8);
+        if (trailer.getInt() != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch for " + entry);
+        }
+    }
+
+    /**
+     * Check every record in the archive, returning the entries that fail
+     */
+    public List<MmsArchive.Entry> verify() throws IOException {
+        List<MmsArchive.Entry> corrupt = new ArrayList<>();
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        for (MmsArchive.Entry entry : listEntries()) {
+            try {
+                extract(entry, discard);
+            } catch (IOException e) {
+                corrupt.add(entry);
+            }
+        }
+        return corrupt;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RandomAccessFile file : files) {
+            file.close();
+        }
+        files.clear();
+        channels.clear();
+    }
+
+    private FileChannel channel(int segment) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel == null) {
+            RandomAccessFile file = new RandomAccessFile(MmsArchive.segmentFile(dir, segment), "r");
+            files.add(file);
+            channel = file.getChannel();
+            channels.put(segment, channel);
+        }
+        return channel;
+    }
+}
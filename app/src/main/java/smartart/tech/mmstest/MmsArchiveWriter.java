@@ -0,0 +1,285 @@
+package smartart.tech.mmstest;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only writer for an {@link MmsArchive} directory.
+ *
+ * Payloads are streamed through a fixed-size buffer, so memory use does not
+ * depend on attachment size. Opening a directory that already holds an
+ * archive resumes from its last checkpoint: anything written after the
+ * checkpoint is truncated away and the index is rebuilt from the records.
+ */
+public class MmsArchiveWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_ENTRIES_PER_SEGMENT = 32 * 1024;
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] copyBuffer = new byte[BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    private int segment;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long position;
+    private List<MmsArchive.Entry> entries = new ArrayList<>();
+    private long checkpointMmsId = -1;
+    // Highest MMS id written since opening; close() checkpoints it
+    private long lastMmsId = -1;
+
+    private MmsArchiveWriter(File dir, long maxSegmentBytes) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Open an archive for writing, resuming from its checkpoint if there is one
+     */
+    public static MmsArchiveWriter open(File dir, long maxSegmentBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create archive directory " + dir);
+        }
+
+        MmsArchiveWriter writer = new MmsArchiveWriter(dir, maxSegmentBytes);
+        writer.resume();
+        return writer;
+    }
+
+    public static MmsArchiveWriter open(File dir) throws IOException {
+        return open(dir, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Highest MMS id covered by the last checkpoint, or -1 for a new archive
+     */
+    public long getCheckpointMmsId() {
+        return checkpointMmsId;
+    }
+
+    /**
+     * Append a record, streaming its payload from the given input
+     */
+    public MmsArchive.Entry write(byte type, long mmsId, long partId, long date, String contentType,
+                                  String name, InputStream payload) throws IOException {
+        rollIfNeeded();
+
+        byte[] ct = MmsArchive.utf8(contentType);
+        byte[] nameBytes = MmsArchive.utf8(name);
+        long recordOffset = position;
+
+        buffer.clear();
+        MmsArchive.putHeader(buffer, type, mmsId, partId, date, ct, nameBytes);
+        buffer.flip();
+        crc.reset();
+        crc.update(buffer.array(), 0, buffer.limit());
+        MmsArchive.writeFully(channel, buffer, position);
+        position += MmsArchive.headerSize(ct, nameBytes);
+
+        // Leave room for the payload length, patched once the payload is written
+        long lengthOffset = position;
+        position += 8;
+        long payloadOffset = position;
+
+        long payloadLength = 0;
+        if (payload != null) {
+            int read;
+            while ((read = payload.read(copyBuffer)) != -1) {
+                crc.update(copyBuffer, 0, read);
+                MmsArchive.writeFully(channel, ByteBuffer.wrap(copyBuffer, 0, read), position);
+                position += read;
+                payloadLength += read;
+            }
+        }
+
+        buffer.clear();
+        buffer.putLong(payloadLength);
+        crc.update(buffer.array(), 0, 8);
+        buffer.flip();
+        MmsArchive.writeFully(channel, buffer, lengthOffset);
+
+        buffer.clear();
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        MmsArchive.writeFully(channel, buffer, position);
+        position += 4;
+
+        // With the fields as stored, so the entry matches what a reader lists
+        MmsArchive.Entry entry = new MmsArchive.Entry(segment, type, mmsId, partId, date,
+                MmsArchive.stored(ct), MmsArchive.stored(nameBytes),
+                recordOffset, payloadOffset, payloadLength);
+        entries.add(entry);
+        lastMmsId = Math.max(lastMmsId, mmsId);
+        return entry;
+    }
+
+    public MmsArchive.Entry write(byte type, long mmsId, long partId, long date, String contentType,
+                                  String name, byte[] payload) throws IOException {
+        return write(type, mmsId, partId, date, contentType, name,
+                payload != null ? new ByteArrayInputStream(payload) : null);
+    }
+
+    /**
+     * Make everything written so far durable and record mmsId as the resume point
+     */
+    public void checkpoint(long mmsId) throws IOException {
+        channel.force(false);
+        writeCheckpoint(segment, position, mmsId);
+        checkpointMmsId = mmsId;
+    }
+
+    /**
+     * Write the index of the current segment and close it
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        finishSegment();
+        // Everything written is indexed now, so the next resume starts after it in a fresh segment
+        checkpointMmsId = Math.max(checkpointMmsId, lastMmsId);
+        writeCheckpoint(segment + 1, 0, checkpointMmsId);
+    }
+
+    /**
+     * Close without writing an index, leaving the archive to be resumed from its checkpoint
+     */
+    public void abort() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+            channel = null;
+        }
+    }
+
+    private void rollIfNeeded() throws IOException {
+        if (position >= maxSegmentBytes || entries.size() >= MAX_ENTRIES_PER_SEGMENT) {
+            finishSegment();
+            segment++;
+            openSegment(0);
+        }
+    }
+
+    private void finishSegment() throws IOException {
+        long indexOffset = position;
+        CRC32 indexCrc = new CRC32();
+
+        for (MmsArchive.Entry entry : entries) {
+            ByteBuffer row = ByteBuffer.allocate(MmsArchive.entrySize(entry));
+            MmsArchive.writeEntry(row, entry);
+            indexCrc.update(row.array(), 0, row.position());
+            row.flip();
+            MmsArchive.writeFully(channel, row, position);
+            position += row.limit();
+        }
+
+        buffer.clear();
+        buffer.putLong(indexOffset);
+        buffer.putInt(entries.size());
+        buffer.putInt((int) indexCrc.getValue());
+        buffer.putInt(MmsArchive.TAIL_MAGIC);
+        buffer.flip();
+        MmsArchive.writeFully(channel, buffer, position);
+        position += MmsArchive.TAIL_SIZE;
+
+        channel.force(false);
+        file.close();
+        file = null;
+        channel = null;
+        entries = new ArrayList<>();
+    }
+
+    private void resume() throws IOException {
+        int checkpointSegment = 0;
+        long checkpointOffset = 0;
+
+        File checkpointFile = new File(dir, MmsArchive.CHECKPOINT_NAME);
+        if (checkpointFile.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile));
+            try {
+                if (in.readInt() != MmsArchive.CHECKPOINT_MAGIC) {
+                    throw new IOException("Corrupt archive checkpoint " + checkpointFile);
+                }
+                checkpointSegment = in.readInt();
+                checkpointOffset = in.readLong();
+                checkpointMmsId = in.readLong();
+            } finally {
+                in.close();
+            }
+        } else if (MmsArchive.listSegments(dir).length > 0) {
+            throw new IOException("Archive " + dir + " has segments but no checkpoint");
+        }
+
+        // Drop anything written after the checkpoint
+        for (int existing : MmsArchive.listSegments(dir)) {
+            if (existing > checkpointSegment && !MmsArchive.segmentFile(dir, existing).delete()) {
+                throw new IOException("Cannot delete segment " + existing);
+            }
+        }
+
+        segment = checkpointSegment;
+        openSegment(checkpointOffset);
+    }
+
+    private void openSegment(long resumeOffset) throws IOException {
+        File segmentFile = MmsArchive.segmentFile(dir, segment);
+        file = new RandomAccessFile(segmentFile, "rw");
+        channel = file.getChannel();
+
+        if (resumeOffset < MmsArchive.SEGMENT_HEADER_SIZE) {
+            channel.truncate(0);
+            buffer.clear();
+            buffer.putInt(MmsArchive.SEGMENT_MAGIC);
+            buffer.putInt(MmsArchive.VERSION);
+            buffer.flip();
+            MmsArchive.writeFully(channel, buffer, 0);
+            position = MmsArchive.SEGMENT_HEADER_SIZE;
+            entries = new ArrayList<>();
+        } else {
+            if (channel.size() < resumeOffset) {
+                throw new IOException("Segment " + segment + " is shorter than its checkpoint");
+            }
+            channel.truncate(resumeOffset);
+            entries = MmsArchive.scanRecords(channel, segment, resumeOffset);
+            position = resumeOffset;
+        }
+    }
+
+    private void writeCheckpoint(int checkpointSegment, long offset, long mmsId) throws IOException {
+        File tmp = new File(dir, MmsArchive.CHECKPOINT_NAME + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MmsArchive.CHECKPOINT_MAGIC);
+            out.writeInt(checkpointSegment);
+            out.writeLong(offset);
+            out.writeLong(mmsId);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(new File(dir, MmsArchive.CHECKPOINT_NAME))) {
+            throw new IOException("Cannot update archive checkpoint in " + dir);
+        }
+    }
+}
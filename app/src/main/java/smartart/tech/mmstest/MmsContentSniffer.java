@@ -0,0 +1,197 @@
+package smartart.tech.mmstest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Identifies MMS part payloads from their first bytes, regardless of the
+ * declared content type.
+ *
+ * Senders and gateways regularly mislabel parts (a JPEG sent as
+ * application/octet-stream, a 3GP clip sent as image/jpeg, AMR audio sent as
+ * text/plain). Sniffing {@link #HEADER_BYTES} bytes first lets the
+ * extractor route a part to the right handler, or skip it, before paying
+ * for a decode that would fail.
+ */
+public final class MmsContentSniffer {
+
+    // Enough for every signature below
+    static final int HEADER_BYTES = 32;
+
+    public enum Kind {
+        JPEG("image/jpeg"),
+        PNG("image/png"),
+        GIF("image/gif"),
+        WEBP("image/webp"),
+        HEIF("image/heif"),
+        AVIF("image/avif"),
+        MP4("video/mp4"),
+        THREE_GPP("video/3gpp"),
+        AMR("audio/amr"),
+        TEXT("text/plain"),
+        UNKNOWN(null);
+
+        public final String mimeType;
+
+        Kind(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public boolean isImage() {
+            return mimeType != null && mimeType.startsWith("image/");
+        }
+
+        public boolean isVideo() {
+            return mimeType != null && mimeType.startsWith("video/");
+        }
+    }
+
+    /**
+     * Sniffed type and size of one part. Reusable across calls.
+     */
+    public static class Result {
+        public Kind kind = Kind.UNKNOWN;
+        // Payload size in bytes, -1 if the provider doesn't report it
+        public long size = -1;
+
+        public void reset() {
+            kind = Kind.UNKNOWN;
+            size = -1;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " (" + size + " bytes)";
+        }
+    }
+
+    private MmsContentSniffer() {
+    }
+
+    /**
+     * Whether a part declared with this content type is worth sniffing.
+     * Types the extractor never handles (SMIL, vCard, ...) are not.
+     */
+    static boolean shouldSniff(String contentType) {
+        return contentType == null
+                || contentType.startsWith("image/")
+                || contentType.startsWith("video/")
+                || contentType.equals("text/plain")
+                || contentType.equals("application/octet-stream");
+    }
+
+    public static Kind sniff(byte[] header, int length) {
+        Kind kind = sniffSignature(header, length);
+        if (kind != Kind.UNKNOWN) {
+            return kind;
+        }
+        return looksLikeText(header, length) ? Kind.TEXT : Kind.UNKNOWN;
+    }
+
+    /**
+     * Sniff a part declared as declaredType. A part declared text/plain stays
+     * text unless it carries a binary signature: text in a legacy or UTF-16
+     * encoding has no byte order mark and doesn't look like text to
+     * {@link #sniff(byte[], int)}.
+     */
+    public static Kind sniff(byte[] header, int length, String declaredType) {
+        Kind kind = sniffSignature(header, length);
+        if (kind != Kind.UNKNOWN) {
+            return kind;
+        }
+        if ("text/plain".equals(declaredType) && length > 0) {
+            return Kind.TEXT;
+        }
+        return looksLikeText(header, length) ? Kind.TEXT : Kind.UNKNOWN;
+    }
+
+    // The media formats, by their magic numbers
+    private static Kind sniffSignature(byte[] header, int length) {
+        if (length >= 3 && u8(header, 0) == 0xFF && u8(header, 1) == 0xD8 && u8(header, 2) == 0xFF) {
+            return Kind.JPEG;
+        }
+        if (length >= 8 && u8(header, 0) == 0x89 && ascii(header, length, 1, "PNG")
+                && u8(header, 4) == 0x0D && u8(header, 5) == 0x0A && u8(header, 6) == 0x1A && u8(header, 7) == 0x0A) {
+            return Kind.PNG;
+        }
+        if (length >= 6 && (ascii(header, length, 0, "GIF87a") || ascii(header, length, 0, "GIF89a"))) {
+            return Kind.GIF;
+        }
+        if (length >= 12 && ascii(header, length, 0, "RIFF") && ascii(header, length, 8, "WEBP")) {
+            return Kind.WEBP;
+        }
+        if (length >= 12 && ascii(header, length, 4, "ftyp")) {
+            return sniffIsoBrand(header, length);
+        }
+        if (length >= 5 && ascii(header, length, 0, "#!AMR")) {
+            return Kind.AMR;
+        }
+        return Kind.UNKNOWN;
+    }
+
+    /**
+     * Sniff a part declared as declaredType from the buffer's position without moving it
+     */
+    public static Kind sniff(ByteBuffer data, String declaredType) {
+        int length = Math.min(HEADER_BYTES, data.remaining());
+        byte[] header = new byte[length];
+        data.duplicate().get(header);
+        return sniff(header, length, declaredType);
+    }
+
+    // ISO base media file: the major brand after "ftyp" tells HEIF, AVIF, 3GP and MP4 apart
+    private static Kind sniffIsoBrand(byte[] header, int length) {
+        if (ascii(header, length, 8, "heic") || ascii(header, length, 8, "heix") || ascii(header, length, 8, "hevc")
+                || ascii(header, length, 8, "hevx") || ascii(header, length, 8, "mif1") || ascii(header, length, 8, "msf1")) {
+            return Kind.HEIF;
+        }
+        if (ascii(header, length, 8, "avif") || ascii(header, length, 8, "avis")) {
+            return Kind.AVIF;
+        }
+        if (ascii(header, length, 8, "3gp") || ascii(header, length, 8, "3gg") || ascii(header, length, 8, "3g2")) {
+            return Kind.THREE_GPP;
+        }
+        return Kind.MP4;
+    }
+
+    // Byte order marks, or no control characters other than whitespace and nothing invalid as UTF-8
+    private static boolean looksLikeText(byte[] header, int length) {
+        if (length == 0) {
+            return false;
+        }
+        if (length >= 3 && u8(header, 0) == 0xEF && u8(header, 1) == 0xBB && u8(header, 2) == 0xBF) {
+            return true;
+        }
+        if (length >= 2 && ((u8(header, 0) == 0xFE && u8(header, 1) == 0xFF)
+                || (u8(header, 0) == 0xFF && u8(header, 1) == 0xFE))) {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = u8(header, i);
+            if (b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f') {
+                return false;
+            }
+            // DEL, and bytes that never occur in UTF-8
+            if (b == 0x7F || b == 0xC0 || b == 0xC1 || b >= 0xF5) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Only the first length bytes of header are valid
+    private static boolean ascii(byte[] header, int length, int offset, String expected) {
+        if (offset + expected.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (header[offset + i] != (byte) expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u8(byte[] header, int index) {
+        return header[index] & 0xFF;
+    }
+}
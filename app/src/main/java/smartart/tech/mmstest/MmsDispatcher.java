@@ -0,0 +1,260 @@
+package smartart.tech.mmstest;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Priority-aware dispatch for MMS work, shared by every receiver instance.
+ *
+ * Lanes:
+ * - URGENT: the text and keyword pass of a message already in the provider
+ *   (sender and text parts). Runs on the triage thread ahead of every queued
+ *   TRIAGE task, so an urgent message waits at most for the task in progress.
+ * - TRIAGE: provider lookups for WAP push notifications, on the same thread.
+ *   At most {@link #MAX_TRIAGE_DEPTH} wait; lookups queued past that are
+ *   shed to BULK, so a burst of pushes can't build a backlog on the thread.
+ * - HEAVY:  decode/save/gallery work for a specific incoming MMS.
+ * - BULK:   full mailbox scans (the checkForNewMms fallback) and shed lookups.
+ *
+ * HEAVY and BULK share one background thread. HEAVY goes first, but a BULK
+ * task is run after {@link #MAX_HEAVY_IN_A_ROW} heavy tasks or once it has
+ * waited {@link #MAX_BULK_WAIT_MS}, so bulk work is never starved.
+ *
+ * Delayed work (waiting for the provider to store a message) is held by a
+ * scheduler thread and only enters a lane when due, so sleeps never occupy
+ * a lane thread.
+ */
+public class MmsDispatcher {
+
+    private static final String TAG = "MmsDispatcher";
+
+    public enum Lane {
+        URGENT,
+        TRIAGE,
+        HEAVY,
+        BULK
+    }
+
+    static final int MAX_HEAVY_IN_A_ROW = 4;
+    static final long MAX_BULK_WAIT_MS = 5000;
+
+    static final int MAX_TRIAGE_DEPTH = 8;
+    // Triage thread tasks taking longer than this are counted and logged; an
+    // urgent task queued meanwhile waits that long
+    static final long TRIAGE_BUDGET_MS = 250;
+
+    private static final MmsDispatcher INSTANCE = new MmsDispatcher();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Object triageLock = new Object();
+    private final ArrayDeque<QueuedTask> urgentQueue = new ArrayDeque<>();
+    private final ArrayDeque<QueuedTask> triageQueue = new ArrayDeque<>();
+
+    private final Object lock = new Object();
+    private final ArrayDeque<QueuedTask> heavyQueue = new ArrayDeque<>();
+    private final ArrayDeque<QueuedTask> bulkQueue = new ArrayDeque<>();
+    private int heavyInARow;
+
+    private MmsDispatcher() {
+        Thread triage = threadFactory("mms-triage", Process.THREAD_PRIORITY_FOREGROUND)
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTriageLane();
+                    }
+                });
+        triage.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                threadFactory("mms-scheduler", Process.THREAD_PRIORITY_DEFAULT));
+
+        Thread worker = threadFactory("mms-heavy", Process.THREAD_PRIORITY_BACKGROUND)
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runHeavyLane();
+                    }
+                });
+        worker.start();
+    }
+
+    public static MmsDispatcher get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Run a task on the given lane as soon as possible
+     */
+    public void execute(Lane lane, Runnable task) {
+        final long enqueuedAt = System.nanoTime();
+
+        if (lane == Lane.URGENT || lane == Lane.TRIAGE) {
+            synchronized (triageLock) {
+                QueuedTask queued = new QueuedTask(task, enqueuedAt);
+                if (lane == Lane.URGENT) {
+                    urgentQueue.addLast(queued);
+                    triageLock.notifyAll();
+                    return;
+                }
+                if (triageQueue.size() < MAX_TRIAGE_DEPTH) {
+                    triageQueue.addLast(queued);
+                    triageLock.notifyAll();
+                    return;
+                }
+            }
+            // Triage is backed up, look this up in the background instead
+            MmsMetrics.get().increment(MmsMetrics.Counter.TRIAGE_SHED);
+            lane = Lane.BULK;
+        }
+
+        synchronized (lock) {
+            QueuedTask queued = new QueuedTask(task, enqueuedAt);
+            if (lane == Lane.HEAVY) {
+                heavyQueue.addLast(queued);
+            } else {
+                bulkQueue.addLast(queued);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Run a task on the given lane after a delay
+     */
+    public void schedule(Lane lane, Runnable task, long delayMs) {
+        final long scheduledAt = System.nanoTime();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                MmsMetrics.get().record(MmsMetrics.Stage.WAIT_FOR_PROVIDER, scheduledAt);
+                execute(lane, task);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int getQueueDepth(Lane lane) {
+        synchronized (triageLock) {
+            if (lane == Lane.URGENT) {
+                return urgentQueue.size();
+            } else if (lane == Lane.TRIAGE) {
+                return triageQueue.size();
+            }
+        }
+        synchronized (lock) {
+            if (lane == Lane.HEAVY) {
+                return heavyQueue.size();
+            } else if (lane == Lane.BULK) {
+                return bulkQueue.size();
+            }
+        }
+        return -1;
+    }
+
+    private void runTriageLane() {
+        while (true) {
+            QueuedTask next;
+            boolean urgent;
+            synchronized (triageLock) {
+                while (urgentQueue.isEmpty() && triageQueue.isEmpty()) {
+                    try {
+                        triageLock.wait();
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Triage lane interrupted", e);
+                        return;
+                    }
+                }
+                // Urgent work always goes first; it is rare and cheap
+                urgent = !urgentQueue.isEmpty();
+                next = urgent ? urgentQueue.pollFirst() : triageQueue.pollFirst();
+            }
+
+            MmsMetrics.get().record(urgent ? MmsMetrics.Stage.URGENT_QUEUE_WAIT
+                    : MmsMetrics.Stage.TRIAGE_QUEUE_WAIT, next.enqueuedAt);
+            long start = System.nanoTime();
+            runSafely(next.task);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (elapsedMs > TRIAGE_BUDGET_MS) {
+                MmsMetrics.get().increment(MmsMetrics.Counter.TRIAGE_OVER_BUDGET);
+                Log.w(TAG, (urgent ? "Urgent" : "Triage") + " task took " + elapsedMs + " ms");
+            }
+        }
+    }
+
+    private void runHeavyLane() {
+        while (true) {
+            QueuedTask next;
+            synchronized (lock) {
+                while (heavyQueue.isEmpty() && bulkQueue.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Heavy lane interrupted", e);
+                        return;
+                    }
+                }
+                next = pickNext();
+            }
+
+            MmsMetrics.get().record(MmsMetrics.Stage.HEAVY_QUEUE_WAIT, next.enqueuedAt);
+            runSafely(next.task);
+        }
+    }
+
+    // Must hold lock
+    private QueuedTask pickNext() {
+        QueuedTask oldestBulk = bulkQueue.peekFirst();
+        boolean bulkStarving = oldestBulk != null
+                && (heavyInARow >= MAX_HEAVY_IN_A_ROW
+                || TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestBulk.enqueuedAt) >= MAX_BULK_WAIT_MS);
+
+        if (!heavyQueue.isEmpty() && !bulkStarving) {
+            heavyInARow++;
+            return heavyQueue.pollFirst();
+        }
+
+        heavyInARow = 0;
+        return bulkQueue.isEmpty() ? heavyQueue.pollFirst() : bulkQueue.pollFirst();
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // Keep the lane alive for the next message
+            Log.e(TAG, "MMS task failed", e);
+        }
+    }
+
+    static ThreadFactory threadFactory(String name, int priority) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        runnable.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static class QueuedTask {
+        final Runnable task;
+        final long enqueuedAt;
+
+        QueuedTask(Runnable task, long enqueuedAt) {
+            this.task = task;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
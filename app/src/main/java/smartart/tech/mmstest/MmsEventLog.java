@@ -0,0 +1,166 @@
+package smartart.tech.mmstest;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocation-free structured event recorder for the MMS pipeline.
+ *
+ * Events are written into a preallocated ring buffer as an event id plus
+ * references to strings the caller already holds and two primitive fields.
+ * Nothing is formatted until {@link #dump(String, PrintWriter)} is called.
+ * When disabled, {@link #record} is a single volatile read.
+ *
+ * Usage:
+ * <pre>
+ *     MmsEventLog.setEnabled(true);
+ *     MmsEventLog.record(MmsEventLog.Event.PART_FOUND, mmsId, contentType, null, partId, 0);
+ * </pre>
+ */
+public final class MmsEventLog {
+
+    /**
+     * Event types. The format uses positional arguments:
+     * %1$s..%3$s are the three references, %4$d and %5$d the two longs.
+     */
+    public enum Event {
+        BROADCAST("broadcast action=%1$s"),
+        WAP_PUSH("wap push trId=%1$s size=%4$d"),
+        SMS_RECEIVED("sms from=%1$s length=%4$d"),
+        MMS_SCAN_ROW("scan mms=%1$s date=%4$d"),
+        PART_FOUND("part mms=%1$s part=%4$d ct=%2$s"),
+        PART_SNIFFED("sniff mms=%1$s ct=%2$s as=%3$s size=%4$d"),
+        IMAGE_FOUND("image mms=%1$s ct=%2$s sender=%3$s"),
+        TEXT_FOUND("text mms=%1$s sender=%3$s length=%4$d"),
+        VIDEO_FOUND("video mms=%1$s uri=%2$s sender=%3$s"),
+        IMAGE_SAVED("saved mms=%1$s file=%2$s"),
+        TEXT_JOURNALED("journaled mms=%1$s seq=%4$d"),
+        IMAGE_INFO("image mms=%1$s size=%4$dx%5$d"),
+        DUPLICATE("duplicate mms=%1$s via=%2$s");
+
+        private final String format;
+
+        Event(String format) {
+            this.format = format;
+        }
+    }
+
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile boolean enabled;
+
+    private static final AtomicLong sequence = new AtomicLong();
+    // Sequence number of the event held by each slot, -1 while it's being written
+    private static final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+    private static final Event[] events = new Event[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final Object[] refsA = new Object[CAPACITY];
+    private static final Object[] refsB = new Object[CAPACITY];
+    private static final Object[] refsC = new Object[CAPACITY];
+    private static final long[] valuesA = new long[CAPACITY];
+    private static final long[] valuesB = new long[CAPACITY];
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            stamps.set(i, -1);
+        }
+    }
+
+    private MmsEventLog() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static void record(Event event, Object a) {
+        if (enabled) {
+            write(event, a, null, null, 0, 0);
+        }
+    }
+
+    public static void record(Event event, Object a, long valueA) {
+        if (enabled) {
+            write(event, a, null, null, valueA, 0);
+        }
+    }
+
+    public static void record(Event event, Object a, Object b, Object c) {
+        if (enabled) {
+            write(event, a, b, c, 0, 0);
+        }
+    }
+
+    public static void record(Event event, Object a, Object b, Object c, long valueA, long valueB) {
+        if (enabled) {
+            write(event, a, b, c, valueA, valueB);
+        }
+    }
+
+    private static void write(Event event, Object a, Object b, Object c, long valueA, long valueB) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq & MASK);
+
+        stamps.set(slot, -1);
+        events[slot] = event;
+        times[slot] = System.nanoTime();
+        refsA[slot] = a;
+        refsB[slot] = b;
+        refsC[slot] = c;
+        valuesA[slot] = valueA;
+        valuesB[slot] = valueB;
+        stamps.lazySet(slot, seq);
+    }
+
+    /**
+     * Discard all recorded events
+     */
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            stamps.set(i, -1);
+            refsA[i] = null;
+            refsB[i] = null;
+            refsC[i] = null;
+        }
+    }
+
+    /**
+     * Format the recorded events, oldest first
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        long end = sequence.get();
+        long begin = Math.max(0, end - CAPACITY);
+        long now = System.nanoTime();
+
+        writer.println(prefix + "MMS event log (enabled=" + enabled + ", recorded=" + end + ")");
+        for (long seq = begin; seq < end; seq++) {
+            int slot = (int) (seq & MASK);
+            if (stamps.get(slot) != seq) {
+                continue;
+            }
+
+            Event event = events[slot];
+            long time = times[slot];
+            Object a = refsA[slot];
+            Object b = refsB[slot];
+            Object c = refsC[slot];
+            long valueA = valuesA[slot];
+            long valueB = valuesB[slot];
+
+            // Skip slots that were overwritten while we were reading them
+            if (stamps.get(slot) != seq || event == null) {
+                continue;
+            }
+
+            writer.println(prefix + String.format(Locale.US, "  -%.3fs ", (now - time) / 1e9)
+                    + String.format(Locale.US, event.format, a, b, c, valueA, valueB));
+        }
+    }
+}
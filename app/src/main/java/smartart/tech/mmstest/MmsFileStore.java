@@ -0,0 +1,580 @@
+package smartart.tech.mmstest;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Size-bounded store for the files the app writes under getExternalFilesDir.
+ *
+ * Every file written through {@link #put} is recorded in an index kept in
+ * memory and logged to {@code getFilesDir()/file-store.idx}, so
+ * {@link #getFiles(long)} answers "which files belong to MMS X" without
+ * listing the directory. Once the stored bytes pass the quota, or files pass
+ * the maximum age, a low-priority background pass deletes least recently
+ * used files down to {@link #LOW_WATER} of the quota and rewrites the index
+ * log without the removed entries.
+ *
+ * Reads through {@link #getFiles} and {@link #getFile} are logged as touches,
+ * so the LRU order survives a restart; a rewrite stores the entries least
+ * recently used first, which replays to the same order. Touches are held in
+ * memory and written together {@link #TOUCH_FLUSH_DELAY_MS} after the first
+ * one, ahead of the next add or delete, or by a rewrite, whichever is first;
+ * a crash loses at most that much of the read order.
+ *
+ * Index log records (big-endian, torn tail ignored):
+ * <pre>
+ *   ADD:   byte 'A' | UTF name | long mmsId | long bytes | long lastAccess
+ *   DEL:   byte 'D' | UTF name
+ *   TOUCH: byte 'T' | UTF name | long lastAccess
+ * </pre>
+ *
+ * Files the app wrote before the index existed (names matching
+ * {@link #ADOPTABLE_NAME}) are adopted with an unknown MMS id when it is
+ * first created, so they count toward the quota too. Anything else in the
+ * directory is left alone.
+ */
+public class MmsFileStore {
+
+    private static final String TAG = "MmsFileStore";
+
+    public static final long DEFAULT_QUOTA_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+    // Eviction stops once usage is back under this share of the quota
+    static final float LOW_WATER = 0.9f;
+    static final String INDEX_NAME = "file-store.idx";
+    static final long TOUCH_FLUSH_DELAY_MS = 10_000;
+    // Images saved by the receivers and MmsUsageExample: mms_*.jpg and latest_image_*.jpg
+    static final Pattern ADOPTABLE_NAME = Pattern.compile("(mms|latest_image)_[A-Za-z0-9_]*\\.jpg");
+
+    private static final byte OP_ADD = 'A';
+    private static final byte OP_DELETE = 'D';
+    private static final byte OP_TOUCH = 'T';
+
+    private static MmsFileStore instance;
+
+    /**
+     * Produces the contents of a file, for {@link #put(long, String, Writer)}
+     */
+    public interface Writer {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * One stored file
+     */
+    public static class Entry {
+        final String name;
+        final long mmsId;
+        final long bytes;
+        long lastAccess;
+
+        Entry(String name, long mmsId, long bytes, long lastAccess) {
+            this.name = name;
+            this.mmsId = mmsId;
+            this.bytes = bytes;
+            this.lastAccess = lastAccess;
+        }
+
+        public String getName() { return name; }
+        public long getMmsId() { return mmsId; }
+        public long getBytes() { return bytes; }
+        public long getLastAccess() { return lastAccess; }
+    }
+
+    private final File dir;
+    private final File indexFile;
+    private final Object lock = new Object();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(
+            MmsDispatcher.threadFactory("mms-file-store", Process.THREAD_PRIORITY_LOWEST));
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final AtomicBoolean touchFlushScheduled = new AtomicBoolean();
+
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Long, List<Entry>> byMmsId = new HashMap<>();
+    // Read since the last flush, least recently read first
+    private final LinkedHashSet<Entry> touched = new LinkedHashSet<>();
+
+    private volatile long quotaBytes = DEFAULT_QUOTA_BYTES;
+    private volatile long maxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    private boolean loaded;
+    private DataOutputStream log;
+    private int logRecords;
+    private long usedBytes;
+    private long evictedFiles;
+    private long evictedBytes;
+
+    MmsFileStore(File dir, File indexFile) {
+        this.dir = dir;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * The instance if something has already created it, otherwise null; never touches disk
+     */
+    static synchronized MmsFileStore peek() {
+        return instance;
+    }
+
+    /**
+     * The store for getExternalFilesDir(null); the index is read on first use, not here
+     */
+    public static synchronized MmsFileStore get(Context context) throws IOException {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            File dir = appContext.getExternalFilesDir(null);
+            if (dir == null) {
+                throw new IOException("External files directory unavailable");
+            }
+            instance = new MmsFileStore(dir, new File(appContext.getFilesDir(), INDEX_NAME));
+        }
+        return instance;
+    }
+
+    public void setQuotaBytes(long bytes) {
+        quotaBytes = Math.max(0, bytes);
+        scheduleCompaction();
+    }
+
+    public void setMaxAgeMs(long ms) {
+        maxAgeMs = Math.max(0, ms);
+        scheduleCompaction();
+    }
+
+    /**
+     * Write a file and record it under an MMS id (-1 if unknown), replacing any
+     * stored file of the same name
+     */
+    public File put(long mmsId, String name, byte[] bytes) throws IOException {
+        return put(mmsId, name, new Writer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+        });
+    }
+
+    /**
+     * Write a file straight from the writer, without holding its contents in memory;
+     * otherwise the same as {@link #put(long, String, byte[])}
+     */
+    public File put(long mmsId, String name, Writer writer) throws IOException {
+        File file = new File(dir, name);
+        File tmp = new File(dir, name + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            writer.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        long length = tmp.length();
+
+        boolean overQuota;
+        synchronized (lock) {
+            ensureLoadedLocked();
+            // Under the lock, so compaction can't delete the new file for an evicted entry of the same name
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot move " + tmp + " into place");
+            }
+            removeLocked(name);
+            addLocked(new Entry(name, mmsId, length, System.currentTimeMillis()));
+            logAddLocked(entries.get(name));
+            overQuota = usedBytes > quotaBytes;
+        }
+        if (overQuota) {
+            scheduleCompaction();
+        }
+        return file;
+    }
+
+    /**
+     * Files stored for an MMS, most recently stored last; marks them as used
+     */
+    public List<File> getFiles(long mmsId) {
+        synchronized (lock) {
+            ensureLoadedLocked();
+            List<Entry> stored = byMmsId.get(mmsId);
+            if (stored == null) {
+                return Collections.emptyList();
+            }
+            long now = System.currentTimeMillis();
+            List<File> files = new ArrayList<>(stored.size());
+            for (Entry entry : stored) {
+                // get() moves the entry to the end of the LRU order
+                entries.get(entry.name).lastAccess = now;
+                logTouchLocked(entry);
+                files.add(new File(dir, entry.name));
+            }
+            return files;
+        }
+    }
+
+    /**
+     * A stored file by name, or null if the store doesn't have it; marks it as used
+     */
+    public File getFile(String name) {
+        synchronized (lock) {
+            ensureLoadedLocked();
+            Entry entry = entries.get(name);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastAccess = System.currentTimeMillis();
+            logTouchLocked(entry);
+            return new File(dir, name);
+        }
+    }
+
+    public boolean delete(String name) {
+        synchronized (lock) {
+            ensureLoadedLocked();
+            if (removeLocked(name) == null) {
+                return false;
+            }
+            logDeleteLocked(name);
+            return new File(dir, name).delete();
+        }
+    }
+
+    public int getFileCount() {
+        synchronized (lock) {
+            ensureLoadedLocked();
+            return entries.size();
+        }
+    }
+
+    public long getUsedBytes() {
+        synchronized (lock) {
+            ensureLoadedLocked();
+            return usedBytes;
+        }
+    }
+
+    /**
+     * Evict and rewrite the index on the background thread
+     */
+    public void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactionScheduled.set(false);
+                compact();
+            }
+        });
+    }
+
+    private void scheduleTouchFlush() {
+        if (!touchFlushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        compactor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                touchFlushScheduled.set(false);
+                synchronized (lock) {
+                    flushTouchesLocked();
+                    if (logRecords > 2 * entries.size() + 64) {
+                        // Reads alone never push the store over quota, so rewrite the growing log from here
+                        rewriteIndexLocked();
+                    }
+                }
+            }
+        }, TOUCH_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Evict expired and least recently used files until under the low-water
+     * mark, then rewrite the index if it has grown past twice the live entries
+     */
+    public void compact() {
+        synchronized (lock) {
+            ensureLoadedLocked();
+            long expiredBefore = System.currentTimeMillis() - maxAgeMs;
+            long target = usedBytes > quotaBytes ? (long) (quotaBytes * LOW_WATER) : quotaBytes;
+
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (usedBytes <= target && entry.lastAccess >= expiredBefore) {
+                    // LRU order isn't age order, so keep looking for expired entries
+                    continue;
+                }
+                it.remove();
+                unindexLocked(entry);
+                logDeleteLocked(entry.name);
+                if (!new File(dir, entry.name).delete()) {
+                    Log.w(TAG, "Cannot delete " + entry.name);
+                }
+                evictedFiles++;
+                evictedBytes += entry.bytes;
+                MmsMetrics.get().increment(MmsMetrics.Counter.FILES_EVICTED);
+            }
+
+            if (logRecords > 2 * entries.size() + 64) {
+                rewriteIndexLocked();
+            }
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (lock) {
+            writer.println(prefix + String.format(Locale.US,
+                    "File store: files=%d used=%dKB quota=%dKB evicted %d files/%dKB index=%d records"
+                            + " (+%d touches pending)",
+                    entries.size(), usedBytes / 1024, quotaBytes / 1024,
+                    evictedFiles, evictedBytes / 1024, logRecords, touched.size()));
+        }
+    }
+
+    // Must hold lock
+    private void addLocked(Entry entry) {
+        entries.put(entry.name, entry);
+        usedBytes += entry.bytes;
+        List<Entry> stored = byMmsId.get(entry.mmsId);
+        if (stored == null) {
+            stored = new ArrayList<>(2);
+            byMmsId.put(entry.mmsId, stored);
+        }
+        stored.add(entry);
+    }
+
+    // Must hold lock
+    private Entry removeLocked(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            unindexLocked(entry);
+        }
+        return entry;
+    }
+
+    // Must hold lock; entry is already out of entries
+    private void unindexLocked(Entry entry) {
+        usedBytes -= entry.bytes;
+        List<Entry> stored = byMmsId.get(entry.mmsId);
+        if (stored != null) {
+            stored.remove(entry);
+            if (stored.isEmpty()) {
+                byMmsId.remove(entry.mmsId);
+            }
+        }
+    }
+
+    // Must hold lock
+    private void logAddLocked(Entry entry) {
+        try {
+            if (log != null) {
+                // Earlier reads go first, so the replayed order matches
+                writeTouchesLocked();
+                log.writeByte(OP_ADD);
+                log.writeUTF(entry.name);
+                log.writeLong(entry.mmsId);
+                log.writeLong(entry.bytes);
+                log.writeLong(entry.lastAccess);
+                log.flush();
+                logRecords++;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing file index", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+        }
+    }
+
+    // Must hold lock
+    private void logDeleteLocked(String name) {
+        try {
+            if (log != null) {
+                writeTouchesLocked();
+                log.writeByte(OP_DELETE);
+                log.writeUTF(name);
+                log.flush();
+                logRecords++;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing file index", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+        }
+    }
+
+    // Must hold lock; written later with the next record or by the flush timer
+    private void logTouchLocked(Entry entry) {
+        if (log == null) {
+            return;
+        }
+        // Re-adding moves it to the end, matching the LRU order
+        touched.remove(entry);
+        touched.add(entry);
+        scheduleTouchFlush();
+    }
+
+    // Must hold lock
+    private void flushTouchesLocked() {
+        if (touched.isEmpty()) {
+            return;
+        }
+        try {
+            if (log != null) {
+                writeTouchesLocked();
+                log.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing file index", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+        }
+    }
+
+    // Must hold lock; the caller flushes
+    private void writeTouchesLocked() throws IOException {
+        for (Entry entry : touched) {
+            log.writeByte(OP_TOUCH);
+            log.writeUTF(entry.name);
+            log.writeLong(entry.lastAccess);
+            logRecords++;
+        }
+        touched.clear();
+    }
+
+    // Must hold lock; failures leave an in-memory index
+    private void ensureLoadedLocked() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        try {
+            if (indexFile.exists()) {
+                readIndexLocked();
+            } else {
+                adoptExistingLocked();
+            }
+            // Start from a compact log
+            rewriteIndexLocked();
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading file index", e);
+        }
+        if (usedBytes > quotaBytes) {
+            scheduleCompaction();
+        }
+    }
+
+    private void readIndexLocked() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            while (true) {
+                byte op = in.readByte();
+                String name = in.readUTF();
+                if (op == OP_ADD) {
+                    Entry entry = new Entry(name, in.readLong(), in.readLong(), in.readLong());
+                    removeLocked(name);
+                    addLocked(entry);
+                } else if (op == OP_DELETE) {
+                    removeLocked(name);
+                } else if (op == OP_TOUCH) {
+                    long lastAccess = in.readLong();
+                    // get() moves the entry to the end of the LRU order, as the read did
+                    Entry entry = entries.get(name);
+                    if (entry != null) {
+                        entry.lastAccess = lastAccess;
+                    }
+                } else {
+                    Log.w(TAG, "Corrupt file index, keeping " + entries.size() + " entries");
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the log, or a torn last record
+        }
+    }
+
+    // Files written before the store existed, oldest first
+    private void adoptExistingLocked() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> adopted = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && ADOPTABLE_NAME.matcher(file.getName()).matches()) {
+                adopted.add(file);
+            }
+        }
+        Collections.sort(adopted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : adopted) {
+            addLocked(new Entry(file.getName(), -1, file.length(), file.lastModified()));
+        }
+    }
+
+    // Must hold lock
+    private void rewriteIndexLocked() {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+
+            // The entries are written in LRU order with their last access, which covers pending touches
+            touched.clear();
+            try (FileOutputStream file = new FileOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                for (Entry entry : entries.values()) {
+                    out.writeByte(OP_ADD);
+                    out.writeUTF(entry.name);
+                    out.writeLong(entry.mmsId);
+                    out.writeLong(entry.bytes);
+                    out.writeLong(entry.lastAccess);
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Cannot replace " + indexFile);
+            }
+            logRecords = entries.size();
+        } catch (IOException e) {
+            Log.e(TAG, "Error rewriting file index", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+        }
+
+        try {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening file index", e);
+        }
+    }
+}
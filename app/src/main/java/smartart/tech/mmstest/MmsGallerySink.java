@@ -0,0 +1,280 @@
+package smartart.tech.mmstest;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves MMS image attachments to the gallery as their original bytes.
+ *
+ * Unlike {@link MediaStore.Images.Media#insertImage}, nothing is decoded or
+ * re-encoded and no thumbnail is generated synchronously. On Android 10+ rows
+ * are inserted with IS_PENDING, the attachment is streamed into the returned
+ * file descriptor and the rows are published together. Queued items are
+ * written in applyBatch transactions of up to {@code batchSize}.
+ *
+ * Usage:
+ * <pre>
+ *     MmsGallerySink sink = new MmsGallerySink(context);
+ *     sink.enqueue(partUri, "image/jpeg", "mms_42", "Image from MMS 42");
+ *     ...
+ *     sink.flush();
+ * </pre>
+ */
+public class MmsGallerySink {
+
+    private static final String TAG = "MmsGallerySink";
+    static final int DEFAULT_BATCH_SIZE = 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    static final String ALBUM = "MMS";
+
+    private final ContentResolver contentResolver;
+    private final int batchSize;
+    private final List<Item> pending = new ArrayList<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    public MmsGallerySink(Context context, int batchSize) {
+        this.contentResolver = context.getContentResolver();
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public MmsGallerySink(Context context) {
+        this(context, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * An attachment waiting to be written
+     */
+    private static class Item {
+        final Uri source;
+        final String mimeType;
+        final String displayName;
+        final String description;
+        Uri galleryUri;
+
+        Item(Uri source, String mimeType, String displayName, String description) {
+            this.source = source;
+            this.mimeType = mimeType;
+            this.displayName = displayName;
+            this.description = description;
+        }
+    }
+
+    /**
+     * Save one attachment right away
+     *
+     * @return the gallery Uri, or null on failure
+     */
+    public Uri save(Uri source, String mimeType, String title, String description) {
+        List<Uri> saved;
+        synchronized (this) {
+            flush();
+            pending.add(new Item(source, mimeType, title, description));
+            saved = flush();
+        }
+        return saved.isEmpty() ? null : saved.get(0);
+    }
+
+    /**
+     * Queue an attachment; the queue is written once it reaches the batch size
+     */
+    public synchronized void enqueue(Uri source, String mimeType, String title, String description) {
+        pending.add(new Item(source, mimeType, title, description));
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Write everything queued
+     *
+     * @return gallery Uris of the items written successfully
+     */
+    public synchronized List<Uri> flush() {
+        List<Uri> saved = new ArrayList<>();
+        if (pending.isEmpty()) {
+            return saved;
+        }
+
+        long start = MmsMetrics.get().start();
+        List<Item> items = new ArrayList<>(pending);
+        pending.clear();
+
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                writePending(items);
+            } else {
+                writeLegacy(items);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving " + items.size() + " images to gallery", e);
+        }
+
+        for (Item item : items) {
+            if (item.galleryUri != null) {
+                saved.add(item.galleryUri);
+            }
+        }
+        MmsMetrics.get().record(MmsMetrics.Stage.GALLERY_INSERT, start);
+        return saved;
+    }
+
+    // Android 10+: insert pending rows, stream bytes into each, publish them together
+    private void writePending(List<Item> items) throws Exception {
+        Uri collection = MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+        String relativePath = Environment.DIRECTORY_PICTURES + "/" + ALBUM;
+
+        ArrayList<ContentProviderOperation> inserts = new ArrayList<>(items.size());
+        for (Item item : items) {
+            ContentValues values = baseValues(item);
+            values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
+            values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+            inserts.add(ContentProviderOperation.newInsert(collection).withValues(values).build());
+        }
+        ContentProviderResult[] results = contentResolver.applyBatch(MediaStore.AUTHORITY, inserts);
+
+        ArrayList<ContentProviderOperation> finish = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Uri target = results[i].uri;
+            if (target == null) {
+                continue;
+            }
+
+            if (copy(items.get(i).source, target)) {
+                finish.add(ContentProviderOperation.newUpdate(target)
+                        .withValue(MediaStore.MediaColumns.IS_PENDING, 0)
+                        .build());
+                items.get(i).galleryUri = target;
+            } else {
+                finish.add(ContentProviderOperation.newDelete(target).build());
+            }
+        }
+
+        if (!finish.isEmpty()) {
+            contentResolver.applyBatch(MediaStore.AUTHORITY, finish);
+        }
+    }
+
+    // Android 9: write the files ourselves, then index them in one batch
+    private void writeLegacy(List<Item> items) throws Exception {
+        File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), ALBUM);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        ArrayList<ContentProviderOperation> inserts = new ArrayList<>(items.size());
+        List<Item> written = new ArrayList<>(items.size());
+        for (Item item : items) {
+            File file = new File(dir, fileName(item));
+            if (!copy(item.source, file)) {
+                continue;
+            }
+
+            ContentValues values = baseValues(item);
+            values.put(MediaStore.MediaColumns.DATA, file.getAbsolutePath());
+            inserts.add(ContentProviderOperation.newInsert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(values).build());
+            written.add(item);
+        }
+
+        if (inserts.isEmpty()) {
+            return;
+        }
+        ContentProviderResult[] results = contentResolver.applyBatch(MediaStore.AUTHORITY, inserts);
+        for (int i = 0; i < written.size(); i++) {
+            written.get(i).galleryUri = results[i].uri;
+        }
+    }
+
+    private ContentValues baseValues(Item item) {
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName(item));
+        values.put(MediaStore.MediaColumns.TITLE, item.displayName);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, item.mimeType);
+        values.put(MediaStore.MediaColumns.DATE_ADDED, now / 1000);
+        values.put(MediaStore.Images.ImageColumns.DATE_TAKEN, now);
+        if (item.description != null) {
+            values.put(MediaStore.Images.ImageColumns.DESCRIPTION, item.description);
+        }
+        return values;
+    }
+
+    private boolean copy(Uri source, Uri target) {
+        try {
+            ParcelFileDescriptor pfd = contentResolver.openFileDescriptor(target, "w");
+            if (pfd == null) {
+                return false;
+            }
+            return copy(source, new ParcelFileDescriptor.AutoCloseOutputStream(pfd));
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening gallery entry " + target, e);
+            return false;
+        }
+    }
+
+    private boolean copy(Uri source, File target) {
+        try {
+            return copy(source, new FileOutputStream(target));
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating " + target, e);
+            return false;
+        }
+    }
+
+    // Closes out
+    private boolean copy(Uri source, OutputStream out) {
+        InputStream in = null;
+        try {
+            in = contentResolver.openInputStream(source);
+            if (in == null) {
+                return false;
+            }
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error copying " + source + " to gallery", e);
+            return false;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    private static String fileName(Item item) {
+        String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(item.mimeType);
+        String base = item.displayName != null ? item.displayName.replaceAll("[^a-zA-Z0-9_-]", "_") : "mms";
+        return extension != null ? base + "." + extension : base;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing useful to do
+            }
+        }
+    }
+}
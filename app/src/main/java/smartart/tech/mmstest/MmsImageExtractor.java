@@ -2,6 +2,7 @@ package smartart.tech.mmstest;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -9,25 +10,40 @@ import android.net.Uri;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 public class MmsImageExtractor {
 
     private static final String TAG = "MmsImageExtractor";
+
+    // Part kinds for extractMmsParts
+    static final int PARTS_TEXT = 1;
+    static final int PARTS_MEDIA = 2;
+    static final int PARTS_ALL = PARTS_TEXT | PARTS_MEDIA;
+
+    // Part rows the media pass reads; media is often mislabeled, so untyped parts are sniffed too
+    private static final String MEDIA_SELECTION = "ct LIKE 'image/%' OR ct LIKE 'video/%' OR ct IS NULL"
+            + " OR ct = 'application/octet-stream'";
+
+    // m_type of a downloaded message (M-Retrieve.conf)
+    static final int MESSAGE_TYPE_RETRIEVE_CONF = 132;
     private Context context;
     private ContentResolver contentResolver;
 
     public MmsImageExtractor(Context context) {
         this.context = context;
         this.contentResolver = context.getContentResolver();
+        MmsMemoryGovernor.get().register(context);
     }
 
     // Interface for callback when images are found
@@ -35,126 +51,495 @@ public class MmsImageExtractor {
         void onImageFound(Bitmap image, String contentType, String mmsId);
         void onTextFound(String text, String mmsId);
         void onVideoFound(Uri videoUri, String mmsId);
+
+        // Same as onImageFound, with the provider Uri of the original attachment bytes
+        default void onImagePartFound(Bitmap image, String contentType, String mmsId, Uri partUri) {
+            onImageFound(image, contentType, mmsId);
+        }
     }
 
     /**
      * Get all MMS messages and extract images
      */
     public void getAllMmsImages(OnImageFoundListener listener) {
-        Cursor cursor = contentResolver.query(
-                Uri.parse("content://mms"),
-                new String[]{"_id", "date", "thread_id", "msg_box", "read"},
+        getAllMmsImages(new MmsScan(listener));
+    }
+
+    /**
+     * Scan all MMS messages, newest first, until the scan stops or runs out of messages
+     */
+    public MmsScan getAllMmsImages(MmsScan scan) {
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.PROJECTION,
                 null, null, "date DESC"
-        );
+        )) {
+            if (cursor == null) {
+                scan.finish();
+                return scan;
+            }
 
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                String mmsId = cursor.getString(cursor.getColumnIndexOrThrow("_id"));
-                long date = cursor.getLong(cursor.getColumnIndexOrThrow("date"));
-                int threadId = cursor.getInt(cursor.getColumnIndexOrThrow("thread_id"));
-                int msgBox = cursor.getInt(cursor.getColumnIndexOrThrow("msg_box"));
+            MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+            while (!scan.shouldStop() && cursor.moveToNext()) {
+                row.read(cursor);
+                String mmsId = String.valueOf(row.id);
 
-                Log.d(TAG, "Processing MMS ID: " + mmsId + ", Date: " + date);
+                MmsEventLog.record(MmsEventLog.Event.MMS_SCAN_ROW, mmsId, row.date);
 
                 // Extract parts from this MMS
-                extractMmsParts(mmsId, listener);
+                extractMmsParts(mmsId, scan, PARTS_ALL, null);
+            }
+        }
+        scan.finish();
+        return scan;
+    }
 
-            } while (cursor.moveToNext());
-            cursor.close();
+    /**
+     * Scan the next pageSize messages of a scan over all MMS, newest first, so
+     * a long scan can run as a series of short tasks. The scan remembers where
+     * the page ended; call again with the same scan for the next one.
+     *
+     * @return true if there may be more messages and the scan has not stopped
+     */
+    public boolean getAllMmsImagesPage(MmsScan scan, int pageSize) {
+        int rows = 0;
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.ID_DATE_PROJECTION,
+                "date < ? OR (date = ? AND _id < ?)",
+                new String[]{String.valueOf(scan.pageDate), String.valueOf(scan.pageDate),
+                        String.valueOf(scan.pageId)},
+                "date DESC, _id DESC LIMIT " + Math.max(1, pageSize)
+        )) {
+            if (cursor != null) {
+                MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+                while (!scan.shouldStop() && cursor.moveToNext()) {
+                    row.read(cursor);
+                    rows++;
+                    scan.pageDate = row.date;
+                    scan.pageId = row.id;
+                    String mmsId = String.valueOf(row.id);
+
+                    MmsEventLog.record(MmsEventLog.Event.MMS_SCAN_ROW, mmsId, row.date);
+
+                    extractMmsParts(mmsId, scan, PARTS_ALL, null);
+                }
+            }
+        }
+        if (rows < pageSize) {
+            scan.finish();
         }
+        return !scan.isStopped();
     }
 
     /**
-     * Get MMS messages from a specific thread
+     * Get MMS messages from a specific thread.
+     * Part rows of the next messages are prefetched in the background.
      */
     public void getMmsImagesFromThread(int threadId, OnImageFoundListener listener) {
-        Cursor cursor = contentResolver.query(
-                Uri.parse("content://mms"),
-                new String[]{"_id", "date", "msg_box", "read"},
+        getMmsImagesFromThread(threadId, new MmsScan(listener));
+    }
+
+    /**
+     * Scan the MMS messages of a thread, newest first, until the scan stops or runs out of messages
+     */
+    public MmsScan getMmsImagesFromThread(int threadId, MmsScan scan) {
+        MmsThreadPrefetcher prefetcher = MmsThreadPrefetcher.get(context);
+        prefetcher.open(threadId);
+
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.ID_DATE_PROJECTION,
                 "thread_id = ?",
                 new String[]{String.valueOf(threadId)},
-                "date DESC"
-        );
+                "date DESC, _id DESC"
+        )) {
+            if (cursor == null) {
+                scan.finish();
+                return scan;
+            }
 
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                String mmsId = cursor.getString(cursor.getColumnIndexOrThrow("_id"));
-                extractMmsParts(mmsId, listener);
-            } while (cursor.moveToNext());
-            cursor.close();
+            MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+            while (!scan.shouldStop() && cursor.moveToNext()) {
+                row.read(cursor);
+                prefetcher.advance(threadId, row.date, row.id);
+
+                String mmsId = String.valueOf(row.id);
+                extractMmsParts(mmsId, scan, PARTS_ALL, prefetcher.getParts(mmsId));
+            }
         }
+        scan.finish();
+        return scan;
     }
 
     /**
      * Extract parts from a specific MMS message
      */
     void extractMmsParts(String mmsId, OnImageFoundListener listener) {
-        Cursor partCursor = contentResolver.query(
-                Uri.parse("content://mms/part"),
-                new String[]{"_id", "ct", "_data", "text", "name", "filename"},
-                "mid = ?",
-                new String[]{mmsId},
+        extractMmsParts(mmsId, listener, PARTS_ALL);
+    }
+
+    /**
+     * Extract only the selected kinds of parts (PARTS_TEXT, PARTS_MEDIA or PARTS_ALL)
+     */
+    void extractMmsParts(String mmsId, OnImageFoundListener listener, int parts) {
+        extractMmsParts(mmsId, new MmsScan(listener), parts);
+    }
+
+    /**
+     * Extract the parts of one MMS until the scan stops
+     */
+    public MmsScan extractMmsParts(String mmsId, MmsScan scan) {
+        return extractMmsParts(mmsId, scan, PARTS_ALL);
+    }
+
+    MmsScan extractMmsParts(String mmsId, MmsScan scan, int parts) {
+        extractMmsParts(mmsId, scan, parts, null);
+        scan.finish();
+        return scan;
+    }
+
+    /**
+     * Extract the image and video parts of one MMS, along with the text parts
+     * an earlier PARTS_TEXT scan found to be media ({@link MmsScan#getMediaTextParts()})
+     */
+    void extractMmsMedia(String mmsId, OnImageFoundListener listener, List<Long> mediaTextParts) {
+        MmsScan scan = new MmsScan(listener);
+        StringBuilder selection = new StringBuilder("mid = ? AND (").append(MEDIA_SELECTION);
+        String[] selectionArgs = new String[1 + mediaTextParts.size()];
+        selectionArgs[0] = mmsId;
+        if (!mediaTextParts.isEmpty()) {
+            selection.append(" OR _id IN (");
+            for (int i = 0; i < mediaTextParts.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[1 + i] = String.valueOf(mediaTextParts.get(i));
+            }
+            selection.append(')');
+        }
+        selection.append(')');
+        queryParts(mmsId, scan, selection.toString(), selectionArgs, new MmsContentSniffer.Result(), PARTS_MEDIA);
+        scan.finish();
+    }
+
+    /**
+     * Extract parts, using already loaded part rows instead of querying when given
+     */
+    private void extractMmsParts(String mmsId, MmsScan scan, int parts, List<MmsRows.Part> prefetched) {
+        MmsContentSniffer.Result sniffed = new MmsContentSniffer.Result();
+        if (prefetched != null) {
+            for (MmsRows.Part part : prefetched) {
+                if (scan.shouldStop()) {
+                    return;
+                }
+                if (isSelected(part.contentType, parts)) {
+                    handlePart(mmsId, part, sniffed, scan, parts);
+                }
+            }
+            return;
+        }
+
+        String selection = "mid = ?";
+        if (parts == PARTS_TEXT) {
+            selection += " AND ct = 'text/plain'";
+        } else if (parts == PARTS_MEDIA) {
+            selection += " AND (" + MEDIA_SELECTION + ")";
+        }
+        queryParts(mmsId, scan, selection, new String[]{mmsId}, sniffed, parts);
+    }
+
+    /**
+     * Handle the part rows the provider returns for a selection on content://mms/part
+     *
+     * @return the number of rows read
+     */
+    private int queryParts(String mmsId, MmsScan scan, String selection, String[] selectionArgs,
+                           MmsContentSniffer.Result sniffed, int parts) {
+        long queryStart = MmsMetrics.get().start();
+        try (Cursor partCursor = contentResolver.query(
+                MmsRows.PART_URI,
+                MmsRows.Part.PROJECTION,
+                selection,
+                selectionArgs,
                 null
+        )) {
+            MmsMetrics.get().record(MmsMetrics.Stage.PART_QUERY, queryStart);
+            if (partCursor == null) {
+                return 0;
+            }
+
+            int rows = 0;
+            MmsRows.Part part = MmsRows.Part.bind(partCursor);
+            while (!scan.shouldStop() && partCursor.moveToNext()) {
+                rows++;
+                handlePart(mmsId, part.read(partCursor), sniffed, scan, parts);
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Start a query whose filters are evaluated by the provider
+     */
+    public MmsQuery query() {
+        return new MmsQuery(this);
+    }
+
+    /**
+     * Scan the messages and parts an MmsQuery selects, newest first
+     */
+    MmsScan runQuery(MmsQuery query, MmsScan scan) {
+        String sender = query.getSender();
+        boolean senderInSql = sender != null;
+        Cursor cursor;
+        try {
+            cursor = queryMms(query, senderInSql);
+        } catch (RuntimeException e) {
+            if (!senderInSql) {
+                throw e;
+            }
+            // Providers built with a strict query grammar reject the addr subquery
+            Log.w(TAG, "Sender subquery rejected, matching the sender per message", e);
+            senderInSql = false;
+            cursor = queryMms(query, false);
+        }
+
+        List<String> partArgs = new ArrayList<>();
+        String partSelection = query.getPartSelection(partArgs);
+        String[] partSelectionArgs = partArgs.toArray(new String[0]);
+        MmsContentSniffer.Result sniffed = new MmsContentSniffer.Result();
+
+        try (Cursor mmsCursor = cursor) {
+            if (mmsCursor == null) {
+                scan.finish();
+                return scan;
+            }
+
+            int matched = 0;
+            MmsRows.Mms row = MmsRows.Mms.bind(mmsCursor);
+            while (!scan.shouldStop() && mmsCursor.moveToNext()) {
+                row.read(mmsCursor);
+                String mmsId = String.valueOf(row.id);
+                if (sender != null && !senderInSql && !sender.equals(getMmsSender(mmsId))) {
+                    continue;
+                }
+
+                MmsEventLog.record(MmsEventLog.Event.MMS_SCAN_ROW, mmsId, row.date);
+
+                partSelectionArgs[0] = mmsId;
+                int rows = queryParts(mmsId, scan, partSelection, partSelectionArgs, sniffed, PARTS_ALL);
+                // Messages without a part of the wanted types don't count against the limit
+                if ((rows > 0 || !query.hasPartFilter())
+                        && query.getLimit() > 0 && ++matched >= query.getLimit()) {
+                    break;
+                }
+            }
+        }
+        scan.finish();
+        return scan;
+    }
+
+    private Cursor queryMms(MmsQuery query, boolean senderInSql) {
+        List<String> args = new ArrayList<>();
+        String selection = query.getMmsSelection(senderInSql, args);
+        return contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.ID_DATE_PROJECTION,
+                selection,
+                args.isEmpty() ? null : args.toArray(new String[0]),
+                query.getMmsSortOrder()
         );
+    }
 
-        if (partCursor != null && partCursor.moveToFirst()) {
-            do {
-                String partId = partCursor.getString(partCursor.getColumnIndexOrThrow("_id"));
-                String contentType = partCursor.getString(partCursor.getColumnIndexOrThrow("ct"));
-                String data = partCursor.getString(partCursor.getColumnIndexOrThrow("_data"));
-                String text = partCursor.getString(partCursor.getColumnIndexOrThrow("text"));
-                String name = partCursor.getString(partCursor.getColumnIndexOrThrow("name"));
-                String filename = partCursor.getString(partCursor.getColumnIndexOrThrow("filename"));
-
-                Log.d(TAG, "Part ID: " + partId + ", Content Type: " + contentType + ", Data: " + data);
-
-                if (contentType != null) {
-                    if (contentType.startsWith("image/")) {
-                        // Handle image
-                        Bitmap image = getMmsImage(partId, data);
-                        if (image != null && listener != null) {
-                            listener.onImageFound(image, contentType, mmsId);
-                        }
-                    } else if (contentType.startsWith("video/")) {
-                        // Handle video
-                        Uri videoUri = Uri.parse("content://mms/part/" + partId);
-                        if (listener != null) {
-                            listener.onVideoFound(videoUri, mmsId);
-                        }
-                    } else if (contentType.equals("text/plain")) {
-                        // Handle text part
-                        String textContent = getMmsText(partId);
-                        if (textContent != null && listener != null) {
-                            listener.onTextFound(textContent, mmsId);
-                        }
-                    }
+    // Same filter as the selection extractMmsParts builds for each kind
+    private static boolean isSelected(String contentType, int parts) {
+        if (parts == PARTS_TEXT) {
+            return "text/plain".equals(contentType);
+        } else if (parts == PARTS_MEDIA) {
+            return contentType == null || contentType.startsWith("image/") || contentType.startsWith("video/")
+                    || contentType.equals("application/octet-stream");
+        }
+        return true;
+    }
+
+    /**
+     * Handle one part as what it sniffs as, if that kind belongs to this pass
+     * (PARTS_TEXT, PARTS_MEDIA or PARTS_ALL). Media sent as text/plain is
+     * skipped by the text pass, which notes it on the scan for the media pass.
+     */
+    private void handlePart(String mmsId, MmsRows.Part part, MmsContentSniffer.Result sniffed, MmsScan scan,
+                            int parts) {
+        MmsEventLog.record(MmsEventLog.Event.PART_FOUND, mmsId, part.contentType, null, part.id, 0);
+        if (!MmsContentSniffer.shouldSniff(part.contentType)) {
+            return;
+        }
+
+        // Route on what the bytes are, not on the declared ct
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        String contentType = sniffPart(mmsId, part, sniffed, (parts & PARTS_MEDIA) != 0 ? bounds : null);
+        boolean text = "text/plain".equals(contentType);
+        if (contentType != null && (parts & (text ? PARTS_TEXT : PARTS_MEDIA)) == 0) {
+            // The other pass handles it
+            if (!text) {
+                scan.mediaTextParts.add(part.id);
+            }
+            return;
+        }
+
+        if (contentType != null) {
+            if (contentType.startsWith("image/")) {
+                // Handle image
+                // The probe took time, don't start a decode for a scan that has stopped meanwhile
+                if (scan.shouldStop()) {
+                    return;
                 }
+                Bitmap image = getMmsImage(part.id, part.data, bounds, scan);
+                if (image != null) {
+                    MmsMetrics.get().increment(MmsMetrics.Counter.IMAGES);
+                    scan.deliverImage(image, contentType, mmsId, part.uri());
+                }
+            } else if (contentType.startsWith("video/")) {
+                // Handle video
+                MmsMetrics.get().increment(MmsMetrics.Counter.VIDEOS);
+                scan.deliverVideo(part.uri(), mmsId);
+            } else if (contentType.equals("text/plain")) {
+                // Handle text part, stored inline in the text column when the provider has it
+                String textContent = part.text != null ? part.text : getMmsText(part.id);
+                if (textContent != null) {
+                    MmsMetrics.get().increment(MmsMetrics.Counter.TEXTS);
+                    scan.deliverText(textContent, mmsId);
+                }
+            }
+        }
+    }
 
-            } while (partCursor.moveToNext());
-            partCursor.close();
+    /**
+     * Extract parts from a raw M-Retrieve.conf PDU file, without going through the provider
+     */
+    public boolean extractPduParts(File pduFile, String mmsId, OnImageFoundListener listener) {
+        try {
+            return MmsPduDecoder.extractParts(MmsPduDecoder.map(pduFile), mmsId, listener);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading MMS PDU " + pduFile, e);
+            return false;
         }
     }
 
     /**
-     * Get image from MMS part
+     * Find out what a part really is before handling it
+     *
+     * @param bounds filled in with the image bounds when the part is an image; null not to read them
+     * @return the content type to handle the part as, or null to skip it
      */
-    private Bitmap getMmsImage(String partId, String data) {
+    private String sniffPart(String mmsId, MmsRows.Part part, MmsContentSniffer.Result result,
+                             BitmapFactory.Options bounds) {
+        result.reset();
+        if (part.text != null) {
+            // Inline text can't be anything else
+            result.kind = MmsContentSniffer.Kind.TEXT;
+            result.size = part.text.length();
+        } else if (!probePart(part.uri(), part.contentType, result, bounds)) {
+            // Can't read it through the provider; trust ct and let the handler try _data
+            return part.contentType;
+        }
+
+        MmsEventLog.record(MmsEventLog.Event.PART_SNIFFED, mmsId, part.contentType, result.kind, result.size, 0);
+
+        MmsContentSniffer.Kind kind = result.kind;
+        if (!kind.isImage() && !kind.isVideo() && kind != MmsContentSniffer.Kind.TEXT) {
+            Log.d(TAG, "Skipping part " + part.id + " declared " + part.contentType + ", sniffed " + result);
+            MmsMetrics.get().increment(MmsMetrics.Counter.PARTS_SKIPPED);
+            return null;
+        }
+        if (part.contentType == null || !part.contentType.equals(kind.mimeType)) {
+            MmsMetrics.get().increment(MmsMetrics.Counter.PARTS_MISLABELED);
+        }
+        return kind.mimeType;
+    }
+
+    /**
+     * Open a part once to get its size, sniff its header and, for images, decode its bounds
+     *
+     * @return false if the part can't be opened
+     */
+    private boolean probePart(Uri partUri, String contentType, MmsContentSniffer.Result result,
+                              BitmapFactory.Options bounds) {
+        try (AssetFileDescriptor afd = contentResolver.openAssetFileDescriptor(partUri, "r")) {
+            if (afd == null) {
+                return false;
+            }
+            result.size = afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH
+                    ? afd.getLength() : afd.getParcelFileDescriptor().getStatSize();
+
+            try (InputStream inputStream = new BufferedInputStream(afd.createInputStream())) {
+                byte[] header = new byte[MmsContentSniffer.HEADER_BYTES];
+                inputStream.mark(header.length);
+                int length = 0;
+                int read;
+                while (length < header.length
+                        && (read = inputStream.read(header, length, header.length - length)) != -1) {
+                    length += read;
+                }
+                result.kind = MmsContentSniffer.sniff(header, length, contentType);
+
+                if (result.kind.isImage() && bounds != null) {
+                    inputStream.reset();
+                    bounds.inJustDecodeBounds = true;
+                    BitmapFactory.decodeStream(inputStream, null, bounds);
+                    bounds.inJustDecodeBounds = false;
+                }
+            }
+            return true;
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Error probing MMS part " + partUri, e);
+            return false;
+        }
+    }
+
+    /**
+     * Get image from MMS part, downsampled as needed to stay within the bitmap memory budget
+     *
+     * @param bounds image bounds from an earlier probe, or null to read them here
+     * @param scan bounds the wait for bitmap memory by its deadline, may be null
+     */
+    private Bitmap getMmsImage(long partId, String data, BitmapFactory.Options bounds, MmsScan scan) {
+        long start = MmsMetrics.get().start();
+        boolean opened = false;
         try {
-            Uri partUri = Uri.parse("content://mms/part/" + partId);
-            InputStream inputStream = contentResolver.openInputStream(partUri);
+            Uri partUri = MmsRows.partUri(partId);
+            BitmapFactory.Options options = bounds != null && bounds.outWidth > 0 ? bounds : decodeBounds(partUri);
+
+            if (options != null) {
+                opened = true;
+                if (MmsTiledImage.needsTiling(options.outWidth, options.outHeight)) {
+                    Bitmap overview = decodeOversized(partUri);
+                    MmsMetrics.get().record(MmsMetrics.Stage.DECODE, start);
+                    return overview;
+                }
 
-            if (inputStream != null) {
-                Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                inputStream.close();
+                Bitmap bitmap = null;
+                int sampleSize = acquireDecodeBudget(options, partUri, scan);
+                if (sampleSize > 0) {
+                    options.inSampleSize = sampleSize;
+                    try (InputStream inputStream = contentResolver.openInputStream(partUri)) {
+                        bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+                    } finally {
+                        MmsMemoryGovernor.get().track(bitmap);
+                    }
+                }
+                MmsMetrics.get().record(MmsMetrics.Stage.DECODE, start);
                 return bitmap;
             }
         } catch (Exception e) {
             Log.e(TAG, "Error loading MMS image from part " + partId, e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.DECODE_FAILURES);
         }
 
-        // Try alternative method using file path
-        if (data != null && !data.isEmpty()) {
-            return getMmsImageFromPath(data);
+        // Try alternative method using file path, only if the provider couldn't give us the bytes;
+        // decoding the same bytes again through _data would fail the same way
+        if (!opened && data != null && !data.isEmpty()) {
+            Bitmap bitmap = getMmsImageFromPath(data, scan);
+            MmsMetrics.get().record(MmsMetrics.Stage.DECODE, start);
+            return bitmap;
         }
 
         return null;
@@ -163,10 +548,26 @@ public class MmsImageExtractor {
     /**
      * Get image from file path
      */
-    private Bitmap getMmsImageFromPath(String filePath) {
+    private Bitmap getMmsImageFromPath(String filePath, MmsScan scan) {
         if (filePath != null && !filePath.isEmpty()) {
             try {
-                return BitmapFactory.decodeFile(filePath);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(filePath, options);
+
+                int sampleSize = acquireDecodeBudget(options, filePath, scan);
+                if (sampleSize == 0) {
+                    return null;
+                }
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = sampleSize;
+                Bitmap bitmap = null;
+                try {
+                    bitmap = BitmapFactory.decodeFile(filePath, options);
+                } finally {
+                    MmsMemoryGovernor.get().track(bitmap);
+                }
+                return bitmap;
             } catch (Exception e) {
                 Log.e(TAG, "Error loading image from path: " + filePath, e);
             }
@@ -174,12 +575,106 @@ public class MmsImageExtractor {
         return null;
     }
 
+    /**
+     * Decode an image part for display only, sampled down to about reqWidth x reqHeight.
+     * The result is a hardware bitmap: its pixels stay out of the Java heap, but it is
+     * immutable and cannot be read back with getPixels.
+     */
+    public Bitmap decodeForDisplay(Uri partUri, int reqWidth, int reqHeight) {
+        long start = MmsMetrics.get().start();
+        try {
+            BitmapFactory.Options options = decodeBounds(partUri);
+            if (options == null || options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            options.inSampleSize = 1;
+            if (reqWidth > 0 && reqHeight > 0) {
+                while (options.outWidth / (options.inSampleSize * 2) >= reqWidth
+                        && options.outHeight / (options.inSampleSize * 2) >= reqHeight) {
+                    options.inSampleSize *= 2;
+                }
+            }
+            options.inPreferredConfig = Bitmap.Config.HARDWARE;
+
+            try (InputStream inputStream = contentResolver.openInputStream(partUri)) {
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            } finally {
+                MmsMetrics.get().record(MmsMetrics.Stage.DECODE, start);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error decoding " + partUri + " for display", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.DECODE_FAILURES);
+            return null;
+        }
+    }
+
+    /**
+     * Open an image part for region decoding; the caller must close it
+     */
+    public MmsTiledImage openTiledImage(Uri partUri) throws IOException {
+        return MmsTiledImage.open(contentResolver, partUri);
+    }
+
+    /**
+     * Decode a bounded overview of an image too large to decode whole.
+     * Use {@link #openTiledImage} to look at it in detail.
+     */
+    private Bitmap decodeOversized(Uri partUri) throws IOException {
+        MmsMetrics.get().increment(MmsMetrics.Counter.TILED_IMAGES);
+        try (MmsTiledImage image = openTiledImage(partUri)) {
+            Log.d(TAG, "Decoding overview of oversized image " + partUri + " (" + image + ")");
+            return image.decodeOverview(MmsTiledImage.OVERVIEW_MAX_PIXELS);
+        }
+    }
+
+    /**
+     * Read only the image bounds of a part
+     *
+     * @return options holding outWidth/outHeight, ready for a real decode, or null if the part can't be opened
+     */
+    private BitmapFactory.Options decodeBounds(Uri partUri) throws IOException {
+        InputStream inputStream = contentResolver.openInputStream(partUri);
+        if (inputStream == null) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            inputStream.close();
+        }
+        options.inJustDecodeBounds = false;
+        return options;
+    }
+
+    /**
+     * @return the sample size the memory governor allows, or 0 to skip this image
+     */
+    private int acquireDecodeBudget(BitmapFactory.Options bounds, Object source, MmsScan scan) {
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            // Not a decodable image
+            return 0;
+        }
+
+        long timeoutMs = scan != null ? scan.remainingMs(MmsMemoryGovernor.DEFAULT_WAIT_MS)
+                : MmsMemoryGovernor.DEFAULT_WAIT_MS;
+        int sampleSize = MmsMemoryGovernor.get().acquire(bounds.outWidth, bounds.outHeight, timeoutMs);
+        if (sampleSize == 0) {
+            Log.w(TAG, "No bitmap memory for " + bounds.outWidth + "x" + bounds.outHeight
+                    + " image " + source + ", skipping");
+        }
+        return sampleSize;
+    }
+
     /**
      * Get text content from MMS part
      */
-    private String getMmsText(String partId) {
+    private String getMmsText(long partId) {
         try {
-            Uri partUri = Uri.parse("content://mms/part/" + partId);
+            Uri partUri = MmsRows.partUri(partId);
             InputStream inputStream = contentResolver.openInputStream(partUri);
 
             if (inputStream != null) {
@@ -205,27 +700,65 @@ public class MmsImageExtractor {
      * Save bitmap to external storage
      */
     public boolean saveBitmapToFile(Bitmap bitmap, String filename) {
+        return saveBitmapToFile(bitmap, filename, null);
+    }
+
+    /**
+     * Save bitmap to external storage through MmsFileStore, indexed under its MMS id
+     * so it can be found again with MmsFileStore.getFiles
+     */
+    public boolean saveBitmapToFile(Bitmap bitmap, String filename, String mmsId) {
+        MmsFileStore store;
+        try {
+            store = MmsFileStore.get(context);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving bitmap to file", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+            return false;
+        }
+        return saveBitmapToFile(bitmap, filename, mmsId, store);
+    }
+
+    /**
+     * Save bitmap into the given file store, indexed under its MMS id
+     */
+    public boolean saveBitmapToFile(Bitmap bitmap, String filename, String mmsId, MmsFileStore store) {
+        long id;
+        try {
+            id = mmsId != null ? Long.parseLong(mmsId) : -1;
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+
+        // Compress straight into the file; the time spent in its writes is file I/O, the rest encoding
+        long start = MmsMetrics.get().start();
+        JpegWriter writer = new JpegWriter(bitmap);
         try {
-            File file = new File(context.getExternalFilesDir(null), filename);
-            FileOutputStream fos = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, fos);
-            fos.close();
+            store.put(id, filename, writer);
+            long elapsed = System.nanoTime() - start;
+            MmsMetrics.get().recordNanos(MmsMetrics.Stage.ENCODE, writer.encodeNanos);
+            MmsMetrics.get().recordNanos(MmsMetrics.Stage.FILE_WRITE, elapsed - writer.encodeNanos);
             return true;
         } catch (IOException e) {
             Log.e(TAG, "Error saving bitmap to file", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
             return false;
         }
     }
 
     /**
      * Save bitmap to gallery
+     * Re-encodes the bitmap; prefer MmsGallerySink when the part Uri is known.
      */
     public String saveBitmapToGallery(Bitmap bitmap, String title, String description) {
+        long start = MmsMetrics.get().start();
         try {
             return MediaStore.Images.Media.insertImage(contentResolver, bitmap, title, description);
         } catch (Exception e) {
             Log.e(TAG, "Error saving bitmap to gallery", e);
             return null;
+        } finally {
+            MmsMetrics.get().record(MmsMetrics.Stage.GALLERY_INSERT, start);
         }
     }
 
@@ -244,40 +777,46 @@ public class MmsImageExtractor {
     public List<Bitmap> getLatestMmsImages(int limit) {
         List<Bitmap> images = new ArrayList<>();
 
-        Cursor cursor = contentResolver.query(
-                Uri.parse("content://mms"),
-                new String[]{"_id"},
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.ID_PROJECTION,
                 null, null, "date DESC LIMIT " + limit
-        );
+        )) {
+            if (cursor == null) {
+                return images;
+            }
 
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                String mmsId = cursor.getString(cursor.getColumnIndexOrThrow("_id"));
+            MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+            MmsRows.Part part = null;
+            while (cursor.moveToNext()) {
+                row.read(cursor);
 
                 // Get images from this MMS
-                Cursor partCursor = contentResolver.query(
-                        Uri.parse("content://mms/part"),
-                        new String[]{"_id", "ct", "_data"},
+                try (Cursor partCursor = contentResolver.query(
+                        MmsRows.PART_URI,
+                        MmsRows.Part.IMAGE_PROJECTION,
                         "mid = ? AND ct LIKE 'image/%'",
-                        new String[]{mmsId},
+                        new String[]{String.valueOf(row.id)},
                         null
-                );
+                )) {
+                    if (partCursor == null) {
+                        continue;
+                    }
 
-                if (partCursor != null && partCursor.moveToFirst()) {
-                    do {
-                        String partId = partCursor.getString(partCursor.getColumnIndexOrThrow("_id"));
-                        String data = partCursor.getString(partCursor.getColumnIndexOrThrow("_data"));
+                    // Same projection every time, so the indices resolved for the first cursor still apply
+                    if (part == null) {
+                        part = MmsRows.Part.bind(partCursor);
+                    }
+                    while (partCursor.moveToNext()) {
+                        part.read(partCursor);
 
-                        Bitmap image = getMmsImage(partId, data);
+                        Bitmap image = getMmsImage(part.id, part.data, null, null);
                         if (image != null) {
                             images.add(image);
                         }
-                    } while (partCursor.moveToNext());
-                    partCursor.close();
+                    }
                 }
-
-            } while (cursor.moveToNext());
-            cursor.close();
+            }
         }
 
         return images;
@@ -287,39 +826,129 @@ public class MmsImageExtractor {
      * Check if MMS has images
      */
     public boolean mmsHasImages(String mmsId) {
-        Cursor cursor = contentResolver.query(
-                Uri.parse("content://mms/part"),
-                new String[]{"_id"},
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.PART_URI,
+                MmsRows.Mms.ID_PROJECTION,
                 "mid = ? AND ct LIKE 'image/%'",
                 new String[]{mmsId},
                 null
-        );
+        )) {
+            return cursor != null && cursor.moveToFirst();
+        }
+    }
 
-        boolean hasImages = cursor != null && cursor.getCount() > 0;
-        if (cursor != null) {
-            cursor.close();
+    /**
+     * Find the downloaded MMS for a WAP push notification by transaction id or content location
+     *
+     * @return the MMS id, or null while the message is not yet retrieved
+     */
+    public String findDownloadedMms(String transactionId, String contentLocation) {
+        String selection;
+        String[] selectionArgs;
+        if (transactionId != null && contentLocation != null) {
+            selection = "(tr_id = ? OR ct_l = ?) AND m_type = " + MESSAGE_TYPE_RETRIEVE_CONF;
+            selectionArgs = new String[]{transactionId, contentLocation};
+        } else if (transactionId != null) {
+            selection = "tr_id = ? AND m_type = " + MESSAGE_TYPE_RETRIEVE_CONF;
+            selectionArgs = new String[]{transactionId};
+        } else if (contentLocation != null) {
+            selection = "ct_l = ? AND m_type = " + MESSAGE_TYPE_RETRIEVE_CONF;
+            selectionArgs = new String[]{contentLocation};
+        } else {
+            return null;
         }
 
-        return hasImages;
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.ID_PROJECTION,
+                selection,
+                selectionArgs,
+                "date DESC"
+        )) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            return String.valueOf(MmsRows.Mms.bind(cursor).read(cursor).id);
+        }
+    }
+
+    /**
+     * Find the newest MMS in the mailbox
+     *
+     * @return the MMS id, or null if there are none
+     */
+    public String findLatestMms() {
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.ID_PROJECTION,
+                null, null, "date DESC, _id DESC LIMIT 1"
+        )) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            return String.valueOf(MmsRows.Mms.bind(cursor).read(cursor).id);
+        }
     }
 
     /**
      * Get MMS sender address
      */
     public String getMmsSender(String mmsId) {
-        Cursor cursor = contentResolver.query(
-                Uri.parse("content://mms/" + mmsId + "/addr"),
-                new String[]{"address", "type"},
-                "type = 137", // 137 = FROM
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.addrUri(mmsId),
+                MmsRows.Addr.PROJECTION,
+                "type = " + MmsRows.ADDR_TYPE_FROM,
                 null, null
-        );
+        )) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            return MmsRows.Addr.bind(cursor).read(cursor).address;
+        }
+    }
 
-        String sender = null;
-        if (cursor != null && cursor.moveToFirst()) {
-            sender = cursor.getString(cursor.getColumnIndexOrThrow("address"));
-            cursor.close();
+    /**
+     * JPEG-encodes a bitmap into a file store output, timing the encode apart from the writes
+     */
+    private static class JpegWriter implements MmsFileStore.Writer {
+        private final Bitmap bitmap;
+        long encodeNanos;
+
+        JpegWriter(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            TimedOutputStream timed = new TimedOutputStream(out);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, timed);
+            encodeNanos = System.nanoTime() - start - timed.writeNanos;
+        }
+    }
+
+    /**
+     * Adds up the time spent writing to the wrapped stream
+     */
+    private static class TimedOutputStream extends FilterOutputStream {
+        long writeNanos;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
         }
 
-        return sender;
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            writeNanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            writeNanos += System.nanoTime() - start;
+        }
     }
-}
\ No newline at end of file
+}
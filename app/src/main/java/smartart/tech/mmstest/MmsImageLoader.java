@@ -0,0 +1,184 @@
+package smartart.tech.mmstest;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Progressive, cancellable loader of MMS image thumbnails for the UI.
+ *
+ * Messages are read newest first in pages of {@code pageSize}. The first page
+ * runs on the HEAVY lane so the first thumbnail shows up quickly; later pages
+ * are queued one at a time on the BULK lane so receive work can run between
+ * them. Thumbnails are hardware bitmaps sized for display and are delivered
+ * on the main thread. After {@link #cancel()} nothing more is delivered and
+ * the remaining pages are not queued.
+ *
+ * The time from {@link #start()} to the first delivered thumbnail is recorded
+ * as {@link MmsMetrics.Stage#TIME_TO_FIRST_IMAGE}.
+ */
+public class MmsImageLoader {
+
+    private static final String TAG = "MmsImageLoader";
+
+    static final int DEFAULT_PAGE_SIZE = 10;
+    static final int DEFAULT_THUMBNAIL_SIZE = 256;
+
+    // Callbacks, all on the main thread
+    public interface Listener {
+        void onThumbnail(Bitmap thumbnail, String mmsId, Uri partUri);
+
+        // Called after each page; more is false after the last one
+        void onPageLoaded(int page, int thumbnailsSoFar, boolean more);
+    }
+
+    private final ContentResolver contentResolver;
+    private final MmsImageExtractor extractor;
+    private final Listener listener;
+    private final int pageSize;
+    private final int thumbnailSize;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean cancelled;
+    private long startedAt;
+    private boolean firstDelivered;
+    private int delivered;
+
+    public MmsImageLoader(Context context, Listener listener, int pageSize, int thumbnailSize) {
+        this.contentResolver = context.getContentResolver();
+        this.extractor = new MmsImageExtractor(context);
+        this.listener = listener;
+        this.pageSize = Math.max(1, pageSize);
+        this.thumbnailSize = thumbnailSize;
+    }
+
+    public MmsImageLoader(Context context, Listener listener) {
+        this(context, listener, DEFAULT_PAGE_SIZE, DEFAULT_THUMBNAIL_SIZE);
+    }
+
+    /**
+     * Start loading; call once, from the main thread
+     */
+    public void start() {
+        startedAt = MmsMetrics.get().start();
+        queuePage(MmsDispatcher.Lane.HEAVY, 0, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Stop loading; pages already running stop at the next part
+     */
+    public void cancel() {
+        cancelled = true;
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void queuePage(MmsDispatcher.Lane lane, int page, long beforeDate, long beforeId) {
+        if (cancelled) {
+            return;
+        }
+        MmsDispatcher.get().execute(lane, new Runnable() {
+            @Override
+            public void run() {
+                loadPage(page, beforeDate, beforeId);
+            }
+        });
+    }
+
+    // Keyset paging on (date, _id) so each page is an index range, not an OFFSET scan
+    private void loadPage(int page, long beforeDate, long beforeId) {
+        if (cancelled) {
+            return;
+        }
+
+        int rows = 0;
+        long lastDate = beforeDate;
+        long lastId = beforeId;
+
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.PROJECTION,
+                "date < ? OR (date = ? AND _id < ?)",
+                new String[]{String.valueOf(beforeDate), String.valueOf(beforeDate), String.valueOf(beforeId)},
+                "date DESC, _id DESC LIMIT " + pageSize
+        )) {
+            if (cursor != null) {
+                MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+                while (!cancelled && cursor.moveToNext()) {
+                    row.read(cursor);
+                    rows++;
+                    lastDate = row.date;
+                    lastId = row.id;
+                    loadThumbnails(String.valueOf(row.id));
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading page " + page, e);
+        }
+
+        boolean more = !cancelled && rows == pageSize;
+        postPageLoaded(page, more);
+        if (more) {
+            queuePage(MmsDispatcher.Lane.BULK, page + 1, lastDate, lastId);
+        }
+    }
+
+    private void loadThumbnails(String mmsId) {
+        try (Cursor partCursor = contentResolver.query(
+                MmsRows.PART_URI,
+                MmsRows.Part.IMAGE_PROJECTION,
+                "mid = ? AND ct LIKE 'image/%'",
+                new String[]{mmsId},
+                null
+        )) {
+            if (partCursor == null) {
+                return;
+            }
+
+            MmsRows.Part part = MmsRows.Part.bind(partCursor);
+            while (!cancelled && partCursor.moveToNext()) {
+                Uri partUri = part.read(partCursor).uri();
+                Bitmap thumbnail = extractor.decodeForDisplay(partUri, thumbnailSize, thumbnailSize);
+                if (thumbnail != null) {
+                    postThumbnail(thumbnail, mmsId, partUri);
+                }
+            }
+        }
+    }
+
+    private void postThumbnail(Bitmap thumbnail, String mmsId, Uri partUri) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+                if (!firstDelivered) {
+                    firstDelivered = true;
+                    MmsMetrics.get().record(MmsMetrics.Stage.TIME_TO_FIRST_IMAGE, startedAt);
+                }
+                delivered++;
+                listener.onThumbnail(thumbnail, mmsId, partUri);
+            }
+        });
+    }
+
+    private void postPageLoaded(int page, boolean more) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled) {
+                    listener.onPageLoaded(page, delivered, more);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,334 @@
+package smartart.tech.mmstest;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Heap budget for decoded MMS bitmaps.
+ *
+ * Tracks the bytes held by live decoded bitmaps (a bitmap stops counting when
+ * it is released or garbage collected) against a share of
+ * {@link Runtime#maxMemory()}. Before each decode {@link #acquire} picks an
+ * inSampleSize that fits what is left, downsampling harder once usage passes
+ * {@link #THROTTLE_THRESHOLD}, and waits when nothing fits. Memory trim
+ * callbacks shrink the budget for a while, and critical ones pause decoding.
+ *
+ * {@link #acquire} reserves the estimated size of the decode for the calling
+ * thread, so concurrent decodes can't all fit into the same room. The next
+ * {@link #track} on that thread swaps the reservation for the bitmap's real
+ * size, or just drops it when the decode returned null; call it from a
+ * finally block so a decode that throws gives its reservation back too.
+ *
+ * Usage:
+ * <pre>
+ *     int sampleSize = MmsMemoryGovernor.get().acquire(width, height, timeoutMs);
+ *     if (sampleSize > 0) {
+ *         options.inSampleSize = sampleSize;
+ *         Bitmap bitmap = null;
+ *         try {
+ *             bitmap = BitmapFactory.decodeStream(in, null, options);
+ *         } finally {
+ *             MmsMemoryGovernor.get().track(bitmap);
+ *         }
+ *     }
+ * </pre>
+ */
+public final class MmsMemoryGovernor implements ComponentCallbacks2 {
+
+    static final float DEFAULT_HEAP_SHARE = 0.25f;
+    // Share of the budget past which decodes are downsampled harder
+    static final float THROTTLE_THRESHOLD = 0.75f;
+    static final long DEFAULT_WAIT_MS = 2000;
+    static final long CRITICAL_PAUSE_MS = 5000;
+    // How long a trim keeps the budget reduced
+    static final long TRIM_RECOVERY_MS = 30000;
+
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int MAX_SAMPLE_SIZE = 64;
+    private static final long POLL_MS = 100;
+
+    private static final MmsMemoryGovernor INSTANCE = new MmsMemoryGovernor();
+
+    private final Object lock = new Object();
+    private final ReferenceQueue<Bitmap> collected = new ReferenceQueue<>();
+    private final Set<TrackedBitmap> tracked = new HashSet<>();
+    // Bytes acquired by each thread and not yet tracked
+    private final ThreadLocal<long[]> reservation = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private final long maxMemory = Runtime.getRuntime().maxMemory();
+
+    private volatile float heapShare = DEFAULT_HEAP_SHARE;
+    private long liveBytes;
+    private long reservedBytes;
+    private long peakBytes;
+    private float trimScale = 1f;
+    private long trimmedAt;
+    private long pausedUntil;
+    private int lastTrimLevel;
+    private boolean registered;
+
+    private MmsMemoryGovernor() {
+    }
+
+    public static MmsMemoryGovernor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start receiving onTrimMemory callbacks; safe to call repeatedly
+     */
+    public void register(Context context) {
+        synchronized (lock) {
+            if (registered) {
+                return;
+            }
+            registered = true;
+        }
+        Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        appContext.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Set the share of the max heap decoded bitmaps may use, 0 to 1
+     */
+    public void setHeapShare(float share) {
+        heapShare = Math.max(0.01f, Math.min(1f, share));
+    }
+
+    public long getBudgetBytes() {
+        synchronized (lock) {
+            return budgetLocked(SystemClock.uptimeMillis());
+        }
+    }
+
+    public long getLiveBytes() {
+        synchronized (lock) {
+            drainCollected();
+            return liveBytes;
+        }
+    }
+
+    /**
+     * Whether decoding is paused or usage is past the throttle threshold;
+     * optional work like prefetching should wait
+     */
+    public boolean isUnderPressure() {
+        synchronized (lock) {
+            long now = SystemClock.uptimeMillis();
+            drainCollected();
+            return now < pausedUntil || liveBytes + reservedBytes > budgetLocked(now) * THROTTLE_THRESHOLD;
+        }
+    }
+
+    /**
+     * Reserve room for decoding a width x height ARGB_8888 image, held for the
+     * calling thread until its next {@link #track}
+     *
+     * @return the inSampleSize to decode with, or 0 if nothing fit within timeoutMs
+     */
+    public int acquire(int width, int height, long timeoutMs) {
+        long start = MmsMetrics.get().start();
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        boolean waited = false;
+
+        while (true) {
+            long now = SystemClock.uptimeMillis();
+            int sampleSize;
+            synchronized (lock) {
+                drainCollected();
+                sampleSize = now < pausedUntil ? 0 : sampleSizeLocked(width, height, budgetLocked(now));
+                if (sampleSize > 0) {
+                    long bytes = decodedBytes(width, height, sampleSize);
+                    reservation.get()[0] += bytes;
+                    reservedBytes += bytes;
+                }
+            }
+
+            if (sampleSize > 0) {
+                if (waited) {
+                    MmsMetrics.get().record(MmsMetrics.Stage.MEMORY_WAIT, start);
+                }
+                if (sampleSize > 1) {
+                    MmsMetrics.get().increment(MmsMetrics.Counter.DECODES_THROTTLED);
+                }
+                return sampleSize;
+            }
+
+            long remaining = deadline - now;
+            if (remaining <= 0) {
+                MmsMetrics.get().increment(MmsMetrics.Counter.DECODES_SKIPPED);
+                return 0;
+            }
+
+            // Wake up as soon as a tracked bitmap is collected
+            waited = true;
+            try {
+                TrackedBitmap ref = (TrackedBitmap) collected.remove(Math.min(remaining, POLL_MS));
+                if (ref != null) {
+                    synchronized (lock) {
+                        untrackLocked(ref);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                MmsMetrics.get().increment(MmsMetrics.Counter.DECODES_SKIPPED);
+                return 0;
+            }
+        }
+    }
+
+    public int acquire(int width, int height) {
+        return acquire(width, height, DEFAULT_WAIT_MS);
+    }
+
+    /**
+     * Count a decoded bitmap against the budget until it is released or collected,
+     * in place of what the calling thread acquired for it. A null bitmap just
+     * gives the reservation back. Hardware bitmaps live outside the Java heap and
+     * are not counted.
+     */
+    public Bitmap track(Bitmap bitmap) {
+        long[] reserved = reservation.get();
+        synchronized (lock) {
+            reservedBytes -= reserved[0];
+            reserved[0] = 0;
+            if (bitmap == null || bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+                return bitmap;
+            }
+            drainCollected();
+            TrackedBitmap ref = new TrackedBitmap(bitmap, bitmap.getAllocationByteCount(), collected);
+            tracked.add(ref);
+            liveBytes += ref.bytes;
+            peakBytes = Math.max(peakBytes, liveBytes);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stop counting a bitmap the caller is done with and recycle it
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (lock) {
+            for (Iterator<TrackedBitmap> it = tracked.iterator(); it.hasNext(); ) {
+                TrackedBitmap ref = it.next();
+                if (ref.get() == bitmap) {
+                    it.remove();
+                    ref.clear();
+                    liveBytes -= ref.bytes;
+                    break;
+                }
+            }
+        }
+        bitmap.recycle();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        long now = SystemClock.uptimeMillis();
+        synchronized (lock) {
+            lastTrimLevel = level;
+            trimmedAt = now;
+            if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                trimScale = 0.25f;
+                pausedUntil = now + CRITICAL_PAUSE_MS;
+            } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+                trimScale = Math.min(trimScale, 0.5f);
+            } else if (level == TRIM_MEMORY_RUNNING_MODERATE) {
+                trimScale = Math.min(trimScale, 0.75f);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Not affected
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (lock) {
+            long now = SystemClock.uptimeMillis();
+            drainCollected();
+            writer.println(prefix + String.format(Locale.US,
+                    "Bitmap memory: live=%dKB reserved=%dKB peak=%dKB budget=%dKB"
+                            + " (share=%.2f trimScale=%.2f lastTrim=%d%s)",
+                    liveBytes / 1024, reservedBytes / 1024, peakBytes / 1024, budgetLocked(now) / 1024, heapShare, trimScale,
+                    lastTrimLevel, now < pausedUntil ? " paused" : ""));
+        }
+    }
+
+    // Must hold lock
+    private long budgetLocked(long now) {
+        if (trimScale < 1f && now - trimmedAt > TRIM_RECOVERY_MS) {
+            trimScale = 1f;
+        }
+        return (long) (maxMemory * heapShare * trimScale);
+    }
+
+    // Must hold lock
+    private int sampleSizeLocked(int width, int height, long budget) {
+        long used = liveBytes + reservedBytes;
+        long allowance = budget - used;
+        if (used > budget * THROTTLE_THRESHOLD) {
+            allowance /= 4;
+        }
+
+        for (int sampleSize = 1; sampleSize <= MAX_SAMPLE_SIZE; sampleSize *= 2) {
+            if (decodedBytes(width, height, sampleSize) <= allowance) {
+                return sampleSize;
+            }
+        }
+        return 0;
+    }
+
+    private static long decodedBytes(int width, int height, int sampleSize) {
+        long pixels = (long) Math.max(1, width) * Math.max(1, height);
+        return pixels / ((long) sampleSize * sampleSize) * BYTES_PER_PIXEL;
+    }
+
+    // Must hold lock
+    private void drainCollected() {
+        TrackedBitmap ref;
+        while ((ref = (TrackedBitmap) collected.poll()) != null) {
+            untrackLocked(ref);
+        }
+    }
+
+    // Must hold lock
+    private void untrackLocked(TrackedBitmap ref) {
+        if (tracked.remove(ref)) {
+            liveBytes -= ref.bytes;
+        }
+    }
+
+    private static class TrackedBitmap extends WeakReference<Bitmap> {
+        final long bytes;
+
+        TrackedBitmap(Bitmap bitmap, long bytes, ReferenceQueue<Bitmap> queue) {
+            super(bitmap, queue);
+            this.bytes = bytes;
+        }
+    }
+}
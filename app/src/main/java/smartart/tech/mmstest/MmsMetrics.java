@@ -0,0 +1,196 @@
+package smartart.tech.mmstest;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-stage latency histograms and counters for the MMS receive pipeline.
+ *
+ * Usage:
+ * <pre>
+ *     long start = MmsMetrics.get().start();
+ *     ... do the work ...
+ *     MmsMetrics.get().record(MmsMetrics.Stage.DECODE, start);
+ * </pre>
+ *
+ * The numbers can be read with {@link #snapshot()} or dumped with
+ * {@code adb shell dumpsys activity smartart.tech.mmstest/.MmsUsageExample}.
+ */
+public class MmsMetrics {
+
+    // Pipeline stages, in the order they normally happen
+    public enum Stage {
+        BROADCAST_RECEIVE,
+        WAIT_FOR_PROVIDER,
+        URGENT_QUEUE_WAIT,
+        TRIAGE_QUEUE_WAIT,
+        HEAVY_QUEUE_WAIT,
+        PART_QUERY,
+        MEMORY_WAIT,
+        DECODE,
+        ENCODE,
+        FILE_WRITE,
+        GALLERY_INSERT,
+        NOTIFICATION,
+        TIME_TO_FIRST_IMAGE
+    }
+
+    // Event counters
+    public enum Counter {
+        BROADCASTS,
+        MMS_PROCESSED,
+        IMAGES,
+        TEXTS,
+        VIDEOS,
+        DECODE_FAILURES,
+        DECODES_THROTTLED,
+        DECODES_SKIPPED,
+        TILED_IMAGES,
+        PARTS_MISLABELED,
+        PARTS_SKIPPED,
+        PREFETCH_HITS,
+        PREFETCH_MISSES,
+        WRITE_FAILURES,
+        FILES_EVICTED,
+        DUPLICATES_DROPPED,
+        TRIAGE_OVER_BUDGET,
+        TRIAGE_SHED,
+        NOTIFICATIONS_POSTED,
+        NOTIFICATIONS_COALESCED,
+        TOASTS_SHOWN,
+        TOASTS_COALESCED
+    }
+
+    private static final MmsMetrics INSTANCE = new MmsMetrics();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final long createdAtMillis = System.currentTimeMillis();
+
+    private MmsMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static MmsMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a start timestamp to pass to {@link #record(Stage, long)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time elapsed since startNanos against a stage
+     */
+    public void record(Stage stage, long startNanos) {
+        recordNanos(stage, System.nanoTime() - startNanos);
+    }
+
+    public void recordNanos(Stage stage, long durationNanos) {
+        histograms[stage.ordinal()].recordMicros(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    /**
+     * Take a point-in-time copy of every histogram and counter
+     */
+    public Snapshot snapshot() {
+        Map<Stage, LatencyHistogram.Snapshot> stages = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, histograms[stage.ordinal()].snapshot());
+        }
+
+        Map<Counter, Long> counts = new EnumMap<>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            counts.put(counter, counters.get(counter.ordinal()));
+        }
+
+        return new Snapshot(stages, counts, System.currentTimeMillis() - createdAtMillis);
+    }
+
+    /**
+     * Clear all histograms and counters
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    /**
+     * Write a dumpsys-style report
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        snapshot().dump(prefix, writer);
+    }
+
+    /**
+     * Immutable copy of all metrics
+     */
+    public static class Snapshot {
+        private final Map<Stage, LatencyHistogram.Snapshot> stages;
+        private final Map<Counter, Long> counters;
+        private final long uptimeMillis;
+
+        Snapshot(Map<Stage, LatencyHistogram.Snapshot> stages, Map<Counter, Long> counters, long uptimeMillis) {
+            this.stages = stages;
+            this.counters = counters;
+            this.uptimeMillis = uptimeMillis;
+        }
+
+        public LatencyHistogram.Snapshot getStage(Stage stage) {
+            return stages.get(stage);
+        }
+
+        public long getCounter(Counter counter) {
+            Long value = counters.get(counter);
+            return value != null ? value : 0;
+        }
+
+        public long getUptimeMillis() {
+            return uptimeMillis;
+        }
+
+        public void dump(String prefix, PrintWriter writer) {
+            writer.println(prefix + "MMS pipeline metrics (uptime " + uptimeMillis + " ms)");
+            writer.println(prefix + "  Counters:");
+            for (Counter counter : Counter.values()) {
+                writer.println(prefix + "    " + counter.name().toLowerCase(Locale.US) + "=" + getCounter(counter));
+            }
+
+            writer.println(prefix + "  Stage latency (us):");
+            writer.println(prefix + String.format(Locale.US, "    %-18s %8s %8s %8s %8s %8s %8s",
+                    "stage", "count", "mean", "p50", "p90", "p99", "max"));
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram.Snapshot s = stages.get(stage);
+                writer.println(prefix + String.format(Locale.US, "    %-18s %8d %8d %8d %8d %8d %8d",
+                        stage.name().toLowerCase(Locale.US),
+                        s.getCount(),
+                        s.getMeanMicros(),
+                        s.getPercentileMicros(50),
+                        s.getPercentileMicros(90),
+                        s.getPercentileMicros(99),
+                        s.getMaxMicros()));
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package smartart.tech.mmstest;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Delete intent target of MmsNotifier's notifications: tells the notifier a
+ * kind's notification was cleared so it starts its lines and count over.
+ */
+public class MmsNotificationDismissReceiver extends BroadcastReceiver {
+
+    static final String EXTRA_KIND = "smartart.tech.mmstest.extra.NOTIFICATION_KIND";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String kind = intent.getStringExtra(EXTRA_KIND);
+        if (kind == null) {
+            return;
+        }
+        try {
+            MmsNotifier.get().onDismissed(MmsNotifier.Kind.valueOf(kind));
+        } catch (IllegalArgumentException e) {
+            // Not a kind this build knows
+        }
+    }
+}
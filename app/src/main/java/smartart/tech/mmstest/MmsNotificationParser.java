@@ -0,0 +1,348 @@
+package smartart.tech.mmstest;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser for the M-Notification.ind PDU carried in a WAP push ("data" extra).
+ *
+ * Walks the MMS encapsulation headers (OMA-TS-MMS_ENC) directly over a
+ * ByteBuffer and only keeps the fields needed to find the message in the
+ * provider: transaction id, content location, message size, sender and expiry.
+ * Unknown headers are skipped using the generic WSP value rules. Malformed
+ * input never throws; {@link #parse} just returns false.
+ *
+ * Usage:
+ * <pre>
+ *     MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+ *     if (MmsNotificationParser.parse(ByteBuffer.wrap(pdu), result)) {
+ *         ... result.transactionId, result.contentLocation ...
+ *     }
+ * </pre>
+ */
+public final class MmsNotificationParser {
+
+    public static final int MESSAGE_TYPE_NOTIFICATION_IND = 0x82;
+
+    // Well-known header field codes, with the high bit set
+    private static final int HEADER_CONTENT_LOCATION = 0x83;
+    private static final int HEADER_EXPIRY = 0x88;
+    private static final int HEADER_FROM = 0x89;
+    private static final int HEADER_MESSAGE_CLASS = 0x8A;
+    private static final int HEADER_MESSAGE_TYPE = 0x8C;
+    private static final int HEADER_MMS_VERSION = 0x8D;
+    private static final int HEADER_MESSAGE_SIZE = 0x8E;
+    private static final int HEADER_SUBJECT = 0x96;
+    private static final int HEADER_TRANSACTION_ID = 0x98;
+
+    private static final int ABSOLUTE_TOKEN = 0x80;
+    private static final int ADDRESS_PRESENT_TOKEN = 0x80;
+    private static final int QUOTE = 0x7F;
+    private static final int LENGTH_QUOTE = 31;
+
+    private static final int CHARSET_US_ASCII = 3;
+    private static final int CHARSET_ISO_8859_1 = 4;
+    private static final int CHARSET_UTF_8 = 106;
+    private static final int CHARSET_UTF_16 = 1015;
+
+    private MmsNotificationParser() {
+    }
+
+    /**
+     * Fields of a parsed M-Notification.ind. Reusable across calls.
+     */
+    public static class Result {
+        public int messageType;
+        public int mmsVersion;
+        public String transactionId;
+        public String contentLocation;
+        public String from;
+        public String subject;
+        public int messageClass;
+        // -1 when absent
+        public long messageSize;
+        // Seconds; an absolute time since the epoch or relative to now
+        public long expirySeconds;
+        public boolean expiryRelative;
+
+        public void reset() {
+            messageType = 0;
+            mmsVersion = 0;
+            transactionId = null;
+            contentLocation = null;
+            from = null;
+            subject = null;
+            messageClass = 0;
+            messageSize = -1;
+            expirySeconds = -1;
+            expiryRelative = false;
+        }
+
+        @Override
+        public String toString() {
+            return "MmsNotification{trId=" + transactionId + ", location=" + contentLocation
+                    + ", size=" + messageSize + ", from=" + from + ", expiry=" + expirySeconds
+                    + (expiryRelative ? "s relative" : "s absolute") + "}";
+        }
+    }
+
+    /**
+     * Parse an M-Notification.ind starting at the buffer's position
+     *
+     * @return true if the PDU is a well-formed notification with a content location
+     */
+    public static boolean parse(ByteBuffer pdu, Result out) {
+        out.reset();
+        try {
+            while (pdu.hasRemaining()) {
+                int field = pdu.get() & 0xFF;
+                switch (field) {
+                    case HEADER_MESSAGE_TYPE:
+                        out.messageType = pdu.get() & 0xFF;
+                        if (out.messageType != MESSAGE_TYPE_NOTIFICATION_IND) {
+                            return false;
+                        }
+                        break;
+                    case HEADER_TRANSACTION_ID:
+                        out.transactionId = readTextString(pdu);
+                        break;
+                    case HEADER_MMS_VERSION:
+                        out.mmsVersion = pdu.get() & 0x7F;
+                        break;
+                    case HEADER_CONTENT_LOCATION:
+                        out.contentLocation = readTextString(pdu);
+                        break;
+                    case HEADER_MESSAGE_SIZE:
+                        out.messageSize = readLongInteger(pdu);
+                        break;
+                    case HEADER_FROM:
+                        out.from = readFrom(pdu);
+                        break;
+                    case HEADER_SUBJECT:
+                        out.subject = readEncodedString(pdu);
+                        break;
+                    case HEADER_EXPIRY:
+                        readExpiry(pdu, out);
+                        break;
+                    case HEADER_MESSAGE_CLASS:
+                        out.messageClass = readMessageClass(pdu);
+                        break;
+                    default:
+                        if (field < 0x80) {
+                            // Application header: token-text name, then a text value
+                            pdu.position(pdu.position() - 1);
+                            skipTextString(pdu);
+                            skipTextString(pdu);
+                        } else {
+                            skipValue(pdu);
+                        }
+                        break;
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+
+        return out.messageType == MESSAGE_TYPE_NOTIFICATION_IND && out.contentLocation != null;
+    }
+
+    public static boolean parse(byte[] pdu, Result out) {
+        return pdu != null && parse(ByteBuffer.wrap(pdu), out);
+    }
+
+    // From: Value-length (Address-present-token Encoded-string-value | Insert-address-token)
+    static String readFrom(ByteBuffer pdu) {
+        int length = readValueLength(pdu);
+        int end = checkedEnd(pdu, length);
+        String address = null;
+        if (length > 0 && (pdu.get() & 0xFF) == ADDRESS_PRESENT_TOKEN) {
+            address = readEncodedString(pdu);
+            address = stripAddressType(address);
+        }
+        pdu.position(end);
+        return address;
+    }
+
+    // Expiry: Value-length (Absolute-token | Relative-token) Long-integer
+    private static void readExpiry(ByteBuffer pdu, Result out) {
+        int length = readValueLength(pdu);
+        int end = checkedEnd(pdu, length);
+        out.expiryRelative = (pdu.get() & 0xFF) != ABSOLUTE_TOKEN;
+        out.expirySeconds = readLongInteger(pdu);
+        pdu.position(end);
+    }
+
+    private static int readMessageClass(ByteBuffer pdu) {
+        int first = pdu.get(pdu.position()) & 0xFF;
+        if (first >= 0x80) {
+            pdu.get();
+            return first;
+        }
+        // Token-text class name
+        skipTextString(pdu);
+        return 0;
+    }
+
+    // Long-integer: Short-length multi-octet; a short-integer is also accepted
+    static long readLongInteger(ByteBuffer pdu) {
+        int first = pdu.get() & 0xFF;
+        if (first >= 0x80) {
+            return first & 0x7F;
+        }
+        if (first > 8) {
+            throw new IllegalArgumentException("Long-integer too long: " + first);
+        }
+        long value = 0;
+        for (int i = 0; i < first; i++) {
+            value = (value << 8) | (pdu.get() & 0xFF);
+        }
+        return value;
+    }
+
+    static long readUintvar(ByteBuffer pdu) {
+        long value = 0;
+        for (int i = 0; i < 5; i++) {
+            int b = pdu.get() & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Uintvar too long");
+    }
+
+    static int readValueLength(ByteBuffer pdu) {
+        int first = pdu.get() & 0xFF;
+        if (first < LENGTH_QUOTE) {
+            return first;
+        }
+        if (first == LENGTH_QUOTE) {
+            long length = readUintvar(pdu);
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Value length too large");
+            }
+            return (int) length;
+        }
+        throw new IllegalArgumentException("Not a value length: " + first);
+    }
+
+    // Encoded-string-value: Text-string | Value-length Char-set Text-string
+    static String readEncodedString(ByteBuffer pdu) {
+        int first = pdu.get(pdu.position()) & 0xFF;
+        if (first > LENGTH_QUOTE) {
+            return readTextString(pdu);
+        }
+
+        int length = readValueLength(pdu);
+        int end = checkedEnd(pdu, length);
+        int charset = (int) readLongInteger(pdu);
+        String value = readTextString(pdu, end, charsetFor(charset));
+        pdu.position(end);
+        return value;
+    }
+
+    static String readTextString(ByteBuffer pdu) {
+        return readTextString(pdu, pdu.limit(), StandardCharsets.UTF_8);
+    }
+
+    // Text-string: [Quote] *TEXT End-of-string, read no further than end
+    static String readTextString(ByteBuffer pdu, int end, Charset charset) {
+        if (pdu.position() < end && (pdu.get(pdu.position()) & 0xFF) == QUOTE) {
+            pdu.get();
+        }
+
+        int start = pdu.position();
+        int terminator = charset == StandardCharsets.UTF_16
+                ? findWideTerminator(pdu, start, end) : findTerminator(pdu, start, end);
+
+        String value;
+        int length = terminator - start;
+        if (pdu.hasArray()) {
+            value = new String(pdu.array(), pdu.arrayOffset() + start, length, charset);
+        } else {
+            byte[] bytes = new byte[length];
+            pdu.get(bytes);
+            value = new String(bytes, charset);
+        }
+        pdu.position(Math.min(end, terminator + (charset == StandardCharsets.UTF_16 ? 2 : 1)));
+        return value;
+    }
+
+    private static int findTerminator(ByteBuffer pdu, int start, int end) {
+        int terminator = start;
+        while (terminator < end && pdu.get(terminator) != 0) {
+            terminator++;
+        }
+        if (terminator >= end) {
+            throw new IllegalArgumentException("Unterminated text string");
+        }
+        return terminator;
+    }
+
+    // UTF-16 has 0x00 inside most characters, so the end is a zero code unit;
+    // a single End-of-string octet closing the value is accepted too
+    private static int findWideTerminator(ByteBuffer pdu, int start, int end) {
+        int terminator = start;
+        while (terminator + 1 < end && (pdu.get(terminator) != 0 || pdu.get(terminator + 1) != 0)) {
+            terminator += 2;
+        }
+        if (terminator + 1 < end) {
+            return terminator;
+        }
+        if (end > start && pdu.get(end - 1) == 0) {
+            return end - 1;
+        }
+        throw new IllegalArgumentException("Unterminated text string");
+    }
+
+    static void skipTextString(ByteBuffer pdu) {
+        while (pdu.get() != 0) {
+            // Skip to end-of-string
+        }
+    }
+
+    // Generic WSP value: length-prefixed data, text, or a single short-integer octet
+    static void skipValue(ByteBuffer pdu) {
+        int first = pdu.get(pdu.position()) & 0xFF;
+        if (first <= LENGTH_QUOTE) {
+            int length = readValueLength(pdu);
+            pdu.position(checkedEnd(pdu, length));
+        } else if (first < 0x80) {
+            skipTextString(pdu);
+        } else {
+            pdu.get();
+        }
+    }
+
+    static int checkedEnd(ByteBuffer pdu, int length) {
+        if (length < 0 || length > pdu.remaining()) {
+            throw new IllegalArgumentException("Value length " + length + " exceeds PDU");
+        }
+        return pdu.position() + length;
+    }
+
+    static Charset charsetFor(int mib) {
+        switch (mib) {
+            case CHARSET_US_ASCII:
+                return StandardCharsets.US_ASCII;
+            case CHARSET_ISO_8859_1:
+                return StandardCharsets.ISO_8859_1;
+            case CHARSET_UTF_16:
+                return StandardCharsets.UTF_16;
+            case CHARSET_UTF_8:
+            default:
+                return StandardCharsets.UTF_8;
+        }
+    }
+
+    // "+15551234567/TYPE=PLMN" -> "+15551234567"
+    static String stripAddressType(String address) {
+        if (address == null) {
+            return null;
+        }
+        int slash = address.indexOf("/TYPE=");
+        return slash >= 0 ? address.substring(0, slash) : address;
+    }
+}
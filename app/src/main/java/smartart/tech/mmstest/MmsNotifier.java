@@ -0,0 +1,281 @@
+package smartart.tech.mmstest;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.widget.Toast;
+
+import androidx.core.app.NotificationCompat;
+
+import java.util.ArrayDeque;
+
+/**
+ * Coalescing, rate-limited dispatcher for MMS notifications and toasts.
+ *
+ * Events can be posted from any thread. They are collected for
+ * {@link #COALESCE_WINDOW_MS} and then shown as one inbox-style notification
+ * per kind (or one toast), always from the main looper. A kind is updated at
+ * most once every {@link #MIN_UPDATE_INTERVAL_MS}; urgent messages skip the
+ * window but are still never posted more often than that.
+ *
+ * The count and inbox lines of a kind build up while its notification is
+ * showing. Once the user dismisses it, its delete intent reaches
+ * {@link MmsNotificationDismissReceiver} and they start over from the lines
+ * queued since the last post.
+ *
+ * A silent notifier coalesces and builds exactly like the shared one but
+ * never posts anything; the debug build's MmsLoadHarness hands one to its receivers.
+ */
+public class MmsNotifier {
+
+    static final String CHANNEL_ID = "mms_channel";
+
+    static final long COALESCE_WINDOW_MS = 500;
+    static final long MIN_UPDATE_INTERVAL_MS = 1000;
+    private static final int MAX_INBOX_LINES = 5;
+
+    // Notification kinds, each with its own notification id
+    public enum Kind {
+        IMAGE(1, "MMS Image Received", android.R.drawable.ic_dialog_info, NotificationCompat.PRIORITY_HIGH),
+        URGENT(2, "Urgent message", android.R.drawable.ic_dialog_alert, NotificationCompat.PRIORITY_MAX),
+        VIDEO(3, "MMS Video Received", android.R.drawable.ic_dialog_info, NotificationCompat.PRIORITY_HIGH);
+
+        final int notificationId;
+        final String title;
+        final int icon;
+        final int priority;
+
+        Kind(int notificationId, String title, int icon, int priority) {
+            this.notificationId = notificationId;
+            this.title = title;
+            this.icon = icon;
+            this.priority = priority;
+        }
+    }
+
+    private static final MmsNotifier INSTANCE = new MmsNotifier(false);
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object lock = new Object();
+    private final boolean silent;
+
+    private final KindState[] states = new KindState[Kind.values().length];
+    private final ArrayDeque<String> pendingToasts = new ArrayDeque<>();
+    private boolean toastScheduled;
+    private boolean channelCreated;
+    private Context appContext;
+
+    MmsNotifier(boolean silent) {
+        this.silent = silent;
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new KindState();
+        }
+    }
+
+    public static MmsNotifier get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queue a line for the notification of the given kind
+     */
+    public void notify(Context context, Kind kind, String line) {
+        long now = SystemClock.uptimeMillis();
+        KindState state = states[kind.ordinal()];
+
+        synchronized (lock) {
+            attach(context);
+            state.lines.addLast(line);
+            while (state.lines.size() > MAX_INBOX_LINES) {
+                state.lines.removeFirst();
+            }
+            state.total++;
+            state.pending++;
+
+            if (state.scheduled) {
+                MmsMetrics.get().increment(MmsMetrics.Counter.NOTIFICATIONS_COALESCED);
+                return;
+            }
+            state.scheduled = true;
+
+            long window = kind == Kind.URGENT ? 0 : COALESCE_WINDOW_MS;
+            long due = Math.max(now + window, state.lastPostedAt + MIN_UPDATE_INTERVAL_MS);
+            mainHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    flush(kind);
+                }
+            }, due);
+        }
+    }
+
+    /**
+     * The notification of this kind left the shade; forget the lines already shown in it
+     */
+    void onDismissed(Kind kind) {
+        KindState state = states[kind.ordinal()];
+        synchronized (lock) {
+            while (state.lines.size() > state.pending) {
+                state.lines.removeFirst();
+            }
+            state.total = state.pending;
+        }
+    }
+
+    /**
+     * Queue a toast; toasts posted within the window are shown as one
+     */
+    public void toast(Context context, String text) {
+        synchronized (lock) {
+            attach(context);
+            pendingToasts.addLast(text);
+
+            if (toastScheduled) {
+                MmsMetrics.get().increment(MmsMetrics.Counter.TOASTS_COALESCED);
+                return;
+            }
+            toastScheduled = true;
+            mainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flushToasts();
+                }
+            }, COALESCE_WINDOW_MS);
+        }
+    }
+
+    /**
+     * Number of notification and toast updates folded into an earlier one
+     */
+    public long getCoalescedCount() {
+        MmsMetrics.Snapshot snapshot = MmsMetrics.get().snapshot();
+        return snapshot.getCounter(MmsMetrics.Counter.NOTIFICATIONS_COALESCED)
+                + snapshot.getCounter(MmsMetrics.Counter.TOASTS_COALESCED);
+    }
+
+    // Must hold lock
+    private void attach(Context context) {
+        if (appContext == null) {
+            appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        }
+    }
+
+    private void flush(Kind kind) {
+        KindState state = states[kind.ordinal()];
+        String[] lines;
+        int total;
+        int pending;
+        Context context;
+
+        synchronized (lock) {
+            lines = state.lines.toArray(new String[0]);
+            total = state.total;
+            pending = state.pending;
+            state.pending = 0;
+            state.scheduled = false;
+            if (pending == 0 || lines.length == 0) {
+                return;
+            }
+            state.lastPostedAt = SystemClock.uptimeMillis();
+            context = appContext;
+        }
+
+        long start = MmsMetrics.get().start();
+        ensureChannel(context);
+
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        for (String line : lines) {
+            style.addLine(line);
+        }
+        if (total > lines.length) {
+            style.setSummaryText("+" + (total - lines.length) + " more");
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(kind.icon)
+                .setContentTitle(total > 1 ? kind.title + " (" + total + ")" : kind.title)
+                .setContentText(lines[lines.length - 1])
+                .setStyle(style)
+                .setNumber(total)
+                .setPriority(kind.priority)
+                .setOnlyAlertOnce(kind != Kind.URGENT)
+                .setAutoCancel(true)
+                .setDeleteIntent(dismissIntent(context, kind));
+
+        if (kind == Kind.URGENT) {
+            builder.setVibrate(new long[]{0, 500, 1000, 500, 1000});
+        }
+
+        Notification notification = builder.build();
+        if (!silent) {
+            NotificationManager notificationManager =
+                    (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.notify(kind.notificationId, notification);
+        }
+
+        MmsMetrics.get().increment(MmsMetrics.Counter.NOTIFICATIONS_POSTED);
+        MmsMetrics.get().record(MmsMetrics.Stage.NOTIFICATION, start);
+    }
+
+    private static PendingIntent dismissIntent(Context context, Kind kind) {
+        Intent intent = new Intent(context, MmsNotificationDismissReceiver.class)
+                .putExtra(MmsNotificationDismissReceiver.EXTRA_KIND, kind.name());
+        return PendingIntent.getBroadcast(context, kind.notificationId, intent,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private void flushToasts() {
+        String text;
+        Context context;
+
+        synchronized (lock) {
+            toastScheduled = false;
+            if (pendingToasts.isEmpty()) {
+                return;
+            }
+            int count = pendingToasts.size();
+            text = count == 1 ? pendingToasts.peekFirst()
+                    : count + " new messages, latest: " + pendingToasts.peekLast();
+            pendingToasts.clear();
+            context = appContext;
+        }
+
+        if (!silent) {
+            Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
+        }
+        MmsMetrics.get().increment(MmsMetrics.Counter.TOASTS_SHOWN);
+    }
+
+    /**
+     * Create notification channel for Android 8.0+
+     */
+    private void ensureChannel(Context context) {
+        if (channelCreated || silent) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    "MMS Notifications", NotificationManager.IMPORTANCE_HIGH);
+            channel.setDescription("Notifications for received MMS messages");
+
+            NotificationManager notificationManager = context.getSystemService(NotificationManager.class);
+            notificationManager.createNotificationChannel(channel);
+        }
+        channelCreated = true;
+    }
+
+    private static class KindState {
+        final ArrayDeque<String> lines = new ArrayDeque<>();
+        int total;
+        int pending;
+        boolean scheduled;
+        long lastPostedAt = -MIN_UPDATE_INTERVAL_MS;
+    }
+}
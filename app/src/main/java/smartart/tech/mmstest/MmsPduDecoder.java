@@ -0,0 +1,537 @@
+package smartart.tech.mmstest;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming decoder for raw M-Retrieve.conf PDUs (exports, fixtures, direct downloads).
+ *
+ * Walks the MMS headers and the WSP multipart body over a ByteBuffer, which
+ * may be memory-mapped, and reports each part as a content type, content-id
+ * and offset/length into that buffer. Part bodies are never copied;
+ * {@link Part#body()} returns a slice of the original buffer.
+ *
+ * Usage:
+ * <pre>
+ *     MmsPduDecoder.decode(file, headers, new MmsPduDecoder.OnPartListener() {
+ *         public void onPart(MmsPduDecoder.Part part) { ... part.body() ... }
+ *     });
+ * </pre>
+ */
+public final class MmsPduDecoder {
+
+    private static final String TAG = "MmsPduDecoder";
+
+    public static final int MESSAGE_TYPE_RETRIEVE_CONF = 0x84;
+
+    // MMS header field codes, with the high bit set
+    private static final int HEADER_CONTENT_TYPE = 0x84;
+    private static final int HEADER_DATE = 0x85;
+    private static final int HEADER_FROM = 0x89;
+    private static final int HEADER_MESSAGE_ID = 0x8B;
+    private static final int HEADER_MESSAGE_TYPE = 0x8C;
+    private static final int HEADER_SUBJECT = 0x96;
+    private static final int HEADER_TRANSACTION_ID = 0x98;
+
+    // WSP part header field codes, with the high bit set
+    private static final int PART_CONTENT_LOCATION = 0x8E;
+    private static final int PART_CONTENT_ID = 0xC0;
+
+    // WSP content-type parameter codes, with the high bit set
+    private static final int PARAM_CHARSET = 0x81;
+    private static final int PARAM_TYPE = 0x83;
+    private static final int PARAM_NAME = 0x85;
+    private static final int PARAM_FILENAME = 0x86;
+    private static final int PARAM_TYPE_V2 = 0x89;
+    private static final int PARAM_START = 0x8A;
+    private static final int PARAM_NAME_V2 = 0x97;
+    private static final int PARAM_FILENAME_V2 = 0x98;
+    private static final int PARAM_START_V2 = 0x99;
+
+    // Well-known content types (WAP-230-WSP Appendix A), indexed by assigned number
+    private static final String[] WELL_KNOWN_TYPES = {
+            "*/*", "text/*", "text/html", "text/plain",
+            "text/x-hdml", "text/x-ttml", "text/x-vCalendar", "text/x-vCard",
+            "text/vnd.wap.wml", "text/vnd.wap.wmlscript", "text/vnd.wap.wta-event", "multipart/*",
+            "multipart/mixed", "multipart/form-data", "multipart/byteranges", "multipart/alternative",
+            "application/*", "application/java-vm", "application/x-www-form-urlencoded", "application/x-hdmlc",
+            "application/vnd.wap.wmlc", "application/vnd.wap.wmlscriptc", "application/vnd.wap.wta-eventc",
+            "application/vnd.wap.uaprof",
+            "application/vnd.wap.wtls-ca-certificate", "application/vnd.wap.wtls-user-certificate",
+            "application/x-x509-ca-cert", "application/x-x509-user-cert",
+            "image/*", "image/gif", "image/jpeg", "image/tiff",
+            "image/png", "image/vnd.wap.wbmp", "application/vnd.wap.multipart.*",
+            "application/vnd.wap.multipart.mixed",
+            "application/vnd.wap.multipart.form-data", "application/vnd.wap.multipart.byteranges",
+            "application/vnd.wap.multipart.alternative", "application/xml",
+            "text/xml", "application/vnd.wap.wbxml", "application/x-x968-cross-cert",
+            "application/x-x968-ca-cert",
+            "application/x-x968-user-cert", "text/vnd.wap.si", "application/vnd.wap.sic", "text/vnd.wap.sl",
+            "application/vnd.wap.slc", "text/vnd.wap.co", "application/vnd.wap.coc",
+            "application/vnd.wap.multipart.related"
+    };
+    private static final String UNKNOWN_TYPE = "application/octet-stream";
+
+    private MmsPduDecoder() {
+    }
+
+    // Interface for callback for each decoded part
+    public interface OnPartListener {
+        void onPart(Part part);
+    }
+
+    /**
+     * Top-level headers of the decoded PDU. Reusable across calls.
+     */
+    public static class Headers {
+        public int messageType;
+        public String transactionId;
+        public String messageId;
+        public String from;
+        public String subject;
+        // Seconds since the epoch, -1 when absent
+        public long date;
+        public String contentType;
+        public String start;
+        public int partCount;
+
+        void reset() {
+            messageType = 0;
+            transactionId = null;
+            messageId = null;
+            from = null;
+            subject = null;
+            date = -1;
+            contentType = null;
+            start = null;
+            partCount = 0;
+        }
+    }
+
+    /**
+     * One body part. The same instance is reused for every part of a PDU,
+     * so copy out anything needed after {@link OnPartListener#onPart} returns.
+     */
+    public static class Part {
+        private ByteBuffer pdu;
+        public int index;
+        public String contentType;
+        public String contentId;
+        public String contentLocation;
+        public String name;
+        // IANA MIBenum, 0 when absent
+        public int charset;
+        // Absolute offset and length of the body within the decoded buffer
+        public int offset;
+        public int length;
+
+        void reset(ByteBuffer pdu, int index) {
+            this.pdu = pdu;
+            this.index = index;
+            contentType = null;
+            contentId = null;
+            contentLocation = null;
+            name = null;
+            charset = 0;
+            offset = 0;
+            length = 0;
+        }
+
+        /**
+         * The part body as a read-only slice of the PDU buffer (no copy)
+         */
+        public ByteBuffer body() {
+            ByteBuffer view = pdu.asReadOnlyBuffer();
+            view.limit(offset + length);
+            view.position(offset);
+            return view.slice();
+        }
+
+        /**
+         * Decode a text part using its charset
+         */
+        public String text() {
+            Charset cs = charset != 0 ? MmsNotificationParser.charsetFor(charset) : StandardCharsets.UTF_8;
+            return cs.decode(body()).toString();
+        }
+    }
+
+    /**
+     * Decode a PDU starting at the buffer's position. Malformed input never throws.
+     *
+     * @return false if the PDU is not a well-formed M-Retrieve.conf
+     */
+    public static boolean decode(ByteBuffer pdu, Headers headers, OnPartListener listener) {
+        headers.reset();
+        try {
+            if (!readHeaders(pdu, headers)) {
+                return false;
+            }
+            return readBody(pdu, headers, listener);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Memory-map a PDU file and decode it. Part slices stay valid after this returns.
+     */
+    public static boolean decode(File file, Headers headers, OnPartListener listener) throws IOException {
+        return decode(map(file), headers, listener);
+    }
+
+    /**
+     * Memory-map a file read-only. The mapping outlives the file handle.
+     */
+    public static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Decode a PDU and report its parts through the same listener used by
+     * {@link MmsImageExtractor}. Video parts have no provider Uri and are skipped.
+     */
+    public static boolean extractParts(ByteBuffer pdu, String mmsId, MmsImageExtractor.OnImageFoundListener listener) {
+        boolean decoded = decode(pdu, new Headers(), new OnPartListener() {
+            @Override
+            public void onPart(Part part) {
+                String contentType = part.contentType;
+                if (MmsContentSniffer.shouldSniff(contentType)) {
+                    // Route on what the bytes are, not on the declared type
+                    MmsContentSniffer.Kind kind = MmsContentSniffer.sniff(part.body(), contentType);
+                    if (!kind.isImage() && !kind.isVideo() && kind != MmsContentSniffer.Kind.TEXT) {
+                        MmsMetrics.get().increment(MmsMetrics.Counter.PARTS_SKIPPED);
+                        return;
+                    }
+                    if (!kind.mimeType.equals(contentType)) {
+                        MmsMetrics.get().increment(MmsMetrics.Counter.PARTS_MISLABELED);
+                    }
+                    contentType = kind.mimeType;
+                }
+
+                if (contentType.startsWith("image/")) {
+                    long start = MmsMetrics.get().start();
+                    Bitmap image = decodeBitmap(part);
+                    MmsMetrics.get().record(MmsMetrics.Stage.DECODE, start);
+                    if (image != null) {
+                        MmsMetrics.get().increment(MmsMetrics.Counter.IMAGES);
+                        listener.onImageFound(image, contentType, mmsId);
+                    } else {
+                        MmsMetrics.get().increment(MmsMetrics.Counter.DECODE_FAILURES);
+                    }
+                } else if (contentType.equals("text/plain")) {
+                    MmsMetrics.get().increment(MmsMetrics.Counter.TEXTS);
+                    listener.onTextFound(part.text(), mmsId);
+                }
+            }
+        });
+        if (!decoded) {
+            Log.w(TAG, "Malformed MMS PDU " + mmsId);
+        }
+        return decoded;
+    }
+
+    private static Bitmap decodeBitmap(Part part) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeBitmap(part, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        if (part.pdu.hasArray() && MmsTiledImage.needsTiling(options.outWidth, options.outHeight)) {
+            MmsMetrics.get().increment(MmsMetrics.Counter.TILED_IMAGES);
+            try (MmsTiledImage image = MmsTiledImage.open(part.pdu.array(),
+                    part.pdu.arrayOffset() + part.offset, part.length)) {
+                return image.decodeOverview(MmsTiledImage.OVERVIEW_MAX_PIXELS);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        int sampleSize = MmsMemoryGovernor.get().acquire(options.outWidth, options.outHeight);
+        if (sampleSize == 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = null;
+        try {
+            bitmap = decodeBitmap(part, options);
+        } finally {
+            MmsMemoryGovernor.get().track(bitmap);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap decodeBitmap(Part part, BitmapFactory.Options options) {
+        if (part.pdu.hasArray()) {
+            // Decode straight out of the backing array
+            return BitmapFactory.decodeByteArray(part.pdu.array(),
+                    part.pdu.arrayOffset() + part.offset, part.length, options);
+        }
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(part.body()), null, options);
+    }
+
+    private static boolean readHeaders(ByteBuffer pdu, Headers headers) {
+        while (pdu.hasRemaining()) {
+            int field = pdu.get() & 0xFF;
+            switch (field) {
+                case HEADER_MESSAGE_TYPE:
+                    headers.messageType = pdu.get() & 0xFF;
+                    if (headers.messageType != MESSAGE_TYPE_RETRIEVE_CONF) {
+                        return false;
+                    }
+                    break;
+                case HEADER_TRANSACTION_ID:
+                    headers.transactionId = MmsNotificationParser.readTextString(pdu);
+                    break;
+                case HEADER_MESSAGE_ID:
+                    headers.messageId = MmsNotificationParser.readTextString(pdu);
+                    break;
+                case HEADER_FROM:
+                    headers.from = MmsNotificationParser.readFrom(pdu);
+                    break;
+                case HEADER_SUBJECT:
+                    headers.subject = MmsNotificationParser.readEncodedString(pdu);
+                    break;
+                case HEADER_DATE:
+                    headers.date = MmsNotificationParser.readLongInteger(pdu);
+                    break;
+                case HEADER_CONTENT_TYPE:
+                    // Content-Type is always the last header, the body follows
+                    Part top = new Part();
+                    readContentType(pdu, top, headers);
+                    headers.contentType = top.contentType;
+                    return headers.messageType == MESSAGE_TYPE_RETRIEVE_CONF;
+                default:
+                    if (field < 0x80) {
+                        pdu.position(pdu.position() - 1);
+                        MmsNotificationParser.skipTextString(pdu);
+                        MmsNotificationParser.skipTextString(pdu);
+                    } else {
+                        MmsNotificationParser.skipValue(pdu);
+                    }
+                    break;
+            }
+        }
+        return false;
+    }
+
+    // Multipart: uintvar count, then (uintvar headersLength, uintvar dataLength, headers, data)*
+    private static boolean readBody(ByteBuffer pdu, Headers headers, OnPartListener listener) {
+        long count = MmsNotificationParser.readUintvar(pdu);
+        Part part = new Part();
+
+        for (int i = 0; i < count; i++) {
+            int headersLength = toLength(MmsNotificationParser.readUintvar(pdu));
+            int dataLength = toLength(MmsNotificationParser.readUintvar(pdu));
+            int headersEnd = MmsNotificationParser.checkedEnd(pdu, headersLength);
+
+            part.reset(pdu, i);
+            readContentType(pdu, part, null);
+            readPartHeaders(pdu, part, headersEnd);
+            pdu.position(headersEnd);
+
+            int dataEnd = MmsNotificationParser.checkedEnd(pdu, dataLength);
+            part.offset = pdu.position();
+            part.length = dataLength;
+            pdu.position(dataEnd);
+
+            headers.partCount++;
+            if (listener != null) {
+                listener.onPart(part);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Content-type-value: Constrained-media | Value-length Media-type *(Parameter).
+     * Fills part.contentType/name/charset, and headers.start for the top-level type.
+     */
+    private static void readContentType(ByteBuffer pdu, Part part, Headers headers) {
+        int first = pdu.get(pdu.position()) & 0xFF;
+        if (first >= 0x80) {
+            pdu.get();
+            part.contentType = wellKnownType(first & 0x7F);
+            return;
+        }
+        if (first > 31) {
+            part.contentType = MmsNotificationParser.readTextString(pdu);
+            return;
+        }
+
+        int length = MmsNotificationParser.readValueLength(pdu);
+        int end = MmsNotificationParser.checkedEnd(pdu, length);
+        part.contentType = readMediaType(pdu);
+
+        while (pdu.position() < end) {
+            int param = pdu.get(pdu.position()) & 0xFF;
+            if (param < 0x80) {
+                // Untyped parameter: token-text name, then integer or text value
+                MmsNotificationParser.skipTextString(pdu);
+                MmsNotificationParser.skipValue(pdu);
+                continue;
+            }
+
+            pdu.get();
+            switch (param) {
+                case PARAM_CHARSET:
+                    part.charset = (int) readIntegerOrSkip(pdu);
+                    break;
+                case PARAM_NAME:
+                case PARAM_NAME_V2:
+                case PARAM_FILENAME:
+                case PARAM_FILENAME_V2:
+                    if (part.name == null) {
+                        part.name = MmsNotificationParser.readTextString(pdu, end, StandardCharsets.UTF_8);
+                    } else {
+                        MmsNotificationParser.skipValue(pdu);
+                    }
+                    break;
+                case PARAM_START:
+                case PARAM_START_V2:
+                    String start = MmsNotificationParser.readTextString(pdu, end, StandardCharsets.UTF_8);
+                    if (headers != null) {
+                        headers.start = start;
+                    }
+                    break;
+                case PARAM_TYPE:
+                case PARAM_TYPE_V2:
+                    // Root type of a multipart/related; not needed for splitting
+                    MmsNotificationParser.skipValue(pdu);
+                    break;
+                default:
+                    MmsNotificationParser.skipValue(pdu);
+                    break;
+            }
+        }
+        pdu.position(end);
+    }
+
+    private static String readMediaType(ByteBuffer pdu) {
+        int first = pdu.get(pdu.position()) & 0xFF;
+        if (first >= 0x80) {
+            pdu.get();
+            return wellKnownType(first & 0x7F);
+        }
+        if (first <= 30) {
+            return wellKnownType((int) MmsNotificationParser.readLongInteger(pdu));
+        }
+        return MmsNotificationParser.readTextString(pdu);
+    }
+
+    private static long readIntegerOrSkip(ByteBuffer pdu) {
+        int first = pdu.get(pdu.position()) & 0xFF;
+        if (first >= 0x80 || first <= 30) {
+            return MmsNotificationParser.readLongInteger(pdu);
+        }
+        MmsNotificationParser.skipTextString(pdu);
+        return 0;
+    }
+
+    private static void readPartHeaders(ByteBuffer pdu, Part part, int end) {
+        while (pdu.position() < end) {
+            int field = pdu.get() & 0xFF;
+            if (field == PART_CONTENT_ID) {
+                part.contentId = stripContentId(MmsNotificationParser.readTextString(pdu, end, StandardCharsets.UTF_8));
+            } else if (field == PART_CONTENT_LOCATION) {
+                part.contentLocation = MmsNotificationParser.readTextString(pdu, end, StandardCharsets.UTF_8);
+                if (part.name == null) {
+                    part.name = part.contentLocation;
+                }
+            } else if (field >= 0x80) {
+                MmsNotificationParser.skipValue(pdu);
+            } else if (field == 0x7F || field < 32) {
+                // Shift-sequence or short-cut shift to another code page
+                if (field == 0x7F) {
+                    pdu.get();
+                }
+            } else {
+                // Application header: token-text name, then a text value
+                pdu.position(pdu.position() - 1);
+                MmsNotificationParser.skipTextString(pdu);
+                MmsNotificationParser.skipTextString(pdu);
+            }
+        }
+    }
+
+    // Quoted-string "<id>" -> id
+    private static String stripContentId(String value) {
+        int start = 0;
+        int end = value.length();
+        if (start < end && value.charAt(start) == '"') {
+            start++;
+        }
+        if (start < end && value.charAt(start) == '<') {
+            start++;
+        }
+        if (end > start && value.charAt(end - 1) == '>') {
+            end--;
+        }
+        return start == 0 && end == value.length() ? value : value.substring(start, end);
+    }
+
+    private static String wellKnownType(int code) {
+        if (code >= 0 && code < WELL_KNOWN_TYPES.length) {
+            return WELL_KNOWN_TYPES[code];
+        }
+        return code == 0x3E ? "application/vnd.wap.mms-message" : UNKNOWN_TYPE;
+    }
+
+    private static int toLength(long value) {
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Part length too large: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * InputStream view over a ByteBuffer, for decoders that only take streams
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
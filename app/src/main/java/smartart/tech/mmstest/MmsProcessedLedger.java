@@ -0,0 +1,438 @@
+package smartart.tech.mmstest;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent set of the MMS ids the receiver has already processed.
+ *
+ * Every delivery path (WAP push lookup, MMS_RECEIVED, the mailbox scan
+ * fallback) claims an MMS id here before it queries or decodes anything, so a
+ * message delivered more than once is handled once. A claim only holds the id
+ * in memory; it is recorded when the work is completed, or released when the
+ * work fails, so a message whose handling failed or was cut short by the
+ * process dying is handled again on its next delivery.
+ *
+ * The set is a bitmap above a floor: ids below the floor count as processed,
+ * and whole words of processed ids at the bottom of the bitmap are folded
+ * into the floor, so memory follows the window of recent out-of-order ids
+ * rather than the mailbox size. A new ledger starts its floor above the
+ * messages stored a day or more before the app was first installed; provider
+ * ids grow with insertion, so anything newer, including messages still
+ * queued during an install or upgrade, is tracked one by one.
+ *
+ * Completions are appended to a write-ahead file ({@code long id | long ~id})
+ * and folded into a snapshot of the bitmap every {@link #CHECKPOINT_ENTRIES}
+ * entries. The write-ahead file is not fsynced; after a device crash a
+ * message may be handled again, never skipped.
+ *
+ * Usage:
+ * <pre>
+ *     MmsProcessedLedger ledger = MmsProcessedLedger.get(context);
+ *     if (!ledger.claim(mmsId)) {
+ *         return; // duplicate delivery
+ *     }
+ *     if (handle(mmsId)) {
+ *         ledger.complete(mmsId);
+ *     } else {
+ *         ledger.release(mmsId);
+ *     }
+ * </pre>
+ */
+public class MmsProcessedLedger {
+
+    private static final String TAG = "MmsProcessedLedger";
+
+    static final int SNAPSHOT_MAGIC = 0x4D4D5344; // "MMSD"
+    static final int VERSION = 1;
+    static final int CHECKPOINT_ENTRIES = 4096;
+    // Ids this far below the newest claim are treated as processed
+    static final int MAX_WINDOW_BITS = 1 << 20;
+    static final int MAX_TRANSACTIONS = 256;
+    static final String DIRECTORY_NAME = "ledger";
+    // Messages stored this long before the install are taken as already handled
+    static final long INSTALL_MARGIN_MS = 24 * 60 * 60 * 1000L;
+
+    private static final int WAL_ENTRY_SIZE = 16;
+
+    private static MmsProcessedLedger instance;
+
+    private final File dir;
+    // Only used once, to place the floor of a new ledger
+    private final Context context;
+    private final Object lock = new Object();
+
+    // Claimed ids whose work has not completed yet
+    private final Set<Long> inFlight = new HashSet<>();
+
+    // WAP push transaction ids seen by this process, oldest first
+    private final Map<String, Boolean> transactions = new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_TRANSACTIONS;
+        }
+    };
+
+    private boolean loaded;
+    // Ids below floor are processed, -1 until loaded
+    private long floor = -1;
+    // Bit i of the bitmap is id floor + i; floor stays a multiple of 64
+    private long[] words = new long[4];
+    private int wordCount;
+    private long completed;
+    private long duplicates;
+
+    private FileOutputStream wal;
+    private int walEntries;
+    private final ByteBuffer entry = ByteBuffer.allocate(WAL_ENTRY_SIZE);
+
+    /**
+     * @param context used to place the floor of a new ledger below the messages
+     *                that predate the install; without one the floor starts at 0
+     */
+    MmsProcessedLedger(File dir, Context context) {
+        this.dir = dir;
+        this.context = context;
+    }
+
+    /**
+     * The instance if something has already created it, otherwise null; never touches disk
+     */
+    static synchronized MmsProcessedLedger peek() {
+        return instance;
+    }
+
+    /**
+     * The app's ledger under getFilesDir; files are read on first use, not here
+     */
+    public static synchronized MmsProcessedLedger get(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            instance = new MmsProcessedLedger(new File(appContext.getFilesDir(), DIRECTORY_NAME), appContext);
+        }
+        return instance;
+    }
+
+    public boolean isProcessed(long mmsId) {
+        synchronized (lock) {
+            ensureLoadedLocked();
+            return containsLocked(mmsId);
+        }
+    }
+
+    /**
+     * Claim an MMS for processing; follow up with {@link #complete} or {@link #release}
+     *
+     * @return true if the caller should process it, false if it already was or
+     *         is being processed; negative (unknown) ids are always handed out
+     */
+    public boolean claim(long mmsId) {
+        if (mmsId < 0) {
+            return true;
+        }
+        synchronized (lock) {
+            ensureLoadedLocked();
+            if (containsLocked(mmsId) || !inFlight.add(mmsId)) {
+                duplicates++;
+                MmsMetrics.get().increment(MmsMetrics.Counter.DUPLICATES_DROPPED);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean claim(String mmsId) {
+        return claim(parseId(mmsId));
+    }
+
+    /**
+     * Record a claimed MMS as processed, so later deliveries are dropped
+     */
+    public void complete(long mmsId) {
+        if (mmsId < 0) {
+            return;
+        }
+        synchronized (lock) {
+            ensureLoadedLocked();
+            inFlight.remove(mmsId);
+            if (!containsLocked(mmsId)) {
+                addLocked(mmsId);
+                completed++;
+                appendLocked(mmsId);
+            }
+        }
+    }
+
+    public void complete(String mmsId) {
+        complete(parseId(mmsId));
+    }
+
+    /**
+     * Give up a claim whose work failed, so the next delivery handles the MMS again
+     */
+    public void release(long mmsId) {
+        synchronized (lock) {
+            inFlight.remove(mmsId);
+        }
+    }
+
+    public void release(String mmsId) {
+        release(parseId(mmsId));
+    }
+
+    private static long parseId(String mmsId) {
+        try {
+            return Long.parseLong(mmsId);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Mark a WAP push transaction as seen by this process. Not persisted: it only
+     * keeps a repeated push from starting a second provider lookup.
+     *
+     * @return true the first time a transaction id is seen; null ids are always handed out
+     */
+    public boolean claimTransaction(String transactionId) {
+        if (transactionId == null) {
+            return true;
+        }
+        synchronized (lock) {
+            if (transactions.put(transactionId, Boolean.TRUE) != null) {
+                duplicates++;
+                MmsMetrics.get().increment(MmsMetrics.Counter.DUPLICATES_DROPPED);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (lock) {
+            writer.println(prefix + String.format(Locale.US,
+                    "Ledger: floor=%d window=%d bits completed=%d in flight=%d duplicates=%d wal=%d",
+                    floor, wordCount * 64, completed, inFlight.size(), duplicates, walEntries));
+        }
+    }
+
+    // Must hold lock
+    private boolean containsLocked(long id) {
+        if (floor < 0) {
+            return false;
+        }
+        long bit = id - floor;
+        if (bit < 0) {
+            return true;
+        }
+        int word = (int) (bit >>> 6);
+        return word < wordCount && (words[word] & (1L << bit)) != 0;
+    }
+
+    // Must hold lock
+    private void addLocked(long id) {
+        long bit = id - floor;
+        if (bit < 0) {
+            return;
+        }
+        if (bit >= MAX_WINDOW_BITS) {
+            // Slide the window up, giving up on ids far below the newest
+            dropWordsLocked((int) Math.min(wordCount, ((bit - MAX_WINDOW_BITS) >>> 6) + 1),
+                    ((bit - MAX_WINDOW_BITS) >>> 6) + 1);
+            bit = id - floor;
+        }
+
+        int word = (int) (bit >>> 6);
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+        }
+        wordCount = Math.max(wordCount, word + 1);
+        words[word] |= 1L << bit;
+
+        // Fold full words at the bottom into the floor
+        int full = 0;
+        while (full < wordCount && words[full] == -1L) {
+            full++;
+        }
+        if (full > 0) {
+            dropWordsLocked(full, full);
+        }
+    }
+
+    // Must hold lock; removes the lowest count words and raises the floor by shift words
+    private void dropWordsLocked(int count, long shift) {
+        System.arraycopy(words, count, words, 0, wordCount - count);
+        Arrays.fill(words, wordCount - count, wordCount, 0);
+        wordCount -= count;
+        floor += shift * 64;
+    }
+
+    // Must hold lock
+    private void appendLocked(long id) {
+        try {
+            if (wal == null) {
+                return;
+            }
+            entry.clear();
+            entry.putLong(id).putLong(~id);
+            wal.write(entry.array(), 0, WAL_ENTRY_SIZE);
+            if (++walEntries >= CHECKPOINT_ENTRIES) {
+                checkpointLocked();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing ledger", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+        }
+    }
+
+    // Must hold lock; failures leave an in-memory ledger
+    private void ensureLoadedLocked() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create ledger directory " + dir);
+            floor = installFloor();
+            return;
+        }
+        try {
+            readSnapshotLocked();
+            if (floor < 0) {
+                floor = installFloor();
+            }
+            replayWalLocked();
+            // Fold the replayed entries in so the write-ahead file starts empty
+            checkpointLocked();
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading ledger", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+        }
+    }
+
+    /**
+     * Floor for a new ledger: just above the newest message stored well before
+     * the app was first installed, aligned down to a word
+     */
+    private long installFloor() {
+        if (context == null) {
+            return 0;
+        }
+        try {
+            long installedAt = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).firstInstallTime;
+            try (Cursor cursor = context.getContentResolver().query(
+                    MmsRows.MMS_URI,
+                    MmsRows.Mms.ID_PROJECTION,
+                    "date < ?",
+                    new String[]{String.valueOf((installedAt - INSTALL_MARGIN_MS) / 1000)},
+                    "_id DESC LIMIT 1"
+            )) {
+                if (cursor == null || !cursor.moveToFirst()) {
+                    return 0;
+                }
+                return (MmsRows.Mms.bind(cursor).read(cursor).id + 1) & ~63L;
+            }
+        } catch (Exception e) {
+            // Track everything rather than risk skipping queued messages
+            Log.w(TAG, "Cannot place ledger floor, starting at 0", e);
+            return 0;
+        }
+    }
+
+    private void readSnapshotLocked() throws IOException {
+        File snapshot = new File(dir, "processed.snap");
+        if (!snapshot.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring unknown ledger snapshot");
+                return;
+            }
+            long snapshotFloor = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_WINDOW_BITS / 64 + 1) {
+                Log.w(TAG, "Ignoring corrupt ledger snapshot");
+                return;
+            }
+            long[] snapshotWords = new long[Math.max(4, count)];
+            for (int i = 0; i < count; i++) {
+                snapshotWords[i] = in.readLong();
+            }
+            floor = snapshotFloor;
+            words = snapshotWords;
+            wordCount = count;
+        } catch (EOFException e) {
+            // Renamed into place only once complete, so this is corruption
+            Log.w(TAG, "Ignoring truncated ledger snapshot");
+        }
+    }
+
+    private void replayWalLocked() throws IOException {
+        File walFile = new File(dir, "processed.wal");
+        if (!walFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile)))) {
+            while (true) {
+                long id = in.readLong();
+                if (in.readLong() != ~id) {
+                    // Torn tail
+                    break;
+                }
+                addLocked(id);
+            }
+        } catch (EOFException e) {
+            // End of the write-ahead file
+        }
+    }
+
+    // Must hold lock
+    private void checkpointLocked() throws IOException {
+        File snapshot = new File(dir, "processed.snap");
+        File tmp = new File(dir, "processed.snap.tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+            file.setLength(0);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file.getFD()));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(floor);
+            out.writeInt(wordCount);
+            for (int i = 0; i < wordCount; i++) {
+                out.writeLong(words[i]);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!tmp.renameTo(snapshot)) {
+            throw new IOException("Cannot replace " + snapshot);
+        }
+
+        if (wal != null) {
+            wal.close();
+        }
+        wal = new FileOutputStream(new File(dir, "processed.wal"), false);
+        walEntries = 0;
+    }
+}
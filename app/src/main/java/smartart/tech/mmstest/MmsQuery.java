@@ -0,0 +1,258 @@
+package smartart.tech.mmstest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fluent filter over MMS messages and their parts, compiled into provider
+ * selections so rows that don't match never cross the binder.
+ *
+ * Message filters (date, thread, box, read flag, size, sender) become a
+ * parameterized selection on content://mms; the sender is matched with a
+ * subquery on the addr table. Content types become a selection on
+ * content://mms/part next to {@code mid = ?}; "image/*" style wildcards are
+ * compiled to LIKE. Sizes are the whole message's m_size, as the part table
+ * has no size column; messages without one don't match a size filter. Dates
+ * are in milliseconds like everywhere else in this package, and rounded
+ * inwards to the whole seconds the mms table stores.
+ *
+ * The limit counts messages with at least one part of the wanted types, or
+ * every message when there is no content type filter; then it is pushed down
+ * as LIMIT, otherwise the message cursor is closed once enough have matched.
+ * If the provider rejects the addr subquery, the sender is compared per
+ * message instead.
+ *
+ * Usage:
+ * <pre>
+ *     MmsScan scan = extractor.query()
+ *             .dateBetween(weekAgoMillis, nowMillis)
+ *             .box(MmsQuery.BOX_INBOX)
+ *             .contentTypes("image/*")
+ *             .limit(20)
+ *             .run(new MmsScan(listener));
+ * </pre>
+ */
+public class MmsQuery {
+
+    // msg_box values
+    public static final int BOX_INBOX = 1;
+    public static final int BOX_SENT = 2;
+    public static final int BOX_DRAFTS = 3;
+    public static final int BOX_OUTBOX = 4;
+
+    static final String SENDER_SUBQUERY =
+            "_id IN (SELECT msg_id FROM addr WHERE type = " + MmsRows.ADDR_TYPE_FROM + " AND address = ?)";
+
+    private final MmsImageExtractor extractor;
+
+    private long fromMillis = -1;
+    private long toMillis = -1;
+    private long threadId = -1;
+    private int msgBox = -1;
+    private Boolean read;
+    private List<String> contentTypes = Collections.emptyList();
+    private String sender;
+    private long minSize = -1;
+    private long maxSize = -1;
+    private int limit;
+
+    MmsQuery(MmsImageExtractor extractor) {
+        this.extractor = extractor;
+    }
+
+    /**
+     * Messages dated between fromMillis and toMillis, inclusive; -1 leaves that end open
+     */
+    public MmsQuery dateBetween(long fromMillis, long toMillis) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        return this;
+    }
+
+    public MmsQuery thread(long threadId) {
+        this.threadId = threadId;
+        return this;
+    }
+
+    /**
+     * Messages in one msg_box, e.g. {@link #BOX_INBOX}
+     */
+    public MmsQuery box(int msgBox) {
+        this.msgBox = msgBox;
+        return this;
+    }
+
+    public MmsQuery read(boolean read) {
+        this.read = read;
+        return this;
+    }
+
+    /**
+     * Parts of these content types only, such as "image/jpeg" or "image/*"
+     */
+    public MmsQuery contentTypes(String... contentTypes) {
+        this.contentTypes = new ArrayList<>(Arrays.asList(contentTypes));
+        return this;
+    }
+
+    /**
+     * Messages from this address, as the provider stores it
+     */
+    public MmsQuery sender(String address) {
+        this.sender = address;
+        return this;
+    }
+
+    /**
+     * Messages whose m_size is between minBytes and maxBytes, inclusive; -1 leaves that end open
+     */
+    public MmsQuery sizeBetween(long minBytes, long maxBytes) {
+        this.minSize = minBytes;
+        this.maxSize = maxBytes;
+        return this;
+    }
+
+    /**
+     * At most this many messages; 0 for no limit
+     */
+    public MmsQuery limit(int messages) {
+        this.limit = Math.max(0, messages);
+        return this;
+    }
+
+    /**
+     * Run the query, newest message first, delivering matching parts to the scan
+     */
+    public MmsScan run(MmsScan scan) {
+        return extractor.runQuery(this, scan);
+    }
+
+    public MmsScan run(MmsImageExtractor.OnImageFoundListener listener) {
+        return run(new MmsScan(listener));
+    }
+
+    String getSender() {
+        return sender;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    boolean hasPartFilter() {
+        return !getPartTypeClauses(new ArrayList<String>()).isEmpty();
+    }
+
+    /**
+     * Selection on content://mms
+     *
+     * @param senderInSql match the sender with the addr subquery; otherwise the caller filters on it
+     * @param args filled with the selection arguments
+     * @return the selection, or null when nothing is filtered
+     */
+    public String getMmsSelection(boolean senderInSql, List<String> args) {
+        List<String> clauses = new ArrayList<>();
+        if (fromMillis >= 0) {
+            clauses.add("date >= ?");
+            // Round up, a row at the previous whole second is before from
+            args.add(String.valueOf((fromMillis + 999) / 1000));
+        }
+        if (toMillis >= 0) {
+            clauses.add("date <= ?");
+            args.add(String.valueOf(toMillis / 1000));
+        }
+        if (threadId >= 0) {
+            clauses.add("thread_id = ?");
+            args.add(String.valueOf(threadId));
+        }
+        if (msgBox >= 0) {
+            clauses.add("msg_box = ?");
+            args.add(String.valueOf(msgBox));
+        }
+        if (read != null) {
+            clauses.add("read = ?");
+            args.add(read ? "1" : "0");
+        }
+        if (minSize >= 0) {
+            clauses.add("m_size >= ?");
+            args.add(String.valueOf(minSize));
+        }
+        if (maxSize >= 0) {
+            clauses.add("m_size <= ?");
+            args.add(String.valueOf(maxSize));
+        }
+        if (sender != null && senderInSql) {
+            clauses.add(SENDER_SUBQUERY);
+            args.add(sender);
+        }
+        return clauses.isEmpty() ? null : join(clauses, " AND ");
+    }
+
+    /**
+     * Sort order on content://mms, with the limit pushed down when every message qualifies
+     */
+    public String getMmsSortOrder() {
+        String sortOrder = "date DESC, _id DESC";
+        if (limit > 0 && !hasPartFilter()) {
+            sortOrder += " LIMIT " + limit;
+        }
+        return sortOrder;
+    }
+
+    /**
+     * Selection on content://mms/part for one message; its first argument is the MMS id
+     */
+    public String getPartSelection(List<String> args) {
+        List<String> typeArgs = new ArrayList<>();
+        List<String> typeClauses = getPartTypeClauses(typeArgs);
+
+        args.add(null);
+        args.addAll(typeArgs);
+        if (typeClauses.isEmpty()) {
+            return "mid = ?";
+        }
+        return "mid = ? AND (" + join(typeClauses, " OR ") + ")";
+    }
+
+    private List<String> getPartTypeClauses(List<String> args) {
+        List<String> clauses = new ArrayList<>();
+        for (String contentType : contentTypes) {
+            if (contentType == null || contentType.equals("*") || contentType.equals("*/*")) {
+                // Matches everything, so there is no filter at all
+                args.clear();
+                return new ArrayList<>();
+            }
+            if (contentType.endsWith("/*")) {
+                clauses.add("ct LIKE ?");
+                args.add(contentType.substring(0, contentType.length() - 1) + "%");
+            } else {
+                clauses.add("ct = ?");
+                args.add(contentType);
+            }
+        }
+        return clauses;
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (String part : parts) {
+            if (joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+
+    @Override
+    public String toString() {
+        List<String> args = new ArrayList<>();
+        String selection = getMmsSelection(true, args);
+        List<String> partArgs = new ArrayList<>();
+        String partSelection = getPartSelection(partArgs);
+        return "MmsQuery{mms: " + selection + " " + args + " " + getMmsSortOrder()
+                + "; part: " + partSelection + " " + partArgs.subList(1, partArgs.size()) + "}";
+    }
+}
@@ -8,19 +8,27 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.telephony.SmsMessage;
 import android.util.Log;
-import android.widget.Toast;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import java.io.IOException;
+import java.util.List;
 
 public class MmsReceiver extends BroadcastReceiver {
 
     private static final String TAG = "MmsReceiver";
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private static final long WAP_PUSH_BASE_DELAY_MS = 1000;
+    private static final long WAP_PUSH_MAX_DELAY_MS = 5000;
+    private static final long WAP_PUSH_BYTES_PER_SECOND = 100 * 1024;
+    private static final int WAP_PUSH_MAX_ATTEMPTS = 5;
+
+    private final MmsDispatcher dispatcher = MmsDispatcher.get();
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        long start = MmsMetrics.get().start();
+        MmsMetrics.get().increment(MmsMetrics.Counter.BROADCASTS);
+
         String action = intent.getAction();
-        Log.d(TAG, "Received broadcast with action: " + action);
+        MmsEventLog.record(MmsEventLog.Event.BROADCAST, action);
 
         if ("android.provider.Telephony.SMS_RECEIVED".equals(action)) {
             handleSmsReceived(context, intent);
@@ -29,6 +37,8 @@ public class MmsReceiver extends BroadcastReceiver {
         } else if ("android.provider.Telephony.MMS_RECEIVED".equals(action)) {
             handleMmsReceived(context, intent);
         }
+
+        MmsMetrics.get().record(MmsMetrics.Stage.BROADCAST_RECEIVE, start);
     }
 
     /**
@@ -44,7 +54,10 @@ public class MmsReceiver extends BroadcastReceiver {
                     String sender = message.getOriginatingAddress();
                     String body = message.getMessageBody();
 
-                    Log.d(TAG, "SMS from " + sender + ": " + body);
+                    // Off unless enabled with: adb shell setprop log.tag.MmsReceiver DEBUG
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "SMS from " + sender + ": " + body);
+                    }
 
                     // Handle SMS message
                     onSmsReceived(context, sender, body);
@@ -59,21 +72,61 @@ public class MmsReceiver extends BroadcastReceiver {
     private void handleWapPushReceived(Context context, Intent intent) {
         Log.d(TAG, "WAP Push received - MMS notification");
 
-        // MMS notification received, wait a bit and then check for new MMS
-        executorService.execute(new Runnable() {
+        MmsNotificationParser.Result notification = new MmsNotificationParser.Result();
+        if (MmsNotificationParser.parse(intent.getByteArrayExtra("data"), notification)) {
+            MmsEventLog.record(MmsEventLog.Event.WAP_PUSH, notification.transactionId, notification.messageSize);
+            if (!getLedger(context).claimTransaction(notification.transactionId)) {
+                MmsEventLog.record(MmsEventLog.Event.DUPLICATE, notification.transactionId, intent.getAction(), null);
+                return;
+            }
+
+            // Bigger messages take longer to download, wait accordingly before the first lookup
+            long delay = WAP_PUSH_BASE_DELAY_MS;
+            if (notification.messageSize > 0) {
+                delay += notification.messageSize * 1000 / WAP_PUSH_BYTES_PER_SECOND;
+            }
+            scheduleNotificationLookup(context, notification.transactionId, notification.contentLocation,
+                    Math.min(delay, WAP_PUSH_MAX_DELAY_MS), 0);
+            return;
+        }
+
+        // Couldn't read the notification, give the system time to store it and then check for new MMS
+        dispatcher.schedule(MmsDispatcher.Lane.BULK, new Runnable() {
             @Override
             public void run() {
-                try {
-                    // Wait for MMS to be processed by system
-                    Thread.sleep(3000);
+                checkForNewMms(context);
+            }
+        }, 3000);
+    }
 
-                    // Check for new MMS messages
-                    checkForNewMms(context);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Thread interrupted", e);
+    /**
+     * Look up the provider row for a WAP push notification, retrying with backoff while
+     * the message is still downloading and falling back to a mailbox scan
+     */
+    private void scheduleNotificationLookup(Context context, String transactionId, String contentLocation,
+                                            long delayMs, int attempt) {
+        dispatcher.schedule(MmsDispatcher.Lane.TRIAGE, new Runnable() {
+            @Override
+            public void run() {
+                MmsImageExtractor extractor = new MmsImageExtractor(context);
+                String mmsId = extractor.findDownloadedMms(transactionId, contentLocation);
+
+                if (mmsId != null) {
+                    queueTriage(context, Uri.parse("content://mms/" + mmsId));
+                } else if (attempt + 1 < WAP_PUSH_MAX_ATTEMPTS) {
+                    scheduleNotificationLookup(context, transactionId, contentLocation,
+                            Math.min(delayMs * 2, WAP_PUSH_MAX_DELAY_MS), attempt + 1);
+                } else {
+                    Log.w(TAG, "MMS " + transactionId + " not found, scanning mailbox");
+                    dispatcher.execute(MmsDispatcher.Lane.BULK, new Runnable() {
+                        @Override
+                        public void run() {
+                            checkForNewMms(context);
+                        }
+                    });
                 }
             }
-        });
+        }, delayMs);
     }
 
     /**
@@ -87,131 +140,156 @@ public class MmsReceiver extends BroadcastReceiver {
         if (mmsUri != null) {
             Log.d(TAG, "MMS URI: " + mmsUri.toString());
 
-            // Process MMS immediately
-            executorService.execute(new Runnable() {
-                @Override
-                public void run() {
-                    processMmsFromUri(context, mmsUri);
-                }
-            });
+            // Triage text and sender first, decode images behind it
+            queueTriage(context, mmsUri);
         } else {
             // Fallback to checking for new MMS
-            executorService.execute(new Runnable() {
+            dispatcher.schedule(MmsDispatcher.Lane.BULK, new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        Thread.sleep(2000);
-                        checkForNewMms(context);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Thread interrupted", e);
-                    }
+                    checkForNewMms(context);
                 }
-            });
+            }, 2000);
         }
     }
 
     /**
-     * Process MMS from specific URI
+     * Queue the text and keyword pass of a stored MMS ahead of pending provider lookups
      */
-    private void processMmsFromUri(Context context, Uri mmsUri) {
-        try {
-            // Extract MMS ID from URI
-            String mmsId = mmsUri.getLastPathSegment();
-            Log.d(TAG, "Processing MMS ID: " + mmsId);
-
-            if (mmsId != null) {
-                MmsImageExtractor extractor = new MmsImageExtractor(context);
-
-                // Check if this MMS has images
-                if (extractor.mmsHasImages(mmsId)) {
-                    Log.d(TAG, "MMS " + mmsId + " contains images");
+    private void queueTriage(Context context, Uri mmsUri) {
+        dispatcher.execute(MmsDispatcher.Lane.URGENT, new Runnable() {
+            @Override
+            public void run() {
+                triageMmsFromUri(context, mmsUri);
+            }
+        });
+    }
 
-                    // Extract images from this specific MMS
-                    extractor.extractMmsParts(mmsId, new MmsImageExtractor.OnImageFoundListener() {
-                        @Override
-                        public void onImageFound(Bitmap image, String contentType, String mmsId) {
-                            Log.d(TAG, "Image found in received MMS: " + mmsId);
+    /**
+     * Triage MMS from specific URI: sender and text parts only, then queue the media work
+     */
+    private void triageMmsFromUri(Context context, Uri mmsUri) {
+        // Extract MMS ID from URI
+        String mmsId = mmsUri.getLastPathSegment();
+        Log.d(TAG, "Triaging MMS ID: " + mmsId);
+        if (mmsId == null) {
+            return;
+        }
 
-                            // Get sender information
-                            String sender = extractor.getMmsSender(mmsId);
+        // Drop repeated deliveries before touching the provider
+        MmsProcessedLedger ledger = getLedger(context);
+        if (!ledger.claim(mmsId)) {
+            MmsEventLog.record(MmsEventLog.Event.DUPLICATE, mmsId, mmsUri, null);
+            return;
+        }
 
-                            // Handle the received image
-                            onMmsImageReceived(context, image, contentType, mmsId, sender);
-                        }
+        try {
+            MmsMetrics.get().increment(MmsMetrics.Counter.MMS_PROCESSED);
+            MmsImageExtractor extractor = new MmsImageExtractor(context);
+            String sender = extractor.getMmsSender(mmsId);
 
-                        @Override
-                        public void onTextFound(String text, String mmsId) {
-                            Log.d(TAG, "Text found in received MMS: " + text);
+            MmsScan textScan = new MmsScan(new MmsImageExtractor.OnImageFoundListener() {
+                @Override
+                public void onImageFound(Bitmap image, String contentType, String mmsId) {
+                }
 
-                            String sender = extractor.getMmsSender(mmsId);
-                            onMmsTextReceived(context, text, mmsId, sender);
-                        }
+                @Override
+                public void onTextFound(String text, String mmsId) {
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "Text found in received MMS: " + text);
+                    }
+                    onMmsTextReceived(context, text, mmsId, sender);
+                }
 
-                        @Override
-                        public void onVideoFound(Uri videoUri, String mmsId) {
-                            Log.d(TAG, "Video found in received MMS: " + videoUri);
+                @Override
+                public void onVideoFound(Uri videoUri, String mmsId) {
+                }
+            });
+            extractor.extractMmsParts(mmsId, textScan, MmsImageExtractor.PARTS_TEXT);
+            // Text parts that turned out to be media, so the media pass doesn't probe every text part again
+            List<Long> mediaTextParts = textScan.getMediaTextParts();
 
-                            String sender = extractor.getMmsSender(mmsId);
-                            onMmsVideoReceived(context, videoUri, mmsId, sender);
-                        }
-                    });
-                } else {
-                    Log.d(TAG, "MMS " + mmsId + " has no images");
+            // The message counts as processed once its media is handled too
+            dispatcher.execute(MmsDispatcher.Lane.HEAVY, new Runnable() {
+                @Override
+                public void run() {
+                    if (processMmsMedia(context, mmsId, sender, mediaTextParts)) {
+                        ledger.complete(mmsId);
+                    } else {
+                        ledger.release(mmsId);
+                    }
                 }
-            }
+            });
         } catch (Exception e) {
             Log.e(TAG, "Error processing MMS from URI", e);
+            ledger.release(mmsId);
         }
     }
 
     /**
-     * Check for new MMS messages (fallback method)
+     * Decode and handle the image and video parts of an MMS
+     *
+     * @return false if handling failed and the MMS should be handled again
      */
-    private void checkForNewMms(Context context) {
+    private boolean processMmsMedia(Context context, String mmsId, String sender, List<Long> mediaTextParts) {
         try {
-            Log.d(TAG, "Checking for new MMS messages");
-
             MmsImageExtractor extractor = new MmsImageExtractor(context);
 
-            // Get latest MMS and check for images
-            // This is a fallback when we can't get specific MMS ID
-            extractor.getAllMmsImages(new MmsImageExtractor.OnImageFoundListener() {
-                private boolean isFirstCall = true;
-
-                @Override
-                public void onImageFound(Bitmap image, String contentType, String mmsId) {
-                    if (isFirstCall) {
-                        // Only process the most recent MMS to avoid duplicates
-                        Log.d(TAG, "New MMS image found: " + mmsId);
-
-                        String sender = extractor.getMmsSender(mmsId);
-                        onMmsImageReceived(context, image, contentType, mmsId, sender);
+            // Check if this MMS has images
+            if (!mediaTextParts.isEmpty() || extractor.mmsHasImages(mmsId)) {
+                Log.d(TAG, "MMS " + mmsId + " contains images");
 
-                        isFirstCall = false;
+                // Extract images from this specific MMS
+                extractor.extractMmsMedia(mmsId, new MmsImageExtractor.OnImageFoundListener() {
+                    @Override
+                    public void onImageFound(Bitmap image, String contentType, String mmsId) {
+                        onImagePartFound(image, contentType, mmsId, null);
                     }
-                }
 
-                @Override
-                public void onTextFound(String text, String mmsId) {
-                    if (isFirstCall) {
-                        Log.d(TAG, "New MMS text found: " + text);
-
-                        String sender = extractor.getMmsSender(mmsId);
-                        onMmsTextReceived(context, text, mmsId, sender);
+                    @Override
+                    public void onImagePartFound(Bitmap image, String contentType, String mmsId, Uri partUri) {
+                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                            Log.d(TAG, "Image found in received MMS: " + mmsId);
+                        }
+                        // Handle the received image
+                        onMmsImageReceived(context, image, contentType, mmsId, sender, partUri);
                     }
-                }
 
-                @Override
-                public void onVideoFound(Uri videoUri, String mmsId) {
-                    if (isFirstCall) {
-                        Log.d(TAG, "New MMS video found: " + videoUri);
+                    @Override
+                    public void onTextFound(String text, String mmsId) {
+                    }
 
-                        String sender = extractor.getMmsSender(mmsId);
+                    @Override
+                    public void onVideoFound(Uri videoUri, String mmsId) {
+                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                            Log.d(TAG, "Video found in received MMS: " + videoUri);
+                        }
                         onMmsVideoReceived(context, videoUri, mmsId, sender);
                     }
-                }
-            });
+                }, mediaTextParts);
+            } else {
+                Log.d(TAG, "MMS " + mmsId + " has no images");
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing MMS media", e);
+            return false;
+        }
+    }
+
+    /**
+     * Check for new MMS messages (fallback method)
+     * Triages the newest MMS unless the ledger shows it was already processed
+     */
+    private void checkForNewMms(Context context) {
+        try {
+            Log.d(TAG, "Checking for new MMS messages");
 
+            // This is a fallback when we can't get specific MMS ID
+            String mmsId = new MmsImageExtractor(context).findLatestMms();
+            if (mmsId != null) {
+                triageMmsFromUri(context, Uri.parse("content://mms/" + mmsId));
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error checking for new MMS", e);
         }
@@ -222,10 +300,10 @@ public class MmsReceiver extends BroadcastReceiver {
      * Override this method to handle SMS messages
      */
     protected void onSmsReceived(Context context, String sender, String body) {
-        Log.d(TAG, "SMS received from " + sender + ": " + body);
+        MmsEventLog.record(MmsEventLog.Event.SMS_RECEIVED, sender, body != null ? body.length() : 0);
 
         // Show toast notification
-        Toast.makeText(context, "SMS from " + sender + ": " + body, Toast.LENGTH_SHORT).show();
+        getNotifier().toast(context, "SMS from " + sender + ": " + body);
 
         // TODO: Add your SMS handling logic here
         // For example:
@@ -240,26 +318,17 @@ public class MmsReceiver extends BroadcastReceiver {
      * Override this method to handle MMS images
      */
     protected void onMmsImageReceived(Context context, Bitmap image, String contentType, String mmsId, String sender) {
-        Log.d(TAG, "MMS image received from " + sender + " (MMS: " + mmsId + ")");
+        MmsEventLog.record(MmsEventLog.Event.IMAGE_FOUND, mmsId, contentType, sender);
 
         // Show toast notification
-        Toast.makeText(context, "MMS image from " + sender, Toast.LENGTH_SHORT).show();
+        getNotifier().toast(context, "MMS image from " + sender);
 
         // Save image automatically
-        MmsImageExtractor extractor = new MmsImageExtractor(context);
         String filename = "mms_" + mmsId + "_" + System.currentTimeMillis() + ".jpg";
-        boolean saved = extractor.saveBitmapToFile(image, filename);
+        boolean saved = saveImageToFile(context, image, filename, mmsId);
 
         if (saved) {
-            Log.d(TAG, "MMS image saved to: " + filename);
-        }
-
-        // Save to gallery
-        String galleryUri = extractor.saveBitmapToGallery(image,
-                "MMS from " + sender, "Received MMS image");
-
-        if (galleryUri != null) {
-            Log.d(TAG, "MMS image saved to gallery: " + galleryUri);
+            MmsEventLog.record(MmsEventLog.Event.IMAGE_SAVED, mmsId, filename, null);
         }
 
         // TODO: Add your MMS image handling logic here
@@ -277,15 +346,37 @@ public class MmsReceiver extends BroadcastReceiver {
         // showMmsNotification(context, sender, "Image received");
     }
 
+    /**
+     * Called when MMS image is received, with the Uri of the original attachment
+     * Runs onMmsImageReceived and then saves the original bytes to the gallery
+     */
+    protected void onMmsImageReceived(Context context, Bitmap image, String contentType, String mmsId,
+                                      String sender, Uri partUri) {
+        onMmsImageReceived(context, image, contentType, mmsId, sender);
+
+        MmsGallerySink gallerySink = getGallerySink(context);
+        if (partUri == null || gallerySink == null) {
+            return;
+        }
+
+        // Save original to gallery
+        Uri galleryUri = gallerySink.save(partUri, contentType,
+                "mms_" + mmsId + "_" + partUri.getLastPathSegment(), "MMS from " + sender);
+
+        if (galleryUri != null) {
+            MmsEventLog.record(MmsEventLog.Event.IMAGE_SAVED, mmsId, galleryUri, null);
+        }
+    }
+
     /**
      * Called when MMS text is received
      * Override this method to handle MMS text
      */
     protected void onMmsTextReceived(Context context, String text, String mmsId, String sender) {
-        Log.d(TAG, "MMS text received from " + sender + ": " + text);
+        MmsEventLog.record(MmsEventLog.Event.TEXT_FOUND, mmsId, null, sender, text.length(), 0);
 
         // Show toast notification
-        Toast.makeText(context, "MMS text from " + sender + ": " + text, Toast.LENGTH_SHORT).show();
+        getNotifier().toast(context, "MMS text from " + sender + ": " + text);
 
         // TODO: Add your MMS text handling logic here
     }
@@ -295,10 +386,10 @@ public class MmsReceiver extends BroadcastReceiver {
      * Override this method to handle MMS videos
      */
     protected void onMmsVideoReceived(Context context, Uri videoUri, String mmsId, String sender) {
-        Log.d(TAG, "MMS video received from " + sender + ": " + videoUri);
+        MmsEventLog.record(MmsEventLog.Event.VIDEO_FOUND, mmsId, videoUri, sender);
 
         // Show toast notification
-        Toast.makeText(context, "MMS video from " + sender, Toast.LENGTH_SHORT).show();
+        getNotifier().toast(context, "MMS video from " + sender);
 
         // TODO: Add your MMS video handling logic here
         // For example:
@@ -308,6 +399,47 @@ public class MmsReceiver extends BroadcastReceiver {
         // - Show in video player
     }
 
+    /**
+     * Ledger of processed MMS ids used to drop repeated deliveries
+     */
+    protected MmsProcessedLedger getLedger(Context context) {
+        return MmsProcessedLedger.get(context);
+    }
+
+    /**
+     * Notifier for toasts and notifications
+     */
+    protected MmsNotifier getNotifier() {
+        return MmsNotifier.get();
+    }
+
+    /**
+     * Sink for original image attachments, or null to keep them out of the gallery
+     */
+    protected MmsGallerySink getGallerySink(Context context) {
+        return new MmsGallerySink(context);
+    }
+
+    /**
+     * File store decoded images are saved to
+     */
+    protected MmsFileStore getFileStore(Context context) throws IOException {
+        return MmsFileStore.get(context);
+    }
+
+    /**
+     * Save an image to the receiver's file store, indexed under its MMS id
+     */
+    protected boolean saveImageToFile(Context context, Bitmap image, String filename, String mmsId) {
+        try {
+            return new MmsImageExtractor(context).saveBitmapToFile(image, filename, mmsId, getFileStore(context));
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving image", e);
+            MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+            return false;
+        }
+    }
+
     /**
      * Example method to send image to server
      */
@@ -333,10 +465,9 @@ public class MmsReceiver extends BroadcastReceiver {
 
     /**
      * Clean up resources
+     * The dispatcher lanes are shared by every receiver instance and live as long as the process,
+     * so there is nothing left to release here.
      */
     public void cleanup() {
-        if (executorService != null && !executorService.isShutdown()) {
-            executorService.shutdown();
-        }
     }
 }
\ No newline at end of file
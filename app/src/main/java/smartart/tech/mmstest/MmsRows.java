@@ -0,0 +1,202 @@
+package smartart.tech.mmstest;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Typed row holders for the mms, part and addr provider tables.
+ *
+ * Each holder resolves its column indices once when it is bound to a cursor
+ * and is then refilled in place by {@link Mms#read}, {@link Part#read} and
+ * {@link Addr#read} for every row, reading numeric columns as primitives.
+ * Columns missing from the cursor's projection read as 0 / null.
+ *
+ * Usage:
+ * <pre>
+ *     try (Cursor cursor = resolver.query(MmsRows.MMS_URI, MmsRows.Mms.PROJECTION, null, null, null)) {
+ *         MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+ *         while (cursor != null &amp;&amp; cursor.moveToNext()) {
+ *             row.read(cursor);
+ *             ... row.id, row.date ...
+ *         }
+ *     }
+ * </pre>
+ */
+final class MmsRows {
+
+    static final Uri MMS_URI = Uri.parse("content://mms");
+    static final Uri PART_URI = Uri.parse("content://mms/part");
+
+    // addr.type of the sender
+    static final int ADDR_TYPE_FROM = 137;
+
+    private MmsRows() {
+    }
+
+    static Uri partUri(long partId) {
+        return ContentUris.withAppendedId(PART_URI, partId);
+    }
+
+    static Uri addrUri(String mmsId) {
+        return Uri.parse("content://mms/" + mmsId + "/addr");
+    }
+
+    /**
+     * Row of content://mms
+     */
+    static final class Mms {
+        static final String[] PROJECTION = {"_id", "date", "thread_id", "msg_box", "read"};
+        static final String[] ID_PROJECTION = {"_id"};
+        static final String[] ID_DATE_PROJECTION = {"_id", "date"};
+
+        private final int idIndex;
+        private final int dateIndex;
+        private final int threadIdIndex;
+        private final int msgBoxIndex;
+        private final int readIndex;
+
+        long id;
+        long date;
+        long threadId;
+        int msgBox;
+        boolean read;
+
+        private Mms(Cursor cursor) {
+            idIndex = cursor != null ? cursor.getColumnIndex("_id") : -1;
+            dateIndex = cursor != null ? cursor.getColumnIndex("date") : -1;
+            threadIdIndex = cursor != null ? cursor.getColumnIndex("thread_id") : -1;
+            msgBoxIndex = cursor != null ? cursor.getColumnIndex("msg_box") : -1;
+            readIndex = cursor != null ? cursor.getColumnIndex("read") : -1;
+        }
+
+        /**
+         * Resolve column indices for this cursor, which may be null
+         */
+        static Mms bind(Cursor cursor) {
+            return new Mms(cursor);
+        }
+
+        Mms read(Cursor cursor) {
+            id = getLong(cursor, idIndex);
+            date = getLong(cursor, dateIndex);
+            threadId = getLong(cursor, threadIdIndex);
+            msgBox = getInt(cursor, msgBoxIndex);
+            read = getInt(cursor, readIndex) != 0;
+            return this;
+        }
+    }
+
+    /**
+     * Row of content://mms/part
+     */
+    static final class Part {
+        static final String[] PROJECTION = {"_id", "mid", "ct", "_data", "text", "name", "filename"};
+        static final String[] IMAGE_PROJECTION = {"_id", "ct", "_data"};
+
+        private final int idIndex;
+        private final int mmsIdIndex;
+        private final int contentTypeIndex;
+        private final int dataIndex;
+        private final int textIndex;
+        private final int nameIndex;
+        private final int filenameIndex;
+
+        long id;
+        long mmsId;
+        String contentType;
+        String data;
+        String text;
+        String name;
+        String filename;
+
+        private Part(Cursor cursor) {
+            idIndex = cursor != null ? cursor.getColumnIndex("_id") : -1;
+            mmsIdIndex = cursor != null ? cursor.getColumnIndex("mid") : -1;
+            contentTypeIndex = cursor != null ? cursor.getColumnIndex("ct") : -1;
+            dataIndex = cursor != null ? cursor.getColumnIndex("_data") : -1;
+            textIndex = cursor != null ? cursor.getColumnIndex("text") : -1;
+            nameIndex = cursor != null ? cursor.getColumnIndex("name") : -1;
+            filenameIndex = cursor != null ? cursor.getColumnIndex("filename") : -1;
+        }
+
+        static Part bind(Cursor cursor) {
+            return new Part(cursor);
+        }
+
+        Part read(Cursor cursor) {
+            id = getLong(cursor, idIndex);
+            mmsId = getLong(cursor, mmsIdIndex);
+            contentType = getString(cursor, contentTypeIndex);
+            data = getString(cursor, dataIndex);
+            text = getString(cursor, textIndex);
+            name = getString(cursor, nameIndex);
+            filename = getString(cursor, filenameIndex);
+            return this;
+        }
+
+        Uri uri() {
+            return partUri(id);
+        }
+
+        /**
+         * Detached copy of the current values, for keeping past the cursor
+         */
+        Part copy() {
+            Part copy = new Part(null);
+            copy.id = id;
+            copy.mmsId = mmsId;
+            copy.contentType = contentType;
+            copy.data = data;
+            copy.text = text;
+            copy.name = name;
+            copy.filename = filename;
+            return copy;
+        }
+
+        // filename, falling back to name
+        String displayName() {
+            return filename != null ? filename : name;
+        }
+    }
+
+    /**
+     * Row of content://mms/{id}/addr
+     */
+    static final class Addr {
+        static final String[] PROJECTION = {"address", "type"};
+
+        private final int addressIndex;
+        private final int typeIndex;
+
+        String address;
+        int type;
+
+        private Addr(Cursor cursor) {
+            addressIndex = cursor != null ? cursor.getColumnIndex("address") : -1;
+            typeIndex = cursor != null ? cursor.getColumnIndex("type") : -1;
+        }
+
+        static Addr bind(Cursor cursor) {
+            return new Addr(cursor);
+        }
+
+        Addr read(Cursor cursor) {
+            address = getString(cursor, addressIndex);
+            type = getInt(cursor, typeIndex);
+            return this;
+        }
+    }
+
+    private static long getLong(Cursor cursor, int index) {
+        return index >= 0 ? cursor.getLong(index) : 0;
+    }
+
+    private static int getInt(Cursor cursor, int index) {
+        return index >= 0 ? cursor.getInt(index) : 0;
+    }
+
+    private static String getString(Cursor cursor, int index) {
+        return index >= 0 ? cursor.getString(index) : null;
+    }
+}
@@ -0,0 +1,213 @@
+package smartart.tech.mmstest;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handle for a scan over MMS parts that can end early.
+ *
+ * A scan stops when it is cancelled (from any thread), when its deadline
+ * passes, when it has delivered its maximum number of results, or when the
+ * listener returns false. The scanning thread checks between rows and before
+ * every decode, closing its cursors on the way out; a bitmap whose decode
+ * finished after the stop is released to the memory governor instead of being
+ * delivered. Memory waits are bounded by the remaining time.
+ *
+ * Usage:
+ * <pre>
+ *     MmsScan scan = new MmsScan(listener).setMaxResults(1).setTimeoutMs(5000);
+ *     extractor.getAllMmsImages(scan);       // or cancel() it from another thread
+ *     if (scan.getStopReason() == MmsScan.StopReason.DEADLINE) { ... }
+ * </pre>
+ */
+public class MmsScan {
+
+    public enum StopReason {
+        // Still running
+        NONE,
+        // Ran to the end
+        COMPLETED,
+        CANCELLED,
+        DEADLINE,
+        MAX_RESULTS,
+        // The listener returned false
+        LISTENER
+    }
+
+    /**
+     * Scan callbacks; each returns true to continue or false to stop
+     */
+    public interface Listener {
+        boolean onImageFound(Bitmap image, String contentType, String mmsId, Uri partUri);
+        boolean onTextFound(String text, String mmsId);
+        boolean onVideoFound(Uri videoUri, String mmsId);
+    }
+
+    private final Listener listener;
+    private int maxResults = Integer.MAX_VALUE;
+    // Uptime millis
+    private long deadline = Long.MAX_VALUE;
+
+    private volatile boolean cancelled;
+    private volatile StopReason stopReason = StopReason.NONE;
+    private volatile int results;
+
+    // Last message of the previous page, for MmsImageExtractor.getAllMmsImagesPage
+    long pageDate = Long.MAX_VALUE;
+    long pageId = Long.MAX_VALUE;
+    // Ids of text/plain parts a PARTS_TEXT scan sniffed as media
+    final List<Long> mediaTextParts = new ArrayList<>();
+
+    public MmsScan(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Scan with a listener that never asks to stop; it may be null
+     */
+    public MmsScan(MmsImageExtractor.OnImageFoundListener listener) {
+        this(new Listener() {
+            @Override
+            public boolean onImageFound(Bitmap image, String contentType, String mmsId, Uri partUri) {
+                if (listener != null) {
+                    listener.onImagePartFound(image, contentType, mmsId, partUri);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onTextFound(String text, String mmsId) {
+                if (listener != null) {
+                    listener.onTextFound(text, mmsId);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onVideoFound(Uri videoUri, String mmsId) {
+                if (listener != null) {
+                    listener.onVideoFound(videoUri, mmsId);
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Stop after this many images, texts and videos in total
+     */
+    public MmsScan setMaxResults(int maxResults) {
+        this.maxResults = Math.max(1, maxResults);
+        return this;
+    }
+
+    /**
+     * Stop once this much time has passed from now
+     */
+    public MmsScan setTimeoutMs(long timeoutMs) {
+        deadline = SystemClock.uptimeMillis() + Math.max(0, timeoutMs);
+        return this;
+    }
+
+    /**
+     * Ask the scan to stop; it returns at its next check
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isStopped() {
+        return stopReason != StopReason.NONE;
+    }
+
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    public int getResultCount() {
+        return results;
+    }
+
+    /**
+     * Parts declared text/plain that the scan skipped because they are media,
+     * for MmsImageExtractor.extractMmsMedia
+     */
+    List<Long> getMediaTextParts() {
+        return mediaTextParts;
+    }
+
+    /**
+     * Whether the scanning thread should stop now; latches the reason
+     */
+    boolean shouldStop() {
+        if (stopReason != StopReason.NONE) {
+            return true;
+        }
+        if (cancelled) {
+            stop(StopReason.CANCELLED);
+        } else if (SystemClock.uptimeMillis() >= deadline) {
+            stop(StopReason.DEADLINE);
+        }
+        return stopReason != StopReason.NONE;
+    }
+
+    /**
+     * Time left before the deadline, for bounding waits
+     */
+    long remainingMs(long cap) {
+        if (deadline == Long.MAX_VALUE) {
+            return cap;
+        }
+        return Math.max(0, Math.min(cap, deadline - SystemClock.uptimeMillis()));
+    }
+
+    boolean deliverImage(Bitmap image, String contentType, String mmsId, Uri partUri) {
+        if (shouldStop()) {
+            // Decoded after the stop, nobody will use it
+            MmsMemoryGovernor.get().release(image);
+            return false;
+        }
+        return delivered(listener.onImageFound(image, contentType, mmsId, partUri));
+    }
+
+    boolean deliverText(String text, String mmsId) {
+        return !shouldStop() && delivered(listener.onTextFound(text, mmsId));
+    }
+
+    boolean deliverVideo(Uri videoUri, String mmsId) {
+        return !shouldStop() && delivered(listener.onVideoFound(videoUri, mmsId));
+    }
+
+    /**
+     * Mark a scan that ran out of rows as completed
+     */
+    void finish() {
+        if (stopReason == StopReason.NONE) {
+            stopReason = StopReason.COMPLETED;
+        }
+    }
+
+    private boolean delivered(boolean proceed) {
+        results++;
+        if (!proceed) {
+            stop(StopReason.LISTENER);
+        } else if (results >= maxResults) {
+            stop(StopReason.MAX_RESULTS);
+        }
+        return stopReason == StopReason.NONE;
+    }
+
+    private void stop(StopReason reason) {
+        if (stopReason == StopReason.NONE) {
+            stopReason = reason;
+        }
+    }
+}
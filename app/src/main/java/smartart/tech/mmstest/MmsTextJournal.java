@@ -0,0 +1,468 @@
+package smartart.tech.mmstest;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of received MMS text parts.
+ *
+ * Records go into segment files that roll at {@code maxSegmentBytes}:
+ * <pre>
+ *   journal-00000.mmsj   header | record*
+ *   journal-00001.mmsj   ...
+ * </pre>
+ * Header: {@code int SEGMENT_MAGIC | int VERSION}. Record (big-endian):
+ * <pre>
+ *   int bodyLength | int crc32(body) |
+ *   body = long mmsId | long timestamp | short senderLength | sender | text
+ * </pre>
+ *
+ * Appends are encoded into a buffer and written through a FileChannel when
+ * it fills. Durability is group-committed: one fsync covers everything
+ * appended since the previous one, either when a caller asks for it with
+ * {@link #sync(long)} or a commit interval (200 ms by default) after the
+ * first unsynced append. Opening a journal truncates a torn record at the
+ * end of the last segment. Use {@link MmsTextJournalReader} to read it back.
+ */
+public class MmsTextJournal implements Closeable {
+
+    private static final String TAG = "MmsTextJournal";
+
+    static final int SEGMENT_MAGIC = 0x4D4D534A; // "MMSJ"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    // mmsId, timestamp, senderLength
+    static final int BODY_FIXED_SIZE = 18;
+    static final int MAX_SENDER_BYTES = 1024;
+    static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_COMMIT_INTERVAL_MS = 200;
+    static final String DIRECTORY_NAME = "text-journal";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static MmsTextJournal instance;
+
+    /**
+     * One journal record
+     */
+    public static class Record {
+        int segment;
+        long offset;
+        long mmsId;
+        long timestamp;
+        String sender;
+        String text;
+
+        public int getSegment() { return segment; }
+        public long getOffset() { return offset; }
+        public long getMmsId() { return mmsId; }
+        public long getTimestamp() { return timestamp; }
+        public String getSender() { return sender; }
+        public String getText() { return text; }
+
+        @Override
+        public String toString() {
+            return "Record{mmsId=" + mmsId + ", timestamp=" + timestamp + ", sender=" + sender
+                    + ", length=" + (text != null ? text.length() : 0) + "}";
+        }
+    }
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final long commitIntervalMs;
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private ScheduledExecutorService committer;
+    private int segment;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // End of the data handed to the channel
+    private long position;
+
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean syncing;
+    private boolean commitScheduled;
+
+    private MmsTextJournal(File dir, long maxSegmentBytes, long commitIntervalMs) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.commitIntervalMs = commitIntervalMs;
+    }
+
+    public static MmsTextJournal open(File dir, long maxSegmentBytes, long commitIntervalMs) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+
+        MmsTextJournal journal = new MmsTextJournal(dir, maxSegmentBytes, commitIntervalMs);
+        journal.recover();
+        return journal;
+    }
+
+    public static MmsTextJournal open(File dir) throws IOException {
+        return open(dir, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_COMMIT_INTERVAL_MS);
+    }
+
+    /**
+     * The app's journal under getExternalFilesDir, opened on first use
+     */
+    public static synchronized MmsTextJournal get(Context context) throws IOException {
+        if (instance == null) {
+            instance = open(directory(context));
+        }
+        return instance;
+    }
+
+    static File directory(Context context) {
+        return new File(context.getExternalFilesDir(null), DIRECTORY_NAME);
+    }
+
+    /**
+     * Append a text record stamped with the current time; it becomes durable at
+     * the next group commit
+     *
+     * @return sequence number to pass to {@link #sync(long)}
+     */
+    public long append(long mmsId, String sender, String text) throws IOException {
+        byte[] senderBytes = MmsArchive.utf8(sender, MAX_SENDER_BYTES);
+        byte[] textBytes = text != null ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int bodyLength = BODY_FIXED_SIZE + senderBytes.length + textBytes.length;
+        if (bodyLength > MAX_BODY_BYTES) {
+            throw new IOException("Text of MMS " + mmsId + " too large for the journal: " + textBytes.length);
+        }
+        int recordLength = RECORD_HEADER_SIZE + bodyLength;
+
+        synchronized (lock) {
+            if (channel == null) {
+                throw new IOException("Journal " + dir + " is closed");
+            }
+            if (position + buffer.position() + recordLength > maxSegmentBytes
+                    && position + buffer.position() > SEGMENT_HEADER_SIZE) {
+                rollLocked();
+            }
+            if (buffer.remaining() < recordLength) {
+                writeBufferLocked();
+                if (buffer.capacity() < recordLength) {
+                    buffer = ByteBuffer.allocate(recordLength);
+                }
+            }
+
+            int start = buffer.position();
+            buffer.putInt(bodyLength);
+            buffer.putInt(0);
+            int bodyStart = buffer.position();
+            buffer.putLong(mmsId);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putShort((short) senderBytes.length);
+            buffer.put(senderBytes);
+            buffer.put(textBytes);
+
+            crc.reset();
+            crc.update(buffer.array(), bodyStart, bodyLength);
+            buffer.putInt(start + 4, (int) crc.getValue());
+
+            long seq = ++appendedSeq;
+            scheduleCommitLocked();
+            return seq;
+        }
+    }
+
+    /**
+     * Block until the record with this sequence number is on disk.
+     * Concurrent callers share one fsync.
+     */
+    public void sync(long seq) throws IOException {
+        FileChannel toForce;
+        long target;
+        synchronized (lock) {
+            while (durableSeq < seq && syncing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for journal commit");
+                }
+            }
+            if (durableSeq >= seq || channel == null) {
+                return;
+            }
+
+            // Become the leader for everything appended so far
+            syncing = true;
+            target = appendedSeq;
+            writeBufferLocked();
+            toForce = channel;
+        }
+
+        long start = MmsMetrics.get().start();
+        boolean forced = false;
+        try {
+            // Appends continue into the buffer while we fsync
+            toForce.force(false);
+            forced = true;
+        } catch (ClosedChannelException e) {
+            // The segment rolled meanwhile, which forces it before closing
+        } finally {
+            synchronized (lock) {
+                if (forced) {
+                    durableSeq = Math.max(durableSeq, target);
+                }
+                syncing = false;
+                lock.notifyAll();
+            }
+        }
+
+        synchronized (lock) {
+            if (durableSeq < target) {
+                throw new IOException("Journal " + dir + " closed before commit");
+            }
+        }
+        MmsMetrics.get().record(MmsMetrics.Stage.FILE_WRITE, start);
+    }
+
+    /**
+     * Make everything appended so far durable
+     */
+    public void sync() throws IOException {
+        long seq;
+        synchronized (lock) {
+            seq = appendedSeq;
+        }
+        sync(seq);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (lock) {
+            if (committer != null) {
+                committer.shutdown();
+                committer = null;
+            }
+            if (file != null) {
+                writeBufferLocked();
+                file.close();
+                file = null;
+                channel = null;
+            }
+        }
+        synchronized (MmsTextJournal.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    // Must hold lock
+    private void scheduleCommitLocked() {
+        if (commitScheduled) {
+            return;
+        }
+        commitScheduled = true;
+        if (committer == null) {
+            committer = Executors.newSingleThreadScheduledExecutor(
+                    MmsDispatcher.threadFactory("mms-journal", Process.THREAD_PRIORITY_BACKGROUND));
+        }
+        committer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    commitScheduled = false;
+                }
+                try {
+                    sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error committing journal " + dir, e);
+                    MmsMetrics.get().increment(MmsMetrics.Counter.WRITE_FAILURES);
+                }
+            }
+        }, commitIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Must hold lock
+    private void writeBufferLocked() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    // Must hold lock. Seals the current segment; readers see whole records only.
+    private void rollLocked() throws IOException {
+        writeBufferLocked();
+        channel.force(false);
+        durableSeq = appendedSeq;
+        file.close();
+        segment++;
+        openSegment(0);
+    }
+
+    private void recover() throws IOException {
+        int[] segments = listSegments(dir);
+        if (segments.length == 0) {
+            segment = 0;
+            openSegment(0);
+            return;
+        }
+
+        segment = segments[segments.length - 1];
+        File last = segmentFile(dir, segment);
+        long validEnd = scanValidEnd(last);
+        if (validEnd < 0) {
+            // Unreadable header: start the segment over
+            openSegment(0);
+            return;
+        }
+        if (validEnd < last.length()) {
+            Log.w(TAG, "Truncating torn tail of " + last + " at " + validEnd);
+        }
+        openSegment(validEnd);
+    }
+
+    private void openSegment(long resumeOffset) throws IOException {
+        file = new RandomAccessFile(segmentFile(dir, segment), "rw");
+        channel = file.getChannel();
+        buffer.clear();
+
+        if (resumeOffset < SEGMENT_HEADER_SIZE) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            header.putInt(SEGMENT_MAGIC);
+            header.putInt(VERSION);
+            header.flip();
+            position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        } else {
+            channel.truncate(resumeOffset);
+            position = resumeOffset;
+        }
+    }
+
+    /**
+     * Offset just past the last intact record of a segment, or -1 if its header is bad
+     */
+    static long scanValidEnd(File segmentFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+        try {
+            if (!readHeader(in)) {
+                return -1;
+            }
+            long offset = SEGMENT_HEADER_SIZE;
+            Record record = new Record();
+            CRC32 crc = new CRC32();
+            int length;
+            while ((length = readRecord(in, crc, record)) > 0) {
+                offset += length;
+            }
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    static boolean readHeader(DataInputStream in) throws IOException {
+        try {
+            return in.readInt() == SEGMENT_MAGIC && in.readInt() == VERSION;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read one record into out
+     *
+     * @return bytes consumed, or 0 at the end of the segment or at a torn or corrupt record
+     */
+    static int readRecord(DataInputStream in, CRC32 crc, Record out) throws IOException {
+        byte[] body;
+        int expectedCrc;
+        try {
+            int bodyLength = in.readInt();
+            if (bodyLength < BODY_FIXED_SIZE || bodyLength > MAX_BODY_BYTES) {
+                return 0;
+            }
+            expectedCrc = in.readInt();
+            body = new byte[bodyLength];
+            in.readFully(body);
+        } catch (EOFException e) {
+            return 0;
+        }
+
+        crc.reset();
+        crc.update(body, 0, body.length);
+        if ((int) crc.getValue() != expectedCrc) {
+            return 0;
+        }
+
+        ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+        out.mmsId = bodyBuffer.getLong();
+        out.timestamp = bodyBuffer.getLong();
+        int senderLength = bodyBuffer.getShort() & 0xFFFF;
+        if (senderLength > body.length - BODY_FIXED_SIZE) {
+            return 0;
+        }
+        out.sender = new String(body, BODY_FIXED_SIZE, senderLength, StandardCharsets.UTF_8);
+        int textStart = BODY_FIXED_SIZE + senderLength;
+        out.text = new String(body, textStart, body.length - textStart, StandardCharsets.UTF_8);
+        return RECORD_HEADER_SIZE + body.length;
+    }
+
+    static File segmentFile(File dir, int segment) {
+        return new File(dir, String.format(Locale.US, "journal-%05d.mmsj", segment));
+    }
+
+    /**
+     * Segment numbers present in a journal directory, in order
+     */
+    static int[] listSegments(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new int[0];
+        }
+
+        int count = 0;
+        int[] segments = new int[names.length];
+        for (String name : names) {
+            if (name.startsWith("journal-") && name.endsWith(".mmsj")) {
+                try {
+                    int segment = Integer.parseInt(name.substring(8, name.length() - 5));
+                    segments[count++] = segment;
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(segments, count);
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+package smartart.tech.mmstest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an {@link MmsTextJournal} directory.
+ *
+ * Records are visited in append order. Reading stops at the first torn or
+ * corrupt record of a segment, so a journal that is being appended to can be
+ * read safely. Time-range lookups skip whole segments using the timestamp of
+ * their first record; timestamps are append times, so they only go backwards
+ * if the wall clock does.
+ */
+public class MmsTextJournalReader {
+
+    public interface OnRecordListener {
+        // Return false to stop reading
+        boolean onRecord(MmsTextJournal.Record record);
+    }
+
+    private final File dir;
+
+    public MmsTextJournalReader(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Visit every record
+     */
+    public void forEach(OnRecordListener listener) throws IOException {
+        for (int segment : MmsTextJournal.listSegments(dir)) {
+            if (!readSegment(segment, Long.MIN_VALUE, Long.MAX_VALUE, -1, listener)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visit the records of one MMS
+     */
+    public void findByMmsId(long mmsId, OnRecordListener listener) throws IOException {
+        for (int segment : MmsTextJournal.listSegments(dir)) {
+            if (!readSegment(segment, Long.MIN_VALUE, Long.MAX_VALUE, mmsId, listener)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visit records appended between fromMillis and toMillis, inclusive
+     */
+    public void findByTimeRange(long fromMillis, long toMillis, OnRecordListener listener) throws IOException {
+        int[] segments = MmsTextJournal.listSegments(dir);
+        for (int i = 0; i < segments.length; i++) {
+            long first = firstTimestamp(segments[i]);
+            if (first > toMillis) {
+                return;
+            }
+            // The whole segment predates the range if the next one starts before it
+            if (i + 1 < segments.length && firstTimestamp(segments[i + 1]) < fromMillis) {
+                continue;
+            }
+            if (!readSegment(segments[i], fromMillis, toMillis, -1, listener)) {
+                return;
+            }
+        }
+    }
+
+    private long firstTimestamp(int segment) throws IOException {
+        DataInputStream in = open(segment);
+        try {
+            MmsTextJournal.Record record = new MmsTextJournal.Record();
+            if (!MmsTextJournal.readHeader(in) || MmsTextJournal.readRecord(in, new CRC32(), record) == 0) {
+                return Long.MAX_VALUE;
+            }
+            return record.timestamp;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns false once the listener asked to stop
+    private boolean readSegment(int segment, long fromMillis, long toMillis, long mmsId,
+                                OnRecordListener listener) throws IOException {
+        DataInputStream in = open(segment);
+        try {
+            if (!MmsTextJournal.readHeader(in)) {
+                return true;
+            }
+
+            CRC32 crc = new CRC32();
+            long offset = MmsTextJournal.SEGMENT_HEADER_SIZE;
+            int length;
+            while (true) {
+                // Fresh record per callback so listeners can keep them
+                MmsTextJournal.Record record = new MmsTextJournal.Record();
+                length = MmsTextJournal.readRecord(in, crc, record);
+                if (length == 0) {
+                    return true;
+                }
+                record.segment = segment;
+                record.offset = offset;
+                offset += length;
+
+                if (record.timestamp < fromMillis || record.timestamp > toMillis
+                        || (mmsId >= 0 && record.mmsId != mmsId)) {
+                    continue;
+                }
+                if (!listener.onRecord(record)) {
+                    return false;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private DataInputStream open(int segment) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(MmsTextJournal.segmentFile(dir, segment))));
+    }
+}
@@ -0,0 +1,269 @@
+package smartart.tech.mmstest;
+
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.Cursor;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead of part metadata for the conversation being viewed.
+ *
+ * Once a thread is opened, a low-priority background thread loads the part
+ * rows of the next {@link #DEFAULT_LOOKAHEAD} messages past the reader's
+ * position, so {@link #getParts} is answered from memory. Nothing is decoded
+ * ahead: the reader decodes each image once, at the size it needs. Opening
+ * another thread or {@link #cancel()} stops the work in flight.
+ *
+ * Usage:
+ * <pre>
+ *     MmsThreadPrefetcher prefetcher = MmsThreadPrefetcher.get(context);
+ *     prefetcher.open(threadId);
+ *     ... for each message shown ...
+ *     prefetcher.advance(threadId, date, mmsId);
+ *     List&lt;MmsRows.Part&gt; parts = prefetcher.getParts(mmsId);
+ * </pre>
+ */
+public class MmsThreadPrefetcher implements ComponentCallbacks2 {
+
+    private static final String TAG = "MmsThreadPrefetcher";
+
+    static final int DEFAULT_LOOKAHEAD = 10;
+    static final int MAX_CACHED_MESSAGES = 128;
+
+    private static MmsThreadPrefetcher instance;
+
+    private final ContentResolver contentResolver;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            MmsDispatcher.threadFactory("mms-prefetch", Process.THREAD_PRIORITY_LOWEST));
+
+    // Bumped whenever the prefetch target changes thread or is cancelled
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Map<Long, List<MmsRows.Part>> parts =
+            new LinkedHashMap<Long, List<MmsRows.Part>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, List<MmsRows.Part>> eldest) {
+                    return size() > MAX_CACHED_MESSAGES;
+                }
+            };
+
+    private volatile int lookahead = DEFAULT_LOOKAHEAD;
+    private volatile long threadId = -1;
+    // Reader position as (date, _id) keyset; prefetch covers the messages after it
+    private volatile long positionDate = Long.MAX_VALUE;
+    private volatile long positionId = Long.MAX_VALUE;
+
+    private final AtomicLong partHits = new AtomicLong();
+    private final AtomicLong partMisses = new AtomicLong();
+    private final AtomicLong prefetchedMessages = new AtomicLong();
+
+    private MmsThreadPrefetcher(Context context) {
+        this.contentResolver = context.getContentResolver();
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * The instance if something has already created it, otherwise null; never touches disk
+     */
+    static synchronized MmsThreadPrefetcher peek() {
+        return instance;
+    }
+
+    public static synchronized MmsThreadPrefetcher get(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            instance = new MmsThreadPrefetcher(appContext);
+        }
+        return instance;
+    }
+
+    public void setLookahead(int messages) {
+        lookahead = Math.max(1, messages);
+    }
+
+    /**
+     * Start prefetching a thread from its newest message, dropping work for any other thread
+     */
+    public void open(long threadId) {
+        if (this.threadId != threadId) {
+            generation.incrementAndGet();
+            this.threadId = threadId;
+        }
+        positionDate = Long.MAX_VALUE;
+        positionId = Long.MAX_VALUE;
+        schedule();
+    }
+
+    /**
+     * The reader has reached this message; keep the next messages prefetched
+     */
+    public void advance(long threadId, long date, long mmsId) {
+        if (this.threadId != threadId) {
+            open(threadId);
+        }
+        positionDate = date;
+        positionId = mmsId;
+        schedule();
+    }
+
+    /**
+     * Stop prefetching; cached entries stay until evicted
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        threadId = -1;
+    }
+
+    /**
+     * Part rows of a message if they were prefetched, otherwise null
+     */
+    public List<MmsRows.Part> getParts(String mmsId) {
+        List<MmsRows.Part> cached;
+        try {
+            synchronized (parts) {
+                cached = parts.get(Long.parseLong(mmsId));
+            }
+        } catch (NumberFormatException e) {
+            cached = null;
+        }
+        count(cached != null, partHits, partMisses);
+        return cached;
+    }
+
+    private void count(boolean hit, AtomicLong hits, AtomicLong misses) {
+        (hit ? hits : misses).incrementAndGet();
+        MmsMetrics.get().increment(hit ? MmsMetrics.Counter.PREFETCH_HITS : MmsMetrics.Counter.PREFETCH_MISSES);
+    }
+
+    // At most one pass is queued; it reads the latest position when it runs
+    private void schedule() {
+        if (threadId < 0 || !scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.set(false);
+                prefetch(generation.get());
+            }
+        });
+    }
+
+    private void prefetch(int gen) {
+        long thread = threadId;
+        long date = positionDate;
+        long id = positionId;
+        if (thread < 0) {
+            return;
+        }
+
+        List<Long> ids = new ArrayList<>();
+        try (Cursor cursor = contentResolver.query(
+                MmsRows.MMS_URI,
+                MmsRows.Mms.ID_PROJECTION,
+                "thread_id = ? AND (date < ? OR (date = ? AND _id < ?))",
+                new String[]{String.valueOf(thread), String.valueOf(date), String.valueOf(date), String.valueOf(id)},
+                "date DESC, _id DESC LIMIT " + lookahead
+        )) {
+            if (cursor == null) {
+                return;
+            }
+            MmsRows.Mms row = MmsRows.Mms.bind(cursor);
+            while (cursor.moveToNext()) {
+                ids.add(row.read(cursor).id);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error listing thread " + thread, e);
+            return;
+        }
+
+        for (long mmsId : ids) {
+            if (generation.get() != gen) {
+                return;
+            }
+            prefetchMessage(mmsId);
+        }
+    }
+
+    private void prefetchMessage(long mmsId) {
+        synchronized (parts) {
+            if (parts.containsKey(mmsId)) {
+                return;
+            }
+        }
+
+        List<MmsRows.Part> messageParts = new ArrayList<>();
+        try (Cursor partCursor = contentResolver.query(
+                MmsRows.PART_URI,
+                MmsRows.Part.PROJECTION,
+                "mid = ?",
+                new String[]{String.valueOf(mmsId)},
+                null
+        )) {
+            if (partCursor != null) {
+                MmsRows.Part part = MmsRows.Part.bind(partCursor);
+                while (partCursor.moveToNext()) {
+                    messageParts.add(part.read(partCursor).copy());
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error prefetching parts of MMS " + mmsId, e);
+            return;
+        }
+
+        synchronized (parts) {
+            parts.put(mmsId, Collections.unmodifiableList(messageParts));
+        }
+        prefetchedMessages.incrementAndGet();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            cancel();
+            synchronized (parts) {
+                parts.clear();
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Not affected
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + String.format(Locale.US,
+                "Prefetch: thread=%d messages=%d parts hit %d/%d (%.0f%%)",
+                threadId, prefetchedMessages.get(),
+                partHits.get(), partHits.get() + partMisses.get(), rate(partHits, partMisses)));
+    }
+
+    private static double rate(AtomicLong hits, AtomicLong misses) {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : 100.0 * hits.get() / total;
+    }
+}
@@ -0,0 +1,243 @@
+package smartart.tech.mmstest;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.util.LruCache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Region decoding for image attachments too large to decode whole.
+ *
+ * Wraps a {@link BitmapRegionDecoder} so only a requested rectangle is
+ * decoded, at a chosen sample size. The image is divided into tiles of
+ * {@link #TILE_SIZE} output pixels per sample size; decoded tiles are kept in
+ * an LRU bounded by bytes, so panning a viewport over a huge image costs at
+ * most the cache size plus the visible tiles.
+ *
+ * Usage:
+ * <pre>
+ *     try (MmsTiledImage image = MmsTiledImage.open(resolver, partUri)) {
+ *         Bitmap overview = image.decodeOverview(MmsTiledImage.OVERVIEW_MAX_PIXELS);
+ *         image.getTiles(viewport, 4, (tile, sourceRect) -&gt; canvas.drawBitmap(...));
+ *     }
+ * </pre>
+ */
+public class MmsTiledImage implements Closeable {
+
+    // Tile edge in output pixels
+    static final int TILE_SIZE = 512;
+    static final int DEFAULT_CACHE_BYTES = 8 * 1024 * 1024;
+
+    // Images past either limit are decoded through this class instead of BitmapFactory
+    static final long TILED_PIXEL_THRESHOLD = 4096L * 4096L;
+    static final int MAX_TEXTURE_SIZE = 4096;
+
+    // Largest overview decodeOverview produces by default
+    static final long OVERVIEW_MAX_PIXELS = 2048L * 2048L;
+
+    public interface OnTileListener {
+        // sourceRect is in full-resolution image coordinates
+        void onTile(Bitmap tile, Rect sourceRect);
+    }
+
+    private final BitmapRegionDecoder decoder;
+    private final int width;
+    private final int height;
+    private final LruCache<Long, Bitmap> tiles;
+
+    private MmsTiledImage(BitmapRegionDecoder decoder, int cacheBytes) {
+        this.decoder = decoder;
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        this.tiles = new LruCache<Long, Bitmap>(Math.max(1, cacheBytes)) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                // Evicted, trimmed or closed: give the tile's bytes back to the governor
+                if (oldValue != newValue) {
+                    MmsMemoryGovernor.get().release(oldValue);
+                }
+            }
+        };
+    }
+
+    public static MmsTiledImage open(ContentResolver contentResolver, Uri uri, int cacheBytes) throws IOException {
+        InputStream inputStream = contentResolver.openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        try {
+            BitmapRegionDecoder decoder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                    ? BitmapRegionDecoder.newInstance(inputStream)
+                    : BitmapRegionDecoder.newInstance(inputStream, false);
+            if (decoder == null) {
+                throw new IOException("Unsupported image format " + uri);
+            }
+            return new MmsTiledImage(decoder, cacheBytes);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    public static MmsTiledImage open(ContentResolver contentResolver, Uri uri) throws IOException {
+        return open(contentResolver, uri, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Open an image held in memory, e.g. a part of a mapped PDU
+     */
+    public static MmsTiledImage open(byte[] data, int offset, int length) throws IOException {
+        BitmapRegionDecoder decoder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                ? BitmapRegionDecoder.newInstance(data, offset, length)
+                : BitmapRegionDecoder.newInstance(data, offset, length, false);
+        if (decoder == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return new MmsTiledImage(decoder, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Whether an image of this size should go through region decoding
+     */
+    static boolean needsTiling(int width, int height) {
+        return width > MAX_TEXTURE_SIZE || height > MAX_TEXTURE_SIZE
+                || (long) width * height > TILED_PIXEL_THRESHOLD;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Decode the whole image at the smallest power-of-two sample size that
+     * keeps it under maxPixels and within the texture size
+     */
+    public Bitmap decodeOverview(long maxPixels) {
+        int sampleSize = 1;
+        while (sampleSize < 1 << 16
+                && ((long) (width / sampleSize) * (height / sampleSize) > maxPixels
+                || width / sampleSize > MAX_TEXTURE_SIZE || height / sampleSize > MAX_TEXTURE_SIZE)) {
+            sampleSize *= 2;
+        }
+        return decodeRegion(new Rect(0, 0, width, height), sampleSize);
+    }
+
+    /**
+     * Decode a rectangle of the image, in full-resolution coordinates.
+     * The sample size is raised further if the memory governor requires it.
+     *
+     * @return the decoded region, or null if it is empty or there is no memory for it
+     */
+    public Bitmap decodeRegion(Rect rect, int sampleSize) {
+        Rect clipped = new Rect(rect);
+        if (!clipped.intersect(0, 0, width, height)) {
+            return null;
+        }
+
+        sampleSize = Math.max(1, sampleSize);
+        int extra = MmsMemoryGovernor.get().acquire(clipped.width() / sampleSize, clipped.height() / sampleSize);
+        if (extra == 0) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize * extra;
+
+        long start = MmsMetrics.get().start();
+        Bitmap bitmap = null;
+        try {
+            synchronized (decoder) {
+                if (decoder.isRecycled()) {
+                    return null;
+                }
+                bitmap = decoder.decodeRegion(clipped, options);
+            }
+        } finally {
+            // Swaps the reservation for the region's real size, or gives it back
+            MmsMemoryGovernor.get().track(bitmap);
+        }
+        MmsMetrics.get().record(MmsMetrics.Stage.DECODE, start);
+        return bitmap;
+    }
+
+    /**
+     * Decode, or fetch from the tile cache, every tile intersecting the viewport.
+     * Tiles belong to the cache and are recycled once evicted, so draw them
+     * inside onTile rather than keeping them.
+     */
+    public void getTiles(Rect viewport, int sampleSize, OnTileListener listener) {
+        sampleSize = Math.max(1, sampleSize);
+        int span = TILE_SIZE * sampleSize;
+
+        Rect clipped = new Rect(viewport);
+        if (!clipped.intersect(0, 0, width, height)) {
+            return;
+        }
+
+        for (int row = clipped.top / span; row * span < clipped.bottom; row++) {
+            for (int col = clipped.left / span; col * span < clipped.right; col++) {
+                Rect source = new Rect(col * span, row * span,
+                        Math.min(width, (col + 1) * span), Math.min(height, (row + 1) * span));
+                Bitmap tile = getTile(col, row, sampleSize, source);
+                if (tile != null) {
+                    listener.onTile(tile, source);
+                    if (tile.getAllocationByteCount() > tiles.maxSize()) {
+                        // Never cached, see getTile
+                        MmsMemoryGovernor.get().release(tile);
+                    }
+                }
+            }
+        }
+    }
+
+    private Bitmap getTile(int col, int row, int sampleSize, Rect source) {
+        long key = ((long) sampleSize << 48) | ((long) row << 24) | col;
+        Bitmap tile = tiles.get(key);
+        if (tile == null) {
+            tile = decodeRegion(source, sampleSize);
+            // A tile bigger than the whole cache would be evicted, and recycled, on put
+            if (tile != null && tile.getAllocationByteCount() <= tiles.maxSize()) {
+                tiles.put(key, tile);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Drop all cached tiles
+     */
+    public void trimTiles() {
+        tiles.evictAll();
+    }
+
+    @Override
+    public void close() {
+        // Releases every tile through entryRemoved
+        tiles.evictAll();
+        synchronized (decoder) {
+            decoder.recycle();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MmsTiledImage{" + width + "x" + height + ", tiles=" + tiles.size() / 1024 + "KB"
+                + ", hits=" + tiles.hitCount() + ", misses=" + tiles.missCount() + "}";
+    }
+}
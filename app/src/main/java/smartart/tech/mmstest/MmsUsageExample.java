@@ -1,18 +1,28 @@
 package smartart.tech.mmstest;
 
 import android.app.Activity;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.widget.ImageView;
-import android.widget.Toast;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+
 public class MmsUsageExample extends Activity {
 
     private static final String TAG = "MmsUsageExample";
+    private static final long ALL_IMAGES_TIMEOUT_MS = 60000;
+    // Messages per BULK task in example 1
+    private static final int ALL_IMAGES_PAGE_SIZE = 5;
     private MmsImageExtractor mmsExtractor;
+    private MmsImageLoader imageLoader;
     private ImageView imageView;
+    // Example 1's scan, cancelled when the activity goes away
+    private MmsScan allImagesScan;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -21,49 +31,90 @@ public class MmsUsageExample extends Activity {
         // Initialize the MMS extractor
         mmsExtractor = new MmsImageExtractor(this);
 
-        // Example 1: Get all MMS images
-        getAllMmsImages();
+        // Show the newest thumbnails first, further pages stream in
+        imageLoader = new MmsImageLoader(this, new MmsImageLoader.Listener() {
+            @Override
+            public void onThumbnail(Bitmap thumbnail, String mmsId, Uri partUri) {
+                // Keep the newest image on screen
+                if (imageView != null && imageView.getDrawable() == null) {
+                    imageView.setImageBitmap(thumbnail);
+                }
+            }
+
+            @Override
+            public void onPageLoaded(int page, int thumbnailsSoFar, boolean more) {
+                Log.d(TAG, "Loaded page " + page + ", " + thumbnailsSoFar + " thumbnails"
+                        + (more ? ", more to come" : ", done"));
+            }
+        });
+        imageLoader.start();
 
-        // Example 2: Get latest 5 MMS images
-        getLatestImages();
+        // The examples decode and save every image, keep them off the main thread
+        getAllMmsImages();
 
         // Example 3: Get MMS images from specific thread
         // getMmsImagesFromThread(123);
     }
 
+    @Override
+    protected void onDestroy() {
+        imageLoader.cancel();
+        MmsScan scan = allImagesScan;
+        if (scan != null) {
+            scan.cancel();
+        }
+        super.onDestroy();
+    }
+
     /**
-     * Example 1: Get all MMS images with callback
+     * Example 1: Get all MMS images with callback. Each page of messages is a
+     * short BULK task that queues the next, so incoming MMS can run between pages.
+     * Example 2 runs once the scan ends.
      */
     private void getAllMmsImages() {
-        mmsExtractor.getAllMmsImages(new MmsImageExtractor.OnImageFoundListener() {
+        // The scan outlives the activity by up to a page; it only holds the application context
+        Context appContext = getApplicationContext();
+        MmsImageExtractor extractor = new MmsImageExtractor(appContext);
+        // Gallery inserts are grouped into batches during the scan
+        MmsGallerySink gallerySink = new MmsGallerySink(appContext);
+
+        MmsScan scan = newAllImagesScan(appContext, extractor, gallerySink).setTimeoutMs(ALL_IMAGES_TIMEOUT_MS);
+        allImagesScan = scan;
+        new AllImagesPage(scan, extractor, gallerySink).queue();
+    }
+
+    private static MmsScan newAllImagesScan(Context appContext, MmsImageExtractor extractor,
+                                            MmsGallerySink gallerySink) {
+        return new MmsScan(new MmsImageExtractor.OnImageFoundListener() {
             @Override
             public void onImageFound(Bitmap image, String contentType, String mmsId) {
+                onImagePartFound(image, contentType, mmsId, null);
+            }
+
+            @Override
+            public void onImagePartFound(Bitmap image, String contentType, String mmsId, Uri partUri) {
                 Log.d(TAG, "Found image in MMS " + mmsId + " with type: " + contentType);
 
-                // Display image in ImageView
-                if (imageView != null) {
-                    imageView.setImageBitmap(image);
-                }
+                // Display is handled by imageLoader, which decodes hardware bitmaps sized for the view
 
                 // Save to file
                 String filename = "mms_image_" + mmsId + "_" + System.currentTimeMillis() + ".jpg";
-                boolean saved = mmsExtractor.saveBitmapToFile(image, filename);
+                boolean saved = extractor.saveBitmapToFile(image, filename, mmsId);
                 if (saved) {
                     Log.d(TAG, "Image saved to: " + filename);
                 }
 
-                // Save to gallery
-                String galleryUri = mmsExtractor.saveBitmapToGallery(image,
-                        "MMS Image", "Image from MMS " + mmsId);
-                if (galleryUri != null) {
-                    Log.d(TAG, "Image saved to gallery: " + galleryUri);
+                // Save original to gallery
+                if (partUri != null) {
+                    gallerySink.enqueue(partUri, contentType,
+                            "mms_" + mmsId + "_" + partUri.getLastPathSegment(), "Image from MMS " + mmsId);
                 }
             }
 
             @Override
             public void onTextFound(String text, String mmsId) {
                 Log.d(TAG, "Found text in MMS " + mmsId + ": " + text);
-                Toast.makeText(MmsUsageExample.this, "Text: " + text, Toast.LENGTH_SHORT).show();
+                MmsNotifier.get().toast(appContext, "Text: " + text);
             }
 
             @Override
@@ -75,10 +126,52 @@ public class MmsUsageExample extends Activity {
     }
 
     /**
-     * Example 2: Get latest MMS images (simple method)
+     * One page of example 1 on the BULK lane. Holds no reference to the
+     * activity; onDestroy() cancelling the scan is what ends it early.
+     */
+    private static class AllImagesPage implements Runnable {
+        private final MmsScan scan;
+        private final MmsImageExtractor extractor;
+        private final MmsGallerySink gallerySink;
+
+        AllImagesPage(MmsScan scan, MmsImageExtractor extractor, MmsGallerySink gallerySink) {
+            this.scan = scan;
+            this.extractor = extractor;
+            this.gallerySink = gallerySink;
+        }
+
+        void queue() {
+            MmsDispatcher.get().execute(MmsDispatcher.Lane.BULK, this);
+        }
+
+        @Override
+        public void run() {
+            if (!scan.isCancelled() && extractor.getAllMmsImagesPage(scan, ALL_IMAGES_PAGE_SIZE)) {
+                queue();
+                return;
+            }
+
+            Log.d(TAG, "Scan ended (" + scan.getStopReason() + ") after " + scan.getResultCount() + " results");
+            List<Uri> saved = gallerySink.flush();
+            Log.d(TAG, "Saved " + saved.size() + " images to gallery");
+
+            if (!scan.isCancelled()) {
+                // Example 2: Get latest 5 MMS images
+                MmsDispatcher.get().execute(MmsDispatcher.Lane.BULK, new Runnable() {
+                    @Override
+                    public void run() {
+                        getLatestImages(extractor);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Example 2: Get latest MMS images (simple method). Runs on a background thread.
      */
-    private void getLatestImages() {
-        java.util.List<Bitmap> latestImages = mmsExtractor.getLatestMmsImages(5);
+    private static void getLatestImages(MmsImageExtractor extractor) {
+        java.util.List<Bitmap> latestImages = extractor.getLatestMmsImages(5);
 
         Log.d(TAG, "Found " + latestImages.size() + " recent images");
 
@@ -87,10 +180,13 @@ public class MmsUsageExample extends Activity {
 
             // Process each image
             String filename = "latest_image_" + i + ".jpg";
-            mmsExtractor.saveBitmapToFile(image, filename);
+            extractor.saveBitmapToFile(image, filename);
 
             Log.d(TAG, "Processed image " + i + ", size: " +
                     image.getWidth() + "x" + image.getHeight());
+
+            // Done with it, give the memory back to the decode budget
+            MmsMemoryGovernor.get().release(image);
         }
     }
 
@@ -141,12 +237,56 @@ public class MmsUsageExample extends Activity {
         // Save with sender info in filename
         String filename = "mms_" + mmsId + "_from_" +
                 (sender != null ? sender.replaceAll("[^a-zA-Z0-9]", "_") : "unknown") + ".jpg";
-        mmsExtractor.saveBitmapToFile(image, filename);
+        mmsExtractor.saveBitmapToFile(image, filename, mmsId);
 
         // You can also send to server, process with ML, etc.
         // sendImageToServer(imageBytes, mmsId, sender);
     }
 
+    /**
+     * Dump pipeline metrics and the event log.
+     * Usage: adb shell dumpsys activity smartart.tech.mmstest/.MmsUsageExample
+     *        [--reset-metrics] [--events-on] [--events-off] [--events-clear]
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        MmsMetrics.get().dump(prefix, writer);
+        MmsMemoryGovernor.get().dump(prefix, writer);
+        // Only what is already in memory; dump runs on the main thread, so nothing is loaded for it
+        MmsThreadPrefetcher prefetcher = MmsThreadPrefetcher.peek();
+        if (prefetcher != null) {
+            prefetcher.dump(prefix, writer);
+        }
+        MmsProcessedLedger ledger = MmsProcessedLedger.peek();
+        if (ledger != null) {
+            ledger.dump(prefix, writer);
+        }
+        MmsFileStore fileStore = MmsFileStore.peek();
+        if (fileStore != null) {
+            fileStore.dump(prefix, writer);
+        }
+        MmsEventLog.dump(prefix, writer);
+
+        if (args != null) {
+            for (String arg : args) {
+                if ("--reset-metrics".equals(arg)) {
+                    MmsMetrics.get().reset();
+                    writer.println(prefix + "Metrics reset");
+                } else if ("--events-on".equals(arg)) {
+                    MmsEventLog.setEnabled(true);
+                    writer.println(prefix + "Event log enabled");
+                } else if ("--events-off".equals(arg)) {
+                    MmsEventLog.setEnabled(false);
+                    writer.println(prefix + "Event log disabled");
+                } else if ("--events-clear".equals(arg)) {
+                    MmsEventLog.clear();
+                    writer.println(prefix + "Event log cleared");
+                }
+            }
+        }
+    }
+
     /**
      * Check if specific MMS has images before processing
      */
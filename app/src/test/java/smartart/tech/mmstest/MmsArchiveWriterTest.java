@@ -0,0 +1,228 @@
+package smartart.tech.mmstest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MmsArchiveWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] payload(long mmsId, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (mmsId * 31 + i);
+        }
+        return payload;
+    }
+
+    private static byte[] extract(MmsArchiveReader reader, MmsArchive.Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.extract(entry, out);
+        return out.toByteArray();
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    private static List<Long> mmsIds(List<MmsArchive.Entry> entries) {
+        List<Long> ids = new ArrayList<>();
+        for (MmsArchive.Entry entry : entries) {
+            ids.add(entry.getMmsId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void roundTripsAcrossSegments() throws IOException {
+        File dir = folder.newFolder("archive");
+        // Bigger than the copy buffer, streamed rather than held
+        byte[] large = payload(99, 200 * 1024);
+
+        try (MmsArchiveWriter writer = MmsArchiveWriter.open(dir, 8 * 1024)) {
+            writer.write(MmsArchive.TYPE_MESSAGE, 1, 0, 1000, MmsArchive.MESSAGE_CONTENT_TYPE, null,
+                    "from=+15551234567\n".getBytes(StandardCharsets.UTF_8));
+            for (int i = 2; i <= 20; i++) {
+                writer.write(MmsArchive.TYPE_PART, i, 100 + i, 1000 + i, "image/jpeg", "IMG_" + i + ".jpg",
+                        payload(i, i * 300));
+            }
+            writer.write(MmsArchive.TYPE_PART, 21, 121, 1021, "text/plain", "empty.txt", (byte[]) null);
+            writer.write(MmsArchive.TYPE_PART, 99, 199, 1099, "video/mp4", "clip.mp4",
+                    new ByteArrayInputStream(large));
+        }
+        assertTrue(MmsArchive.listSegments(dir).length > 1);
+
+        try (MmsArchiveReader reader = new MmsArchiveReader(dir)) {
+            List<MmsArchive.Entry> entries = reader.listEntries();
+            assertEquals(22, entries.size());
+
+            MmsArchive.Entry message = entries.get(0);
+            assertEquals(MmsArchive.TYPE_MESSAGE, message.getType());
+            assertEquals(MmsArchive.MESSAGE_CONTENT_TYPE, message.getContentType());
+            assertNull(message.getName());
+
+            for (int i = 2; i <= 20; i++) {
+                MmsArchive.Entry entry = entries.get(i - 1);
+                assertEquals(i, entry.getMmsId());
+                assertEquals(100 + i, entry.getPartId());
+                assertEquals(1000 + i, entry.getDate());
+                assertEquals("IMG_" + i + ".jpg", entry.getName());
+                assertArrayEquals(payload(i, i * 300), extract(reader, entry));
+            }
+            assertEquals(0, extract(reader, entries.get(20)).length);
+
+            List<MmsArchive.Entry> clip = reader.findEntries(99);
+            assertEquals(1, clip.size());
+            assertEquals(large.length, clip.get(0).getPayloadLength());
+            assertArrayEquals(large, extract(reader, clip.get(0)));
+
+            assertTrue(reader.verify().isEmpty());
+        }
+    }
+
+    @Test
+    public void truncatesFieldsOnCharacterBoundaries() throws IOException {
+        File dir = folder.newFolder("archive");
+        // One byte short of the limit, then a two byte character
+        String name = repeat("a", MmsArchive.MAX_FIELD_BYTES - 1) + "é" + "b";
+        // Two bytes short, then a four byte character
+        String contentType = repeat("a", MmsArchive.MAX_FIELD_BYTES - 2) + "😀";
+        // Exactly the limit in two byte characters
+        String exact = repeat("é", MmsArchive.MAX_FIELD_BYTES / 2);
+        // As many chars as the byte limit, but more bytes than that
+        String multibyte = repeat("a", 1000) + repeat("é", 12) + repeat("b", 12);
+
+        MmsArchive.Entry written;
+        MmsArchive.Entry cut;
+        try (MmsArchiveWriter writer = MmsArchiveWriter.open(dir)) {
+            written = writer.write(MmsArchive.TYPE_PART, 1, 1, 0, contentType, name, new byte[]{1});
+            writer.write(MmsArchive.TYPE_PART, 2, 2, 0, exact, exact, new byte[]{2});
+            cut = writer.write(MmsArchive.TYPE_PART, 3, 3, 0, "image/jpeg", multibyte, new byte[]{3});
+        }
+        assertEquals(repeat("a", 1000) + repeat("é", 12), cut.getName());
+
+        assertEquals(repeat("a", MmsArchive.MAX_FIELD_BYTES - 1), written.getName());
+        assertEquals(repeat("a", MmsArchive.MAX_FIELD_BYTES - 2), written.getContentType());
+
+        try (MmsArchiveReader reader = new MmsArchiveReader(dir)) {
+            List<MmsArchive.Entry> entries = reader.listEntries();
+            assertEquals(written.getName(), entries.get(0).getName());
+            assertEquals(written.getContentType(), entries.get(0).getContentType());
+            assertEquals(exact, entries.get(1).getName());
+            assertEquals(exact, entries.get(1).getContentType());
+            assertEquals(cut.getName(), entries.get(2).getName());
+            for (MmsArchive.Entry entry : entries) {
+                assertFalse(entry.getName().contains("\uFFFD"));
+                assertFalse(entry.getContentType().contains("\uFFFD"));
+            }
+            assertTrue(reader.verify().isEmpty());
+        }
+    }
+
+    @Test
+    public void resumeDropsEverythingAfterTheCheckpoint() throws IOException {
+        File dir = folder.newFolder("archive");
+
+        MmsArchiveWriter writer = MmsArchiveWriter.open(dir);
+        for (int i = 1; i <= 3; i++) {
+            writer.write(MmsArchive.TYPE_PART, i, i, 0, "image/png", "p" + i, payload(i, 500));
+        }
+        writer.checkpoint(3);
+        for (int i = 4; i <= 5; i++) {
+            writer.write(MmsArchive.TYPE_PART, i, i, 0, "image/png", "p" + i, payload(i, 500));
+        }
+        // Crash: no index, and the last record is torn
+        writer.abort();
+        File segment = MmsArchive.segmentFile(dir, 0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 100);
+        }
+
+        try (MmsArchiveWriter resumed = MmsArchiveWriter.open(dir)) {
+            assertEquals(3, resumed.getCheckpointMmsId());
+            resumed.write(MmsArchive.TYPE_PART, 6, 6, 0, "image/png", "p6", payload(6, 500));
+        }
+
+        try (MmsArchiveReader reader = new MmsArchiveReader(dir)) {
+            List<MmsArchive.Entry> entries = reader.listEntries();
+            assertEquals(Arrays.asList(1L, 2L, 3L, 6L), mmsIds(entries));
+            for (MmsArchive.Entry entry : entries) {
+                assertArrayEquals(payload(entry.getMmsId(), 500), extract(reader, entry));
+            }
+            assertTrue(reader.verify().isEmpty());
+        }
+    }
+
+    @Test
+    public void closeCheckpointsEverythingWritten() throws IOException {
+        File dir = folder.newFolder("archive");
+
+        try (MmsArchiveWriter writer = MmsArchiveWriter.open(dir)) {
+            for (int i = 1; i <= 4; i++) {
+                writer.write(MmsArchive.TYPE_PART, i, i, 0, "image/png", "p" + i, payload(i, 100));
+                if (i == 2) {
+                    writer.checkpoint(2);
+                }
+            }
+        }
+
+        // An export resumes after the highest id, so 3 and 4 are not written twice
+        try (MmsArchiveWriter resumed = MmsArchiveWriter.open(dir)) {
+            assertEquals(4, resumed.getCheckpointMmsId());
+            resumed.write(MmsArchive.TYPE_PART, 5, 5, 0, "image/png", "p5", payload(5, 100));
+        }
+
+        try (MmsArchiveReader reader = new MmsArchiveReader(dir)) {
+            assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), mmsIds(reader.listEntries()));
+        }
+    }
+
+    @Test
+    public void readerScansPastATornTail() throws IOException {
+        File dir = folder.newFolder("archive");
+
+        MmsArchiveWriter writer = MmsArchiveWriter.open(dir);
+        for (int i = 1; i <= 3; i++) {
+            writer.write(MmsArchive.TYPE_PART, i, i, 0, "image/gif", "g" + i, payload(i, 64));
+        }
+        writer.abort();
+
+        // Every cut inside the last record leaves the first two readable
+        File segment = MmsArchive.segmentFile(dir, 0);
+        byte[] full = Files.readAllBytes(segment.toPath());
+        long lastRecord;
+        try (MmsArchiveReader reader = new MmsArchiveReader(dir)) {
+            lastRecord = reader.listEntries().get(2).recordOffset;
+        }
+        for (int length = (int) lastRecord; length < full.length; length++) {
+            Files.write(segment.toPath(), Arrays.copyOf(full, length));
+            try (MmsArchiveReader reader = new MmsArchiveReader(dir)) {
+                assertEquals("length " + length, Arrays.asList(1L, 2L), mmsIds(reader.listEntries()));
+                assertTrue(reader.verify().isEmpty());
+            }
+        }
+    }
+}
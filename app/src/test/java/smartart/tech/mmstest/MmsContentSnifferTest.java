@@ -0,0 +1,42 @@
+package smartart.tech.mmstest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class MmsContentSnifferTest {
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10};
+
+    private static MmsContentSniffer.Kind sniff(byte[] data, String declaredType) {
+        return MmsContentSniffer.sniff(ByteBuffer.wrap(data), declaredType);
+    }
+
+    @Test
+    public void declaredTextStaysTextInAnyEncoding() {
+        // No byte order mark: zero octets in UTF-16, bytes past 0xF4 in GBK
+        byte[] utf16 = "Meet at 6pm".getBytes(StandardCharsets.UTF_16LE);
+        byte[] gbk = "今晚见面".getBytes(Charset.forName("GBK"));
+
+        assertEquals(MmsContentSniffer.Kind.TEXT, sniff(utf16, "text/plain"));
+        assertEquals(MmsContentSniffer.Kind.TEXT, sniff(gbk, "text/plain"));
+        // Undeclared, the same bytes are not trusted as text
+        assertEquals(MmsContentSniffer.Kind.UNKNOWN, sniff(utf16, "application/octet-stream"));
+        assertEquals(MmsContentSniffer.Kind.UNKNOWN, sniff(gbk, null));
+    }
+
+    @Test
+    public void signaturesOverrideTheDeclaredType() {
+        assertEquals(MmsContentSniffer.Kind.JPEG, sniff(JPEG, "text/plain"));
+        assertEquals(MmsContentSniffer.Kind.AMR,
+                sniff("#!AMR\n".getBytes(StandardCharsets.US_ASCII), "text/plain"));
+        assertEquals(MmsContentSniffer.Kind.TEXT,
+                sniff("plain words".getBytes(StandardCharsets.US_ASCII), "application/octet-stream"));
+        // Nothing to go on
+        assertEquals(MmsContentSniffer.Kind.UNKNOWN, sniff(new byte[0], "text/plain"));
+    }
+}
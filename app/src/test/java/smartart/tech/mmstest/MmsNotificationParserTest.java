@@ -0,0 +1,244 @@
+package smartart.tech.mmstest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MmsNotificationParserTest {
+
+    // M-Notification.ind with every header the parser keeps, plus ones it skips
+    private static byte[] fullNotification() {
+        Pdu pdu = new Pdu();
+        pdu.octet(0x8C).octet(0x82);
+        pdu.octet(0x98).text("tr-0001");
+        pdu.octet(0x8D).octet(0x92);
+        // From: Value-length, Address-present-token, UTF-8 encoded string
+        byte[] address = "+15551234567/TYPE=PLMN".getBytes(StandardCharsets.US_ASCII);
+        pdu.octet(0x89).octet(1 + 1 + 1 + address.length + 1).octet(0x80)
+                .octet(1 + address.length + 1).octet(0x80 | 106).bytes(address).octet(0);
+        // Subject as a UTF-8 encoded string
+        byte[] subject = "Café photos".getBytes(StandardCharsets.UTF_8);
+        pdu.octet(0x96).octet(1 + subject.length + 1).octet(0x80 | 106).bytes(subject).octet(0);
+        // Message class: personal
+        pdu.octet(0x8A).octet(0x80);
+        // Skipped: Date (long integer) and delivery report (short integer)
+        pdu.octet(0x85).octet(4).octet(0x65).octet(0x00).octet(0x00).octet(0x00);
+        pdu.octet(0x86).octet(0x81);
+        pdu.octet(0x8E).octet(3).octet(0x04).octet(0xB0).octet(0x00);
+        // Expiry: relative, one week
+        pdu.octet(0x88).octet(5).octet(0x81).octet(3).octet(0x09).octet(0x3A).octet(0x80);
+        // Skipped: application header
+        pdu.text("X-Carrier").text("test");
+        pdu.octet(0x83).text("http://mmsc.example.com/m/0001");
+        return pdu.toByteArray();
+    }
+
+    @Test
+    public void parsesEveryKeptHeader() {
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+
+        assertTrue(MmsNotificationParser.parse(fullNotification(), result));
+        assertEquals(MmsNotificationParser.MESSAGE_TYPE_NOTIFICATION_IND, result.messageType);
+        assertEquals(0x12, result.mmsVersion);
+        assertEquals("tr-0001", result.transactionId);
+        assertEquals("+15551234567", result.from);
+        assertEquals("Café photos", result.subject);
+        assertEquals(0x80, result.messageClass);
+        assertEquals(0x04B000, result.messageSize);
+        assertEquals(604800, result.expirySeconds);
+        assertTrue(result.expiryRelative);
+        assertEquals("http://mmsc.example.com/m/0001", result.contentLocation);
+    }
+
+    // The minimal notification a carrier sends: type, optional transaction id, size, location
+    private static byte[] notification(String transactionId, String location, long size) {
+        Pdu pdu = new Pdu().octet(0x8C).octet(0x82);
+        if (transactionId != null) {
+            pdu.octet(0x98).text(transactionId);
+        }
+        pdu.octet(0x8D).octet(0x92);
+        pdu.octet(0x8E).longInteger(size);
+        pdu.octet(0x83).text(location);
+        return pdu.toByteArray();
+    }
+
+    @Test
+    public void messageSizesRoundTrip() {
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+        for (long size : new long[]{0, 1, 0x7F, 0x80, 300 * 1024, 0xFFFFFFFFL}) {
+            byte[] pdu = notification("T" + size, "http://mmsc/" + size, size);
+
+            assertTrue(MmsNotificationParser.parse(pdu, result));
+            assertEquals("T" + size, result.transactionId);
+            assertEquals("http://mmsc/" + size, result.contentLocation);
+            assertEquals(size, result.messageSize);
+        }
+    }
+
+    @Test
+    public void readsUtf16EncodedStrings() {
+        // "Ünïcode" has a zero octet in every UTF-16 code unit
+        byte[] subject = "Ünïcode".getBytes(StandardCharsets.UTF_16);
+        byte[] address = "+1555123".getBytes(StandardCharsets.UTF_16);
+        Pdu pdu = new Pdu().octet(0x8C).octet(0x82);
+        // Subject, charset 1015 as a long integer, ends with a zero code unit
+        pdu.octet(0x96).octet(3 + subject.length + 2).octet(2).octet(0x03).octet(0xF7)
+                .bytes(subject).octet(0).octet(0);
+        // From ends with a single End-of-string octet
+        pdu.octet(0x89).octet(1 + 1 + 3 + address.length + 1).octet(0x80)
+                .octet(3 + address.length + 1).octet(2).octet(0x03).octet(0xF7).bytes(address).octet(0);
+        pdu.octet(0x83).text("http://mmsc/u");
+
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+        assertTrue(MmsNotificationParser.parse(pdu.toByteArray(), result));
+        assertEquals("Ünïcode", result.subject);
+        assertEquals("+1555123", result.from);
+        assertEquals("http://mmsc/u", result.contentLocation);
+    }
+
+    @Test
+    public void readsQuotedTextAndDirectBuffers() {
+        byte[] pdu = new Pdu().octet(0x8C).octet(0x82)
+                .octet(0x98).octet(0x7F).bytes(new byte[]{(byte) 0xC3, (byte) 0xA9}).octet(0)
+                .octet(0x83).text("http://mmsc/q").toByteArray();
+        ByteBuffer direct = ByteBuffer.allocateDirect(pdu.length);
+        direct.put(pdu).flip();
+
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+        assertTrue(MmsNotificationParser.parse(direct, result));
+        assertEquals("é", result.transactionId);
+        assertEquals("http://mmsc/q", result.contentLocation);
+    }
+
+    @Test
+    public void rejectsOtherMessagesAndMissingLocation() {
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+
+        // M-Delivery.ind
+        assertFalse(MmsNotificationParser.parse(
+                new Pdu().octet(0x8C).octet(0x86).octet(0x83).text("http://mmsc/x").toByteArray(), result));
+        assertFalse(MmsNotificationParser.parse(
+                new Pdu().octet(0x8C).octet(0x82).octet(0x98).text("tr").toByteArray(), result));
+        assertFalse(MmsNotificationParser.parse((byte[]) null, result));
+        assertFalse(MmsNotificationParser.parse(new byte[0], result));
+    }
+
+    @Test
+    public void resultIsResetBetweenCalls() {
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+        assertTrue(MmsNotificationParser.parse(fullNotification(), result));
+
+        assertTrue(MmsNotificationParser.parse(notification(null, "http://mmsc/2", 5), result));
+        assertNull(result.transactionId);
+        assertNull(result.from);
+        assertNull(result.subject);
+        assertEquals(-1, result.expirySeconds);
+    }
+
+    @Test
+    public void everyTruncationFailsCleanly() {
+        byte[] pdu = fullNotification();
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+        for (int length = 0; length < pdu.length; length++) {
+            // The content location is last, so no prefix is a complete notification
+            assertFalse("length " + length,
+                    MmsNotificationParser.parse(Arrays.copyOf(pdu, length), result));
+        }
+    }
+
+    @Test
+    public void fuzzedInputNeverThrows() {
+        byte[] valid = fullNotification();
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+        Random random = new Random(31);
+
+        for (int i = 0; i < 200_000; i++) {
+            byte[] pdu;
+            if (i % 2 == 0) {
+                // Mutate a few octets of a valid PDU
+                pdu = valid.clone();
+                for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                    pdu[random.nextInt(pdu.length)] = (byte) random.nextInt(256);
+                }
+            } else {
+                // Random bytes behind a valid message type
+                pdu = new byte[2 + random.nextInt(64)];
+                random.nextBytes(pdu);
+                pdu[0] = (byte) 0x8C;
+                pdu[1] = (byte) 0x82;
+            }
+            // Returns true or false, but never throws
+            MmsNotificationParser.parse(pdu, result);
+        }
+    }
+
+    @Test
+    public void parsesQuickly() {
+        byte[] pdu = fullNotification();
+        ByteBuffer buffer = ByteBuffer.wrap(pdu);
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+
+        // Warm up, then time; a push is parsed on the main thread, so keep it in the microseconds
+        for (int i = 0; i < 20_000; i++) {
+            buffer.rewind();
+            MmsNotificationParser.parse(buffer, result);
+        }
+        int iterations = 200_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            buffer.rewind();
+            assertTrue(MmsNotificationParser.parse(buffer, result));
+        }
+        long perParseNanos = (System.nanoTime() - start) / iterations;
+
+        assertTrue("parse took " + perParseNanos + "ns", perParseNanos < TimeUnit.MICROSECONDS.toNanos(50));
+    }
+
+    /**
+     * Minimal PDU writer for building test input
+     */
+    private static class Pdu {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Pdu octet(int value) {
+            out.write(value);
+            return this;
+        }
+
+        Pdu bytes(byte[] value) {
+            out.write(value, 0, value.length);
+            return this;
+        }
+
+        // Long-integer: Short-length, then the value in as few octets as it needs
+        Pdu longInteger(long value) {
+            int length = 1;
+            while (length < 8 && (value >>> (8 * length)) != 0) {
+                length++;
+            }
+            octet(length);
+            for (int i = length - 1; i >= 0; i--) {
+                octet((int) (value >>> (8 * i)) & 0xFF);
+            }
+            return this;
+        }
+
+        Pdu text(String value) {
+            return bytes(value.getBytes(StandardCharsets.US_ASCII)).octet(0);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
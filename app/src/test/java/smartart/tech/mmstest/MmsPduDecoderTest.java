@@ -0,0 +1,294 @@
+package smartart.tech.mmstest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MmsPduDecoderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] JPEG = jpegBody(300);
+
+    // Starts like a JPEG; long enough that its data length takes a two-octet uintvar
+    private static byte[] jpegBody(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 7);
+        }
+        body[0] = (byte) 0xFF;
+        body[1] = (byte) 0xD8;
+        body[2] = (byte) 0xFF;
+        return body;
+    }
+
+    // M-Retrieve.conf: multipart/related with a SMIL, a UTF-8 text and a JPEG part
+    private static byte[] retrieveConf() {
+        Pdu pdu = new Pdu();
+        pdu.octet(0x8C).octet(0x84);
+        pdu.octet(0x98).text("tr-7");
+        pdu.octet(0x8D).octet(0x92);
+        pdu.octet(0x8B).text("msg-7");
+        pdu.octet(0x85).octet(4).octet(0x69).octet(0x00).octet(0x00).octet(0x01);
+        byte[] address = "+15557654321/TYPE=PLMN".getBytes(StandardCharsets.US_ASCII);
+        pdu.octet(0x89).octet(1 + address.length + 1).octet(0x80).bytes(address).octet(0);
+        pdu.octet(0x96).text("Holiday");
+        // Content-Type: multipart/related; start=<smil>; type=application/smil
+        Pdu type = new Pdu().octet(0x80 | 0x33).octet(0x8A).text("<smil>").octet(0x89).text("application/smil");
+        pdu.octet(0x84).octet(type.size()).bytes(type.toByteArray());
+
+        pdu.uintvar(3);
+        pdu.part(new Pdu().text("application/smil").octet(0xC0).text("<smil>"),
+                "<smil><body/></smil>".getBytes(StandardCharsets.US_ASCII));
+        pdu.part(new Pdu().octet(3).octet(0x80 | 0x03).octet(0x81).octet(0x80 | 106)
+                        .octet(0xC0).text("\"<text0>"),
+                "Grüße".getBytes(StandardCharsets.UTF_8));
+        Pdu jpegType = new Pdu().octet(0x80 | 0x1E).octet(0x85).text("photo.jpg");
+        pdu.part(new Pdu().octet(jpegType.size()).bytes(jpegType.toByteArray())
+                        .octet(0x8E).text("IMG_0001.jpg"),
+                JPEG);
+        return pdu.toByteArray();
+    }
+
+    /**
+     * Copies of the parts reported for one PDU
+     */
+    private static class Collected implements MmsPduDecoder.OnPartListener {
+        final List<MmsPduDecoder.Part> parts = new ArrayList<>();
+        final List<ByteBuffer> bodies = new ArrayList<>();
+        MmsPduDecoder.Part instance;
+
+        @Override
+        public void onPart(MmsPduDecoder.Part part) {
+            if (instance == null) {
+                instance = part;
+            }
+            assertSame("part is reused", instance, part);
+
+            MmsPduDecoder.Part copy = new MmsPduDecoder.Part();
+            copy.index = part.index;
+            copy.contentType = part.contentType;
+            copy.contentId = part.contentId;
+            copy.contentLocation = part.contentLocation;
+            copy.name = part.name;
+            copy.charset = part.charset;
+            copy.offset = part.offset;
+            copy.length = part.length;
+            parts.add(copy);
+            bodies.add(part.body());
+            if (part.contentType.equals("text/plain")) {
+                assertEquals("Grüße", part.text());
+            }
+        }
+    }
+
+    @Test
+    public void decodesHeadersAndParts() {
+        byte[] pdu = retrieveConf();
+        MmsPduDecoder.Headers headers = new MmsPduDecoder.Headers();
+        Collected collected = new Collected();
+
+        assertTrue(MmsPduDecoder.decode(ByteBuffer.wrap(pdu), headers, collected));
+
+        assertEquals(MmsPduDecoder.MESSAGE_TYPE_RETRIEVE_CONF, headers.messageType);
+        assertEquals("tr-7", headers.transactionId);
+        assertEquals("msg-7", headers.messageId);
+        assertEquals("+15557654321", headers.from);
+        assertEquals("Holiday", headers.subject);
+        assertEquals(0x69000001L, headers.date);
+        assertEquals("application/vnd.wap.multipart.related", headers.contentType);
+        assertEquals("<smil>", headers.start);
+        assertEquals(3, headers.partCount);
+
+        MmsPduDecoder.Part smil = collected.parts.get(0);
+        assertEquals("application/smil", smil.contentType);
+        assertEquals("smil", smil.contentId);
+
+        MmsPduDecoder.Part text = collected.parts.get(1);
+        assertEquals("text/plain", text.contentType);
+        assertEquals(106, text.charset);
+        assertEquals("text0", text.contentId);
+
+        MmsPduDecoder.Part image = collected.parts.get(2);
+        assertEquals(2, image.index);
+        assertEquals("image/jpeg", image.contentType);
+        assertEquals("photo.jpg", image.name);
+        assertEquals("IMG_0001.jpg", image.contentLocation);
+        assertNull(image.contentId);
+        assertEquals(JPEG.length, image.length);
+        assertEquals(pdu.length - JPEG.length, image.offset);
+    }
+
+    @Test
+    public void bodiesAreSlicesOfThePdu() {
+        byte[] pdu = retrieveConf();
+        Collected collected = new Collected();
+        assertTrue(MmsPduDecoder.decode(ByteBuffer.wrap(pdu), new MmsPduDecoder.Headers(), collected));
+
+        ByteBuffer body = collected.bodies.get(2);
+        assertTrue(body.isReadOnly());
+        assertEquals(0, body.position());
+        assertEquals(JPEG.length, body.remaining());
+        byte[] copy = new byte[body.remaining()];
+        body.duplicate().get(copy);
+        assertTrue(Arrays.equals(JPEG, copy));
+
+        // Nothing was copied: a write to the PDU shows through the slice
+        pdu[collected.parts.get(2).offset + 10] = 0x55;
+        assertEquals(0x55, body.get(10));
+    }
+
+    @Test
+    public void decodesMappedFiles() throws IOException {
+        File file = folder.newFile("retrieve.pdu");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(retrieveConf());
+        }
+
+        MmsPduDecoder.Headers headers = new MmsPduDecoder.Headers();
+        Collected collected = new Collected();
+        assertTrue(MmsPduDecoder.decode(file, headers, collected));
+
+        assertEquals(3, headers.partCount);
+        ByteBuffer body = collected.bodies.get(2);
+        byte[] copy = new byte[body.remaining()];
+        body.get(copy);
+        assertTrue(Arrays.equals(JPEG, copy));
+    }
+
+    @Test
+    public void rejectsOtherMessageTypes() {
+        MmsPduDecoder.Headers headers = new MmsPduDecoder.Headers();
+        // M-Notification.ind
+        byte[] notification = new Pdu().octet(0x8C).octet(0x82).octet(0x98).text("tr")
+                .octet(0x8D).octet(0x92).octet(0x83).text("http://mmsc/1").toByteArray();
+
+        assertFalse(MmsPduDecoder.decode(ByteBuffer.wrap(notification), headers, null));
+        assertFalse(MmsPduDecoder.decode(ByteBuffer.allocate(0), headers, null));
+    }
+
+    @Test
+    public void everyTruncationFailsCleanly() {
+        byte[] pdu = retrieveConf();
+        MmsPduDecoder.Headers headers = new MmsPduDecoder.Headers();
+        for (int length = 0; length < pdu.length; length++) {
+            assertFalse("length " + length,
+                    MmsPduDecoder.decode(ByteBuffer.wrap(pdu, 0, length), headers, null));
+        }
+    }
+
+    @Test
+    public void fuzzedInputNeverThrowsOrEscapesTheBuffer() {
+        byte[] valid = retrieveConf();
+        MmsPduDecoder.Headers headers = new MmsPduDecoder.Headers();
+        Random random = new Random(32);
+
+        for (int i = 0; i < 100_000; i++) {
+            byte[] pdu = valid.clone();
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                // Favour the headers and part table, where lengths live
+                int at = random.nextInt(i % 2 == 0 ? pdu.length - JPEG.length : pdu.length);
+                pdu[at] = (byte) random.nextInt(256);
+            }
+            int limit = pdu.length;
+            MmsPduDecoder.decode(ByteBuffer.wrap(pdu), headers, new MmsPduDecoder.OnPartListener() {
+                @Override
+                public void onPart(MmsPduDecoder.Part part) {
+                    assertTrue(part.offset >= 0 && part.length >= 0);
+                    assertTrue(part.offset + part.length <= limit);
+                    part.body();
+                }
+            });
+        }
+    }
+
+    @Test
+    public void decodesQuickly() {
+        ByteBuffer buffer = ByteBuffer.wrap(retrieveConf());
+        MmsPduDecoder.Headers headers = new MmsPduDecoder.Headers();
+        MmsPduDecoder.OnPartListener listener = new MmsPduDecoder.OnPartListener() {
+            @Override
+            public void onPart(MmsPduDecoder.Part part) {
+            }
+        };
+
+        for (int i = 0; i < 20_000; i++) {
+            buffer.rewind();
+            MmsPduDecoder.decode(buffer, headers, listener);
+        }
+        int iterations = 200_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            buffer.rewind();
+            assertTrue(MmsPduDecoder.decode(buffer, headers, listener));
+        }
+        long perDecodeNanos = (System.nanoTime() - start) / iterations;
+
+        // Independent of body size, since bodies are never copied
+        assertTrue("decode took " + perDecodeNanos + "ns", perDecodeNanos < TimeUnit.MICROSECONDS.toNanos(50));
+    }
+
+    /**
+     * Minimal PDU writer for building test input
+     */
+    private static class Pdu {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Pdu octet(int value) {
+            out.write(value);
+            return this;
+        }
+
+        Pdu bytes(byte[] value) {
+            out.write(value, 0, value.length);
+            return this;
+        }
+
+        Pdu text(String value) {
+            return bytes(value.getBytes(StandardCharsets.US_ASCII)).octet(0);
+        }
+
+        Pdu uintvar(long value) {
+            int shift = 0;
+            while ((value >>> (shift + 7)) != 0) {
+                shift += 7;
+            }
+            for (; shift > 0; shift -= 7) {
+                octet((int) ((value >>> shift) & 0x7F) | 0x80);
+            }
+            return octet((int) (value & 0x7F));
+        }
+
+        // Multipart entry: headers length, data length, headers, data
+        Pdu part(Pdu headers, byte[] data) {
+            return uintvar(headers.size()).uintvar(data.length).bytes(headers.toByteArray()).bytes(data);
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package smartart.tech.mmstest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MmsLoadHarness report math and threshold checks, and the PDUs the harness injects.
+ * A storm itself needs a device; MmsLoadHarnessStormTest runs one.
+ */
+public class MmsLoadHarnessTest {
+
+    // 100 targets injected 10ms apart, each done latencyMs later
+    private static MmsLoadHarness.Report run(long latencyMs) {
+        Map<String, Long> injectedAt = new HashMap<>();
+        Map<String, Long> completedAt = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            injectedAt.put("mms:" + i, 1000L + i * 10);
+            completedAt.put("mms:" + i, 1000L + i * 10 + latencyMs);
+        }
+        MmsLoadHarness.Report report = new MmsLoadHarness.Report();
+        report.distinctMessages = 100;
+        report.summarize(1000, injectedAt, completedAt);
+        return report;
+    }
+
+    @Test
+    public void summarizeMeasuresFromInjectionToLastCallback() {
+        MmsLoadHarness.Report report = run(200);
+
+        assertEquals(100, report.getCompleted());
+        // Last completion at 990 + 200ms after the start
+        assertEquals(100 * 1000.0 / 1190, report.getThroughputPerSecond(), 0.01);
+        // Histogram buckets are within 12.5%
+        assertEquals(200, report.getPercentileMillis(50), 25);
+        assertEquals(200, report.getPercentileMillis(99), 25);
+    }
+
+    @Test
+    public void summarizeIgnoresCallbacksForUninjectedTargets() {
+        Map<String, Long> injectedAt = new HashMap<>();
+        Map<String, Long> completedAt = new HashMap<>();
+        injectedAt.put("sms:+15550000001", 0L);
+        completedAt.put("sms:+15550000001", 50L);
+        // A real broadcast's callback, never injected by the run
+        completedAt.put("mms:7", 60000L);
+
+        MmsLoadHarness.Report report = new MmsLoadHarness.Report();
+        report.summarize(0, injectedAt, completedAt);
+
+        assertEquals(1, report.getCompleted());
+        assertEquals(50, report.getPercentileMillis(100), 7);
+    }
+
+    @Test
+    public void healthyRunPasses() {
+        assertEquals(new ArrayList<String>(), run(200).check(new MmsLoadHarness.Thresholds()));
+    }
+
+    @Test
+    public void slowRunFailsLatency() {
+        List<String> failures = run(20000).check(new MmsLoadHarness.Thresholds());
+
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(0), failures.get(0).startsWith("p95 "));
+        assertTrue(failures.get(1), failures.get(1).startsWith("p99 "));
+    }
+
+    @Test
+    public void leakingRunFailsThreadsHeapAndFiles() {
+        MmsLoadHarness.Report report = run(200);
+        report.baselineThreads = 20;
+        report.peakThreads = 60;
+        report.baselineHeapBytes = 10L * 1024 * 1024;
+        report.peakHeapBytes = 200L * 1024 * 1024;
+        report.filesWritten = 100 * 8 + 1;
+
+        List<String> failures = report.check(new MmsLoadHarness.Thresholds());
+
+        assertEquals(3, failures.size());
+        assertTrue(failures.get(0), failures.get(0).startsWith("threads "));
+        assertTrue(failures.get(1), failures.get(1).startsWith("heap "));
+        assertTrue(failures.get(2), failures.get(2).startsWith("files "));
+    }
+
+    @Test
+    public void notificationPduParsesBack() {
+        byte[] pdu = MmsLoadHarness.notificationPdu("T1234", "http://mmsc.example/m/42", 300 * 1024);
+
+        MmsNotificationParser.Result result = new MmsNotificationParser.Result();
+        assertTrue(MmsNotificationParser.parse(pdu, result));
+        assertEquals(MmsNotificationParser.MESSAGE_TYPE_NOTIFICATION_IND, result.messageType);
+        assertEquals("T1234", result.transactionId);
+        assertEquals("http://mmsc.example/m/42", result.contentLocation);
+        assertEquals(300 * 1024, result.messageSize);
+    }
+
+    @Test
+    public void smsDeliverPduPacksSevenBitText() {
+        byte[] pdu = MmsLoadHarness.smsDeliverPdu("+15551234567", "Load test 1");
+
+        // No SMSC, SMS-DELIVER, 11 digits international
+        assertEquals(0x00, pdu[0]);
+        assertEquals(0x04, pdu[1]);
+        assertEquals(11, pdu[2]);
+        assertEquals(0x91, pdu[3] & 0xFF);
+        // Swapped semi-octets, F-padded
+        assertEquals(0x51, pdu[4] & 0xFF);
+        assertEquals(0xF7, pdu[9] & 0xFF);
+
+        // PID, DCS and the 7 byte timestamp come before the user data length
+        int udl = 4 + 6 + 2 + 7;
+        assertEquals(11, pdu[udl]);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < pdu[udl]; i++) {
+            int bit = i * 7;
+            int value = (pdu[udl + 1 + bit / 8] & 0xFF) >>> (bit % 8);
+            if (bit % 8 > 1) {
+                value |= (pdu[udl + 2 + bit / 8] & 0xFF) << (8 - bit % 8);
+            }
+            text.append((char) (value & 0x7F));
+        }
+        assertEquals("Load test 1", text.toString());
+        assertEquals(udl + 1 + (11 * 7 + 7) / 8, pdu.length);
+    }
+}